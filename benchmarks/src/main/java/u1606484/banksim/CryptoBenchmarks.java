@@ -0,0 +1,92 @@
+package u1606484.banksim;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the cryptographic stages of logging in: hashing a password,
+ * generating an OTAC, and encrypting and decrypting a log entry.
+ *
+ * <p>None of these touch the database, so they isolate the CPU cost of each
+ * stage from I/O.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CryptoBenchmarks {
+
+    /**
+     * A password of the minimum acceptable length
+     */
+    private static final String PASSWORD = "correct horse battery";
+    /**
+     * The password used for log encryption
+     */
+    private static final String LOG_KEY = "benchmark log key";
+    /**
+     * A typical audit log line
+     */
+    private static final String LOG_LINE = "Login success for account 12345";
+
+    private byte[] passwordSalt;
+    private byte[] otacKey;
+    private long now;
+    private OtacGenerator otacGenerator;
+    private AesContext logEncryption;
+    private byte[] logPlaintext;
+    private byte[] logCiphertext;
+
+    @Setup
+    public void setUp() {
+        passwordSalt = SecurityService.getSalt();
+        otacKey = SecurityService.getSalt();
+        now = System.currentTimeMillis();
+        otacGenerator = new OtacGenerator(8, 30 * 1000);
+        logEncryption = new AesContext(LOG_KEY);
+        logPlaintext = LOG_LINE.getBytes();
+        logCiphertext = AesEncryption.encrypt(logPlaintext, LOG_KEY);
+    }
+
+    @Benchmark
+    public byte[] passwordHash() {
+        return SecurityService.getPasswordHash(PASSWORD, passwordSalt,
+                SecurityService.PASSWORD_HASH_PASSES);
+    }
+
+    @Benchmark
+    public String generateOtac() {
+        return otacGenerator.generateOtac(otacKey, now);
+    }
+
+    @Benchmark
+    public byte[] aesEncrypt() {
+        return AesEncryption.encrypt(logPlaintext, LOG_KEY);
+    }
+
+    @Benchmark
+    public byte[] aesDecrypt() {
+        return AesEncryption.decrypt(logCiphertext, LOG_KEY);
+    }
+
+    @Benchmark
+    public byte[] aesContextEncrypt() {
+        return logEncryption.encrypt(logPlaintext);
+    }
+
+    @Benchmark
+    public byte[] aesContextDecrypt() {
+        return logEncryption.decrypt(logCiphertext);
+    }
+}
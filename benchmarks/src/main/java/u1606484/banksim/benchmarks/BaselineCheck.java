@@ -0,0 +1,127 @@
+package u1606484.banksim.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Compares a set of JMH results against a checked-in baseline, and fails if
+ * any benchmark has become slower than the baseline allows.
+ *
+ * <p>Both files are JMH's JSON output, as produced by {@code -rf json}. All
+ * benchmarks in this module report average time, so a higher score is worse.
+ * A benchmark counts as regressed if its score exceeds the baseline's by more
+ * than the tolerance (10% by default), plus the error margins JMH reported for
+ * both runs. Benchmarks missing from either file are listed, but do not fail
+ * the check.
+ *
+ * <p>Usage: {@code BaselineCheck <results.json> <baseline.json> [tolerance]}
+ */
+public class BaselineCheck {
+
+    /**
+     * The fraction a score may rise above its baseline before it counts as a
+     * regression, if none is specified
+     */
+    private static final double DEFAULT_TOLERANCE = 0.10;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineCheck <results.json> "
+                    + "<baseline.json> [tolerance]");
+            System.exit(2);
+        }
+
+        Map<String, Score> results = read(new File(args[0]));
+        Map<String, Score> baseline = read(new File(args[1]));
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2])
+                : DEFAULT_TOLERANCE;
+
+        int regressions = 0;
+        System.out.printf("%-70s %12s %12s %8s%n", "benchmark", "baseline",
+                "current", "change");
+        for (Entry<String, Score> e : results.entrySet()) {
+            Score current = e.getValue();
+            Score base = baseline.get(e.getKey());
+            if (base == null) {
+                System.out.printf("%-70s %12s %12.3f %8s%n", e.getKey(), "-",
+                        current.score, "new");
+                continue;
+            }
+
+            double change = (current.score - base.score) / base.score;
+            boolean regressed = current.score
+                    > base.score * (1 + tolerance) + base.error + current.error;
+            if (regressed) {
+                regressions++;
+            }
+
+            System.out.printf("%-70s %12.3f %12.3f %+7.1f%%%s%n", e.getKey(),
+                    base.score, current.score, change * 100,
+                    regressed ? "  REGRESSED" : "");
+        }
+
+        for (String name : baseline.keySet()) {
+            if (!results.containsKey(name)) {
+                System.out.printf("%-70s %12.3f %12s %8s%n", name,
+                        baseline.get(name).score, "-", "missing");
+            }
+        }
+
+        if (regressions > 0) {
+            System.out.println(regressions + " benchmark(s) regressed");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads the scores from a JMH JSON results file
+     *
+     * @param file The file to read
+     * @return Each benchmark's score, keyed by its name and parameters
+     * @throws IOException If the file could not be read
+     */
+    private static Map<String, Score> read(File file) throws IOException {
+        Map<String, Score> scores = new LinkedHashMap<>();
+        for (JsonNode run : new ObjectMapper().readTree(file)) {
+            StringBuilder name = new StringBuilder(
+                    run.get("benchmark").asText());
+
+            JsonNode params = run.get("params");
+            if (params != null) {
+                Iterator<Entry<String, JsonNode>> it = params.fields();
+                while (it.hasNext()) {
+                    Entry<String, JsonNode> p = it.next();
+                    name.append(':').append(p.getKey()).append('=')
+                            .append(p.getValue().asText());
+                }
+            }
+
+            JsonNode metric = run.get("primaryMetric");
+            double error = metric.get("scoreError").asDouble();
+            scores.put(name.toString(), new Score(
+                    metric.get("score").asDouble(),
+                    Double.isNaN(error) ? 0 : error));
+        }
+        return scores;
+    }
+
+    /**
+     * A benchmark's score, and the error margin around it
+     */
+    private static class Score {
+
+        private final double score;
+        private final double error;
+
+        Score(double score, double error) {
+            this.score = score;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package u1606484.banksim.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives first-stage logins against a running server from many concurrent
+ * clients, to compare how the server copes with load when run on platform
+ * threads and on virtual threads.
+ *
+ * <p>Each client posts an account ID and password to the login page in a
+ * loop, without keeping cookies, so every request is a fresh login. For each
+ * level of concurrency the test reports throughput, latency percentiles, and
+ * the number of requests which failed or were refused. The highest level at
+ * which no request failed is reported as the maximum number of concurrent
+ * logins sustained.
+ *
+ * <p>The account must already exist. Start the server once normally and once
+ * with {@code -P virtual-threads}, run this against each, and compare:
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar \
+ *     u1606484.banksim.benchmarks.LoginLoadTest \
+ *     http://localhost:8080/index 1 password 10,100,500,2000 30
+ * </pre>
+ *
+ * <p>Usage: {@code LoginLoadTest <url> <account ID> <password>
+ * [concurrency,...] [seconds per level]}
+ */
+public class LoginLoadTest {
+
+    /**
+     * The levels of concurrency to run at, if not specified
+     */
+    private static final String DEFAULT_LEVELS = "10,100,500,2000";
+    /**
+     * How long to run each level for, if not specified, in seconds
+     */
+    private static final int DEFAULT_SECONDS = 30;
+    /**
+     * How long a client waits to connect or for a response, in milliseconds
+     */
+    private static final int TIMEOUT_MILLIS = 30 * 1000;
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 3) {
+            System.err.println("Usage: LoginLoadTest <url> <account ID> "
+                    + "<password> [concurrency,...] [seconds per level]");
+            System.exit(2);
+        }
+
+        URL url;
+        try {
+            url = new URL(args[0]);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid URL: " + args[0], e);
+        }
+        byte[] form = ("username=" + encode(args[1]) + "&password="
+                + encode(args[2])).getBytes(StandardCharsets.UTF_8);
+        int[] levels = Arrays.stream((args.length > 3 ? args[3]
+                : DEFAULT_LEVELS).split(",")).mapToInt(Integer::parseInt)
+                .toArray();
+        int seconds = args.length > 4 ? Integer.parseInt(args[4])
+                : DEFAULT_SECONDS;
+
+        int maximumSustained = 0;
+        System.out.printf("%11s %10s %8s %10s %10s %10s %10s%n",
+                "concurrency", "logins", "failed", "per second", "p50 ms",
+                "p99 ms", "max ms");
+        for (int level : levels) {
+            Result r = run(url, form, level, seconds);
+            System.out.printf("%11d %10d %8d %10.1f %10.1f %10.1f %10.1f%n",
+                    level, r.latencies.length, r.failed,
+                    r.latencies.length / (double) seconds,
+                    r.percentile(0.50), r.percentile(0.99),
+                    r.percentile(1.00));
+
+            if (r.failed == 0 && r.latencies.length > 0) {
+                maximumSustained = level;
+            }
+        }
+
+        System.out.println("Maximum concurrency without failures: "
+                + maximumSustained);
+    }
+
+    /**
+     * Runs one level of concurrency
+     *
+     * @param url The login page
+     * @param form The form to post
+     * @param concurrency The number of clients
+     * @param seconds How long to run for
+     * @return The latencies of successful logins, and the number of failures
+     * @throws InterruptedException If interrupted while waiting for clients
+     */
+    private static Result run(URL url, byte[] form, int concurrency,
+            int seconds) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<Client> clients = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < concurrency; i++) {
+            Client c = new Client(url, form, deadline);
+            Thread t = new Thread(c, "load-client-" + i);
+            t.setDaemon(true);
+            clients.add(c);
+            threads.add(t);
+            t.start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        // Every client has finished, so their results are safe to read
+        long failed = 0;
+        long[] latencies = new long[0];
+        for (Client c : clients) {
+            failed += c.failed;
+            int from = latencies.length;
+            latencies = Arrays.copyOf(latencies, from + c.count);
+            System.arraycopy(c.latencies, 0, latencies, from, c.count);
+        }
+        Arrays.sort(latencies);
+
+        return new Result(latencies, failed);
+    }
+
+    /**
+     * URL-encodes a form value
+     *
+     * @param value The value
+     * @return The encoded value
+     */
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A single client, logging in repeatedly until the deadline
+     */
+    private static class Client implements Runnable {
+
+        private final URL url;
+        private final byte[] form;
+        private final long deadline;
+
+        /**
+         * The latency of each successful login, in nanoseconds
+         */
+        private long[] latencies = new long[1024];
+        /**
+         * The number of latencies recorded
+         */
+        private int count;
+        /**
+         * The number of requests which failed or did not log in
+         */
+        private long failed;
+
+        Client(URL url, byte[] form, long deadline) {
+            this.url = url;
+            this.form = form;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            while (System.nanoTime() < deadline) {
+                long start = System.nanoTime();
+                if (login()) {
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = System.nanoTime() - start;
+                } else {
+                    failed++;
+                }
+            }
+        }
+
+        /**
+         * Posts the form once
+         *
+         * @return True if the server responded and started a session
+         */
+        private boolean login() {
+            try {
+                HttpURLConnection c = (HttpURLConnection) url.openConnection();
+                c.setConnectTimeout(TIMEOUT_MILLIS);
+                c.setReadTimeout(TIMEOUT_MILLIS);
+                c.setRequestMethod("POST");
+                c.setDoOutput(true);
+                c.setRequestProperty("Content-Type",
+                        "application/x-www-form-urlencoded");
+
+                try (OutputStream out = c.getOutputStream()) {
+                    out.write(form);
+                }
+
+                int status = c.getResponseCode();
+                String cookie = c.getHeaderField("Set-Cookie");
+                // Drain the body, so the connection can be reused
+                try (InputStream in = status < 400 ? c.getInputStream()
+                        : c.getErrorStream()) {
+                    byte[] buffer = new byte[4096];
+                    while (in != null && in.read(buffer) != -1) {
+                        // Discard
+                    }
+                }
+
+                return status == 200 && cookie != null
+                        && cookie.startsWith("session_token=");
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * The outcome of one level of concurrency
+     */
+    private static class Result {
+
+        /**
+         * The latency of each successful login in nanoseconds, sorted
+         */
+        private final long[] latencies;
+        private final long failed;
+
+        Result(long[] latencies, long failed) {
+            this.latencies = latencies;
+            this.failed = failed;
+        }
+
+        /**
+         * Gets a percentile of the latencies
+         *
+         * @param fraction The percentile, from 0 to 1
+         * @return The latency in milliseconds, or 0 if there were none
+         */
+        double percentile(double fraction) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+
+            int index = (int) Math.ceil(fraction * latencies.length) - 1;
+            return latencies[Math.max(index, 0)] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package u1606484.banksim.databases;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import u1606484.banksim.SecurityService;
+import u1606484.banksim.SessionToken;
+
+/**
+ * A temporary database, migrated to the current schema and filled with a
+ * number of customers, each with one live session. The database file is
+ * deleted once closed.
+ */
+public class BenchmarkDatabase {
+
+    /**
+     * The password given to every customer
+     */
+    public static final String PASSWORD = "correct horse battery";
+
+    /**
+     * The file holding the database
+     */
+    private final File file;
+    /**
+     * The manager for the database
+     */
+    private final ApplicationDatabaseManager manager;
+    /**
+     * The ID of each customer, in the order they were created
+     */
+    private final int[] customerIds;
+    /**
+     * The encoded session token of each customer, in the same order as their
+     * IDs
+     */
+    private final String[] sessionKeys;
+
+    /**
+     * Creates and fills a temporary database
+     *
+     * @param customerCount The number of customers to create
+     */
+    public BenchmarkDatabase(int customerCount) {
+        try {
+            file = File.createTempFile("banksim-benchmark", ".db");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        file.deleteOnExit();
+
+        manager = new ApplicationDatabaseManager(
+                "jdbc:sqlite:" + file.getAbsolutePath(),
+                ConnectionPool.DEFAULT_POOL_SIZE);
+        customerIds = new int[customerCount];
+        sessionKeys = new String[customerCount];
+
+        long expiry = Long.MAX_VALUE;
+        for (int i = 0; i < customerCount; i++) {
+            customerIds[i] = manager.newCustomer("07000000000", "Jeremy",
+                    "Smith", PASSWORD, SecurityService.PASSWORD_HASH_PASSES,
+                    "31 Cherry Street", "", "GU76 5PQ", "Cambridgeshire");
+            SessionToken token = SessionToken.generate();
+            sessionKeys[i] = token.encode();
+            manager.assignSessionKey(customerIds[i], token, expiry, 0);
+        }
+    }
+
+    public ApplicationDatabaseManager getManager() {
+        return manager;
+    }
+
+    public int getCustomerId(int index) {
+        return customerIds[index];
+    }
+
+    public String getSessionKey(int index) {
+        return sessionKeys[index];
+    }
+
+    public int getCustomerCount() {
+        return customerIds.length;
+    }
+
+    /**
+     * Closes the database and deletes its file
+     */
+    public void close() {
+        manager.close();
+        if (!file.delete()) {
+            System.err.println("Could not delete " + file);
+        }
+    }
+}
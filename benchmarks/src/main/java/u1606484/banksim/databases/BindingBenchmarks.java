@@ -0,0 +1,97 @@
+package u1606484.banksim.databases;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import u1606484.banksim.SessionToken;
+import u1606484.banksim.databases.ConnectionPool.Lease;
+import u1606484.banksim.databases.FunctionalHelpers.DatabaseBinding;
+import u1606484.banksim.databases.FunctionalHelpers.bBytes;
+import u1606484.banksim.databases.FunctionalHelpers.bLong;
+
+/**
+ * Compares the cost of binding the parameters of the session lookup query
+ * with an array of {@link DatabaseBinding}s against a {@link QueryShape}, and
+ * measures the whole lookup by {@link SessionToken}.
+ *
+ * <p>These are most useful when run with JMH's allocation profiler, {@code
+ * -prof gc}, whose {@code gc.alloc.rate.norm} result gives the bytes
+ * allocated per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class BindingBenchmarks {
+
+    /**
+     * The same query the session lookup runs
+     */
+    private static final QueryShape SESSION_BY_KEY = new QueryShape(""
+            + "SELECT customer_id, otac_authenticated "
+            + "FROM session "
+            + "WHERE expiry > ? AND session_key = ?", 2);
+
+    private BenchmarkDatabase database;
+    private Lease lease;
+    private PreparedStatement statement;
+    private SessionToken token;
+    private byte[] key;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        database = new BenchmarkDatabase(1);
+        token = SessionToken.parse(database.getSessionKey(0));
+        key = token.toBytes();
+
+        // Held for the whole trial, so only binding is measured
+        lease = database.getManager().borrow();
+        statement = lease.prepare(SESSION_BY_KEY.getSql());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        lease.close();
+        database.close();
+    }
+
+    @Benchmark
+    public PreparedStatement bindArray() {
+        DatabaseBinding[] bindings = new DatabaseBinding[]{
+                new bLong(1, System.currentTimeMillis()),
+                new bBytes(2, key)};
+        for (DatabaseBinding b : bindings) {
+            b.performBinding(statement);
+        }
+        return statement;
+    }
+
+    @Benchmark
+    public PreparedStatement bindShape() throws SQLException {
+        SESSION_BY_KEY.parameters()
+                .setLong(1, System.currentTimeMillis())
+                .setBytes(2, key)
+                .accept(statement);
+        return statement;
+    }
+
+    @Benchmark
+    public Optional<UserAuthenticationPackage> getUserData() {
+        return database.getManager().getUserData(token);
+    }
+}
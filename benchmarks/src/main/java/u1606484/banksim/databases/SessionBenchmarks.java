@@ -0,0 +1,61 @@
+package u1606484.banksim.databases;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks looking up a session by its key in the database, as done for
+ * every request which does not find the session in memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SessionBenchmarks {
+
+    /**
+     * The number of customers (and so sessions) in the database
+     */
+    @Param({"1000"})
+    public int customerCount;
+
+    private BenchmarkDatabase database;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        database = new BenchmarkDatabase(customerCount);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        database.close();
+    }
+
+    @Benchmark
+    public Optional<UserAuthenticationPackage> getUserData() {
+        next = (next + 1) % customerCount;
+        return database.getManager()
+                .getUserData(database.getSessionKey(next));
+    }
+
+    @Benchmark
+    public Optional<UserAuthenticationPackage> getUserDataMissing() {
+        return database.getManager().getUserData("not a session key");
+    }
+}
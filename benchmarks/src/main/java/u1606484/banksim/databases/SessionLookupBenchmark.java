@@ -0,0 +1,161 @@
+package u1606484.banksim.databases;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Random;
+import u1606484.banksim.SessionToken;
+import u1606484.banksim.databases.ConnectionPool.Lease;
+
+/**
+ * Measures how long looking up a session by its key takes as the session
+ * table grows, against a freshly migrated temporary database.
+ *
+ * <p>The table is filled in steps of ten times the previous size, up to the
+ * size given as the first argument (10,000,000 by default). After each step,
+ * the same number of lookups are made for randomly chosen keys, and the mean
+ * time per lookup is printed. With the session key indexed, this should stay
+ * roughly constant; pass {@code --no-index} to drop the index and see the
+ * linear growth of a full table scan instead.
+ *
+ * <p>Sessions are keyed by {@link SessionToken}s, stored and looked up
+ * exactly as the application does. Rather than holding millions of tokens in
+ * memory, each is derived from its row number, so any row's token can be
+ * recreated to look it up.
+ *
+ * <p>This is not a JMH benchmark, since filling the table takes far longer
+ * than any one measurement. Run it from the benchmarks jar:
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar \
+ *     u1606484.banksim.databases.SessionLookupBenchmark 10000000
+ * </pre>
+ */
+public class SessionLookupBenchmark {
+
+    /**
+     * The number of lookups timed at each table size
+     */
+    private static final int LOOKUPS = 10000;
+    /**
+     * The number of rows inserted per transaction while filling the table
+     */
+    private static final int INSERT_BATCH_SIZE = 50000;
+
+    public static void main(String[] args) throws IOException, SQLException {
+        long maximumRows = args.length > 0 ? Long.parseLong(args[0])
+                : 10_000_000L;
+        boolean indexed = !(args.length > 1 && args[1].equals("--no-index"));
+
+        File file = File.createTempFile("session-benchmark", ".db");
+        file.deleteOnExit();
+
+        ApplicationDatabaseManager m = new ApplicationDatabaseManager(
+                "jdbc:sqlite:" + file.getAbsolutePath(), 1);
+        if (!indexed) {
+            m.exec("DROP INDEX session_key_index",
+                    new FunctionalHelpers.DatabaseBinding[0], false);
+        }
+
+        System.out.printf("%12s %14s%n", "rows", "mean lookup");
+        Random random = new Random(0);
+        long rows = 0;
+        for (long target = 10_000; target <= maximumRows; target *= 10) {
+            fill(m, rows, target);
+            rows = target;
+
+            // Warm up, then measure
+            lookup(m, random, rows, LOOKUPS / 10);
+            long start = System.nanoTime();
+            lookup(m, random, rows, LOOKUPS);
+            long elapsed = System.nanoTime() - start;
+
+            System.out.printf("%12d %11.2f us%n", rows,
+                    elapsed / 1000.0 / LOOKUPS);
+        }
+
+        m.close();
+        if (!file.delete()) {
+            System.err.println("Could not delete " + file);
+        }
+    }
+
+    /**
+     * Makes a number of lookups for randomly chosen keys which exist
+     *
+     * @param m The database to query
+     * @param random Chooses the keys
+     * @param rows The number of sessions in the table
+     * @param count The number of lookups to make
+     */
+    private static void lookup(ApplicationDatabaseManager m, Random random,
+            long rows, int count) {
+        for (int i = 0; i < count; i++) {
+            long n = (long) (random.nextDouble() * rows);
+            if (!m.getUserData(tokenFor(n)).isPresent()) {
+                throw new IllegalStateException("Missing session " + n);
+            }
+        }
+    }
+
+    /**
+     * Inserts sessions into the table until it holds a given number
+     *
+     * @param m The database to fill
+     * @param from The number of sessions already in the table
+     * @param to The number of sessions the table should hold
+     */
+    private static void fill(ApplicationDatabaseManager m, long from, long to)
+            throws SQLException {
+        try (Lease lease = m.borrow()) {
+            PreparedStatement insert = lease.prepare(""
+                    + "INSERT INTO session "
+                    + "(session_key, customer_id, expiry, otac_authenticated) "
+                    + "VALUES (?, ?, ?, 0)");
+
+            for (long n = from; n < to; n++) {
+                insert.setBytes(1, tokenFor(n).toBytes());
+                insert.setLong(2, n % 100000);
+                insert.setLong(3, Long.MAX_VALUE);
+                insert.addBatch();
+
+                if ((n + 1) % INSERT_BATCH_SIZE == 0 || n + 1 == to) {
+                    insert.executeBatch();
+                    lease.commit();
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets a unique session token for a number. The token starts with a hash
+     * of the number, so tokens are spread across the index as random ones
+     * would be, and ends with the number itself, so no two are the same.
+     *
+     * @param n The number of the session
+     * @return The session token
+     */
+    private static SessionToken tokenFor(long n) {
+        byte[] bytes = ByteBuffer.allocate(SessionToken.BYTE_LENGTH)
+                .putLong(mix(n))
+                .putLong(n)
+                .array();
+        return SessionToken.fromBytes(bytes);
+    }
+
+    /**
+     * Spreads the bits of a number across a long
+     *
+     * @param n The number
+     * @return The mixed number
+     */
+    private static long mix(long n) {
+        // The finaliser of SplitMix64
+        long z = n + 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
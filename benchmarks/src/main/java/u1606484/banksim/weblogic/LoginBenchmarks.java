@@ -0,0 +1,81 @@
+package u1606484.banksim.weblogic;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletResponse;
+import u1606484.banksim.InMemoryTransport;
+import u1606484.banksim.TwoFactorService;
+import u1606484.banksim.databases.BenchmarkDatabase;
+
+/**
+ * Benchmarks the whole of a password login, from fetching the customer's
+ * password data to assigning them a new session, against a temporary
+ * database. {@code beginLogin} also covers sending the OTAC and writing the
+ * audit log entry, as the first stage of logging in on the website does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class LoginBenchmarks {
+
+    /**
+     * The number of customers in the database
+     */
+    @Param({"1000"})
+    public int customerCount;
+
+    private BenchmarkDatabase database;
+    private LoginSystem loginSystem;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        database = new BenchmarkDatabase(customerCount);
+        loginSystem = new LoginSystem(database.getManager(),
+                new TwoFactorService(8, 30 * 1000, 2,
+                        new InMemoryTransport()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        loginSystem.close();
+        database.close();
+    }
+
+    @Benchmark
+    public boolean attemptBasicLogin() {
+        next = (next + 1) % customerCount;
+        return loginSystem.attemptBasicLogin(database.getCustomerId(next),
+                BenchmarkDatabase.PASSWORD, new MockHttpServletResponse());
+    }
+
+    @Benchmark
+    public boolean beginLogin() {
+        next = (next + 1) % customerCount;
+        return loginSystem.beginLogin(database.getCustomerId(next),
+                BenchmarkDatabase.PASSWORD, "127.0.0.1",
+                new MockHttpServletResponse());
+    }
+
+    @Benchmark
+    public boolean attemptBasicLoginWrongPassword() {
+        next = (next + 1) % customerCount;
+        return loginSystem.attemptBasicLogin(database.getCustomerId(next),
+                "wrong password", new MockHttpServletResponse());
+    }
+}
@@ -0,0 +1,162 @@
+package u1606484.banksim;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A reusable equivalent of {@link AesEncryption} for when many values are
+ * encrypted or decrypted with the same password.
+ *
+ * <p>The password is hashed into a key only once, the first time it is needed.
+ * Initialised {@link Cipher}s for each direction are then borrowed from an
+ * {@link ObjectPool}, so encrypting or decrypting a value does not involve a
+ * provider lookup or key derivation. Output is identical to that of {@link
+ * AesEncryption}, so either can decrypt the other's data.
+ */
+public class AesContext {
+
+    /**
+     * The password keys are derived from
+     */
+    private final String password;
+    /**
+     * Ciphers initialised for encryption, not currently in use
+     */
+    private final ObjectPool<Cipher> encryptors;
+    /**
+     * Ciphers initialised for decryption, not currently in use
+     */
+    private final ObjectPool<Cipher> decryptors;
+    /**
+     * The key derived from the password, once it has been needed
+     */
+    private volatile Key key;
+
+    public AesContext(String password) {
+        this.password = password;
+        this.encryptors = new ObjectPool<>(
+                () -> newCipher(Cipher.ENCRYPT_MODE));
+        this.decryptors = new ObjectPool<>(
+                () -> newCipher(Cipher.DECRYPT_MODE));
+    }
+
+    /**
+     * Encrypts an array of bytes
+     *
+     * @param data The data to encrypt
+     * @return Encrypted data
+     */
+    public byte[] encrypt(byte[] data) {
+        Cipher c = encryptors.borrow();
+        byte[] result = run(c, data);
+        encryptors.release(c);
+        return result;
+    }
+
+    /**
+     * Decrypts an array of bytes
+     *
+     * @param data The data to decrypt
+     * @return Decrypted data
+     */
+    public byte[] decrypt(byte[] data) {
+        Cipher c = decryptors.borrow();
+        byte[] result = run(c, data);
+        decryptors.release(c);
+        return result;
+    }
+
+    /**
+     * Encrypts many arrays of bytes using one cipher
+     *
+     * @param data The data to encrypt
+     * @return Encrypted data, in the same order
+     */
+    public byte[][] encryptAll(byte[][] data) {
+        Cipher c = encryptors.borrow();
+        byte[][] result = runAll(c, data);
+        encryptors.release(c);
+        return result;
+    }
+
+    /**
+     * Decrypts many arrays of bytes using one cipher
+     *
+     * @param data The data to decrypt
+     * @return Decrypted data, in the same order
+     */
+    public byte[][] decryptAll(byte[][] data) {
+        Cipher c = decryptors.borrow();
+        byte[][] result = runAll(c, data);
+        decryptors.release(c);
+        return result;
+    }
+
+    /**
+     * Passes every array through the same cipher
+     *
+     * @param c The cipher to use
+     * @param data The data to process
+     * @return Processed data, in the same order
+     */
+    private static byte[][] runAll(Cipher c, byte[][] data) {
+        byte[][] result = new byte[data.length][];
+        for (int i = 0; i < data.length; i++) {
+            result[i] = run(c, data[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Passes an array through a cipher. {@link Cipher#doFinal(byte[])} leaves
+     * the cipher ready to be used again with the same key. If it fails, the
+     * cipher's state is unknown, so callers only return it to its pool on
+     * success.
+     *
+     * @param c The cipher to use
+     * @param data The data to process
+     * @return Processed data
+     */
+    private static byte[] run(Cipher c, byte[] data) {
+        try {
+            return c.doFinal(data);
+        } catch (IllegalBlockSizeException | BadPaddingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Creates a cipher initialised with this context's key
+     *
+     * @param operation Whether to encrypt or decrypt
+     * @return An initialised cipher
+     */
+    private Cipher newCipher(int operation) {
+        try {
+            Cipher c = Cipher.getInstance(AesEncryption.ALGORITHM);
+            c.init(operation, getKey());
+            return c;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Gets the key derived from the password, deriving it on first use
+     *
+     * @return The AES key
+     */
+    private Key getKey() {
+        Key k = key;
+        if (k == null) {
+            k = new SecretKeySpec(AesEncryption.enforcePasswordLength(password),
+                    0, AesEncryption.KEY_LENGTH, AesEncryption.ALGORITHM);
+            key = k;
+        }
+        return k;
+    }
+}
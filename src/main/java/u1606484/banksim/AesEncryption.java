@@ -22,18 +22,21 @@ import javax.crypto.spec.SecretKeySpec;
  * <p>Encryption is 128-bit, since 256 and 196 bit AES encryption require
  * additional dependencies. Keys are automatically sized to 16 bytes by hashing,
  * and truncating to just the first half.
+ *
+ * <p>Each call derives the key and looks up a cipher afresh. Where many values
+ * are processed with the same password, {@link AesContext} avoids this.
  */
 public class AesEncryption {
 
     /**
      * Algorithm to use for encryption/decryption
      */
-    private static final String ALGORITHM = "AES";
+    static final String ALGORITHM = "AES";
 
     /**
      * Length of key in bytes
      */
-    private static final int KEY_LENGTH = 16; // 128 bits
+    static final int KEY_LENGTH = 16; // 128 bits
 
     /**
      * Encrypts or decrypts an array of bytes using a specified password
@@ -101,7 +104,7 @@ public class AesEncryption {
      * @param password Password to enforce length for
      * @return A key which is the exact bit-length required for AES
      */
-    private static byte[] enforcePasswordLength(String password) {
+    static byte[] enforcePasswordLength(String password) {
         return enforcePasswordLength(password.getBytes());
     }
 
@@ -0,0 +1,317 @@
+package u1606484.banksim;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import u1606484.banksim.databases.ApplicationDatabaseManager;
+import u1606484.banksim.databases.NewCustomer;
+
+/**
+ * Imports customers in bulk from a CSV file, such as when migrating an
+ * existing customer base.
+ *
+ * <p>The file is streamed rather than read whole. Passwords are hashed in
+ * parallel on a {@link PasswordHashingService}, and customers are inserted in
+ * transactions of {@value BATCH_SIZE}, through {@link
+ * ApplicationDatabaseManager#newCustomers}. Each batch is inserted on a
+ * single writer thread as soon as its passwords are hashed, while the
+ * passwords of the batches after it are still being hashed.
+ *
+ * <p>The file must start with a header naming these columns, in this order:
+ * {@code phone_number}, {@code first_name}, {@code last_name}, {@code
+ * password}, {@code address_1}, {@code address_2}, {@code postcode}, {@code
+ * county}.
+ *
+ * <p>Fields may be quoted, with quotes inside them doubled, but may not span
+ * lines. An empty {@code address_2} is stored as null. Lines with the wrong
+ * number of fields are skipped and reported.
+ *
+ * <p>Usage: {@code CustomerImporter <csv file>}
+ */
+public class CustomerImporter {
+
+    /**
+     * The columns the file must have, in order
+     */
+    private static final List<String> COLUMNS = Arrays.asList("phone_number",
+            "first_name", "last_name", "password", "address_1", "address_2",
+            "postcode", "county");
+    /**
+     * The number of customers inserted in each transaction
+     */
+    private static final int BATCH_SIZE = 1000;
+    /**
+     * The maximum number of passwords waiting to be hashed. This stays well
+     * below the hashing service's own queue, so hashes are never rejected.
+     */
+    private static final int MAXIMUM_PENDING_HASHES = 128;
+    /**
+     * The maximum number of batches waiting to be inserted, bounding the
+     * number of hashed customers held in memory
+     */
+    private static final int MAXIMUM_PENDING_BATCHES = 4;
+
+    /**
+     * The database customers are inserted into
+     */
+    private final ApplicationDatabaseManager databaseManager;
+    /**
+     * Hashes each customer's password
+     */
+    private final PasswordHashingService hashing;
+
+    /**
+     * Creates an importer
+     *
+     * @param databaseManager The database to insert customers into
+     * @param hashing The service to hash passwords on
+     */
+    public CustomerImporter(ApplicationDatabaseManager databaseManager,
+            PasswordHashingService hashing) {
+        this.databaseManager = databaseManager;
+        this.hashing = hashing;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: CustomerImporter <csv file>");
+            System.exit(2);
+        }
+
+        ApplicationDatabaseManager databaseManager =
+                new ApplicationDatabaseManager();
+        PasswordHashingService hashing = new PasswordHashingService(
+                Runtime.getRuntime().availableProcessors());
+
+        try (Reader in = Files.newBufferedReader(Paths.get(args[0]),
+                StandardCharsets.UTF_8)) {
+            Result r = new CustomerImporter(databaseManager, hashing)
+                    .importCsv(in);
+            System.out.printf("Imported %d customers in %.1f s (%.1f rows/s), "
+                            + "skipped %d lines%n", r.getImportedCount(),
+                    r.getElapsedNanos() / 1e9, r.getRowsPerSecond(),
+                    r.getSkippedCount());
+        } finally {
+            hashing.close();
+            databaseManager.close();
+        }
+    }
+
+    /**
+     * Imports every customer in a CSV file.
+     *
+     * <p>If the import fails part way, batches inserted before the failure
+     * remain in the database.
+     *
+     * @param in The contents of the file
+     * @return How many customers were imported, and how quickly
+     * @throws IOException If the file could not be read
+     * @throws IllegalArgumentException If the file's header is wrong
+     * @throws IllegalStateException If a password could not be hashed, or a
+     * batch could not be inserted
+     */
+    public Result importCsv(Reader in) throws IOException {
+        long start = System.nanoTime();
+        BufferedReader reader = new BufferedReader(in);
+
+        String header = reader.readLine();
+        if (header == null || !parseLine(header).equals(COLUMNS)) {
+            throw new IllegalArgumentException(
+                    "Expected header: " + String.join(",", COLUMNS));
+        }
+
+        Semaphore hashPermits = new Semaphore(MAXIMUM_PENDING_HASHES);
+        ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "customer-import");
+            t.setDaemon(true);
+            return t;
+        });
+        Deque<Future<Integer>> pendingBatches = new ArrayDeque<>();
+        List<CompletableFuture<NewCustomer>> batch = new ArrayList<>();
+        long imported = 0;
+        long skipped = 0;
+        long lineNumber = 1;
+
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                List<String> fields = parseLine(line);
+                if (fields.size() != COLUMNS.size()) {
+                    System.out.println("Skipping line " + lineNumber
+                            + ": expected " + COLUMNS.size() + " fields, got "
+                            + fields.size());
+                    skipped++;
+                    continue;
+                }
+
+                hashPermits.acquireUninterruptibly();
+                CompletableFuture<NewCustomer> customer = hashing
+                        .hashAsync(fields.get(3))
+                        .thenApply(password -> new NewCustomer(fields.get(0),
+                                fields.get(1), fields.get(2), password,
+                                fields.get(4), emptyToNull(fields.get(5)),
+                                fields.get(6), fields.get(7)));
+                customer.whenComplete((c, e) -> hashPermits.release());
+                batch.add(customer);
+
+                if (batch.size() == BATCH_SIZE) {
+                    pendingBatches.add(writer.submit(insertion(batch)));
+                    batch = new ArrayList<>();
+                }
+                if (pendingBatches.size() > MAXIMUM_PENDING_BATCHES) {
+                    imported += await(pendingBatches.poll());
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                pendingBatches.add(writer.submit(insertion(batch)));
+            }
+            while (!pendingBatches.isEmpty()) {
+                imported += await(pendingBatches.poll());
+            }
+        } finally {
+            // Anything still queued after a failure is abandoned
+            writer.shutdownNow();
+        }
+
+        return new Result(imported, skipped, System.nanoTime() - start);
+    }
+
+    /**
+     * Creates the task inserting a batch of customers, once all of their
+     * passwords have been hashed
+     *
+     * @param batch The customers, each still being hashed
+     * @return The task, returning the number of customers inserted
+     */
+    private Callable<Integer> insertion(
+            List<CompletableFuture<NewCustomer>> batch) {
+        return () -> {
+            List<NewCustomer> customers = new ArrayList<>(batch.size());
+            for (CompletableFuture<NewCustomer> c : batch) {
+                customers.add(c.join());
+            }
+            return databaseManager.newCustomers(customers).length;
+        };
+    }
+
+    /**
+     * Waits for a batch to be inserted
+     *
+     * @param insertion The pending insertion
+     * @return The number of customers inserted
+     * @throws IllegalStateException If the batch could not be hashed or
+     * inserted
+     */
+    private static int await(Future<Integer> insertion) {
+        try {
+            return insertion.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Import failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during import", e);
+        }
+    }
+
+    /**
+     * Splits one line of CSV into its fields
+     *
+     * @param line The line
+     * @return The fields, with any quoting removed
+     */
+    private static List<String> parseLine(String line) {
+        List<String> fields = new ArrayList<>(COLUMNS.size());
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length()
+                        && line.charAt(i + 1) == '"') {
+                    // A doubled quote is a literal quote
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static String emptyToNull(String s) {
+        return s.isEmpty() ? null : s;
+    }
+
+    /**
+     * The outcome of an import
+     */
+    public static class Result {
+
+        private final long importedCount;
+        private final long skippedCount;
+        private final long elapsedNanos;
+
+        Result(long importedCount, long skippedCount, long elapsedNanos) {
+            this.importedCount = importedCount;
+            this.skippedCount = skippedCount;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getImportedCount() {
+            return importedCount;
+        }
+
+        public long getSkippedCount() {
+            return skippedCount;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * Gets the rate customers were imported at, including the time spent
+         * hashing their passwords
+         *
+         * @return Customers imported per second
+         */
+        public double getRowsPerSecond() {
+            return elapsedNanos == 0 ? 0
+                    : importedCount / (elapsedNanos / 1e9);
+        }
+    }
+}
@@ -1,10 +1,7 @@
 package u1606484.banksim;
 
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.net.URL;
-import java.util.Optional;
+import java.io.UncheckedIOException;
+import u1606484.banksim.interfaces.IMessageTransport;
 import u1606484.banksim.interfaces.IOtacGenerator;
 import u1606484.banksim.interfaces.ITwoFactorService;
 
@@ -13,7 +10,7 @@ import u1606484.banksim.interfaces.ITwoFactorService;
  */
 public class DummyTwoFactor implements ITwoFactorService {
 
-    private static final String FILE_NAME = "dummySend.txt";
+    private final IMessageTransport transport = new FileTransport();
     private final IOtacGenerator generator;
     private final int otacStepWindow;
 
@@ -31,16 +28,9 @@ public class DummyTwoFactor implements ITwoFactorService {
      */
     @Override
     public void sendMessage(String contactAddress, String content) {
-        ClassLoader classLoader = getClass().getClassLoader();
-        URL filePath = Optional.ofNullable(classLoader.getResource(FILE_NAME))
-                .orElseThrow(
-                        () -> new IllegalStateException("Out file not found"));
-
-        try (FileWriter f = new FileWriter(new File(filePath.getFile()))) {
-            f.write("Send to " + contactAddress + ":\n" + content);
-            System.out
-                    .println("Write to " + filePath.getPath() + "->" + content);
-        } catch (IOException e) {
+        try {
+            transport.send(contactAddress, content);
+        } catch (UncheckedIOException e) {
             e.printStackTrace();
         }
     }
@@ -50,6 +40,11 @@ public class DummyTwoFactor implements ITwoFactorService {
         return generator.generateOtac(secretKey, System.currentTimeMillis());
     }
 
+    @Override
+    public int getOtacLength() {
+        return generator.getDigitCount();
+    }
+
     @Override
     public int getWindowCount() {
         return otacStepWindow;
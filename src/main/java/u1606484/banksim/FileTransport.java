@@ -0,0 +1,44 @@
+package u1606484.banksim;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.util.Optional;
+import u1606484.banksim.interfaces.IMessageTransport;
+
+/**
+ * A stand-in for a real transport, which writes each message to a file on the
+ * classpath instead of sending it. Useful for development without SMS
+ * credentials.
+ */
+public class FileTransport implements IMessageTransport {
+
+    /**
+     * The classpath resource messages are written to
+     */
+    private static final String FILE_NAME = "dummySend.txt";
+
+    /**
+     * Overwrites the output file with the message and its address.
+     *
+     * @param contactAddress The address the message would be sent to
+     * @param message The message to write
+     */
+    @Override
+    public void send(String contactAddress, String message) {
+        ClassLoader classLoader = getClass().getClassLoader();
+        URL filePath = Optional.ofNullable(classLoader.getResource(FILE_NAME))
+                .orElseThrow(
+                        () -> new IllegalStateException("Out file not found"));
+
+        try (FileWriter f = new FileWriter(new File(filePath.getFile()))) {
+            f.write("Send to " + contactAddress + ":\n" + message);
+            System.out
+                    .println("Write to " + filePath.getPath() + "->" + message);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
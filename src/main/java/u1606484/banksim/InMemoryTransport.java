@@ -0,0 +1,66 @@
+package u1606484.banksim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import u1606484.banksim.interfaces.IMessageTransport;
+import u1606484.banksim.interfaces.IPair;
+
+/**
+ * A stand-in for a real transport, which records every message in memory.
+ * Intended for tests.
+ */
+public class InMemoryTransport implements IMessageTransport {
+
+    /**
+     * Every message sent, as address and message pairs, in order of sending
+     */
+    private final List<IPair<String, String>> sent =
+            Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Records the message
+     *
+     * @param contactAddress The address the message would be sent to
+     * @param message The message
+     */
+    @Override
+    public void send(String contactAddress, String message) {
+        sent.add(new SentMessage(contactAddress, message));
+    }
+
+    /**
+     * Gets every message sent so far
+     *
+     * @return A copy of the sent messages, as address and message pairs
+     */
+    public List<IPair<String, String>> getSent() {
+        synchronized (sent) {
+            return new ArrayList<>(sent);
+        }
+    }
+
+    /**
+     * A single recorded message
+     */
+    private static class SentMessage implements IPair<String, String> {
+
+        private final String contactAddress;
+        private final String message;
+
+        SentMessage(String contactAddress, String message) {
+            this.contactAddress = contactAddress;
+            this.message = message;
+        }
+
+        @Override
+        public String getFirst() {
+            return contactAddress;
+        }
+
+        @Override
+        public String getSecond() {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package u1606484.banksim;
+
+import u1606484.banksim.interfaces.IPasswordHasher;
+
+/**
+ * The original password hashing scheme: the password and salt, concatenated,
+ * then hashed with SHA-256 once per pass.
+ *
+ * <p>This is kept only so that passwords stored before {@link
+ * Pbkdf2PasswordHasher} was introduced can still be verified, and then
+ * upgraded.
+ *
+ * @see SecurityService#getPasswordHash(String, byte[], int)
+ */
+class LegacyPasswordHasher implements IPasswordHasher {
+
+    /**
+     * The version stored alongside passwords hashed with this scheme
+     */
+    static final int VERSION = 0;
+
+    @Override
+    public int getVersion() {
+        return VERSION;
+    }
+
+    /**
+     * Hashes a password
+     *
+     * @param plaintext The plaintext password
+     * @param salt The salt to combine with the password
+     * @param workFactor The number of SHA-256 passes to make
+     * @return The password hash
+     */
+    @Override
+    public byte[] hash(String plaintext, byte[] salt, int workFactor) {
+        return SecurityService.getPasswordHash(plaintext, salt, workFactor);
+    }
+}
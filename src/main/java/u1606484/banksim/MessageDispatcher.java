@@ -0,0 +1,251 @@
+package u1606484.banksim;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import u1606484.banksim.interfaces.IMessageTransport;
+
+/**
+ * Sends messages through an {@link IMessageTransport} on a pool of background
+ * threads, so that callers never wait on delivery.
+ *
+ * <p>At most {@value CAPACITY} messages may be outstanding at once; beyond
+ * that, new messages are dropped. Failed deliveries are retried up to {@value
+ * MAXIMUM_ATTEMPTS} times in total, waiting twice as long before each retry.
+ *
+ * <p>Each message waits {@value COALESCE_DELAY_MILLIS}ms before its first
+ * attempt. If another message is submitted for the same address in that time,
+ * the waiting message is replaced rather than a second one being queued. A
+ * customer who asks for several OTACs in quick succession therefore only
+ * receives the latest one.
+ *
+ * <p>Messages submitted after {@link #close()}, and retries which would fall
+ * after it, are counted as dropped.
+ */
+public class MessageDispatcher {
+
+    /**
+     * The maximum number of messages waiting to be sent or retried at once
+     */
+    private static final int CAPACITY = 1000;
+    /**
+     * The number of threads delivering messages
+     */
+    private static final int WORKER_COUNT = 4;
+    /**
+     * The maximum number of delivery attempts for a single message
+     */
+    private static final int MAXIMUM_ATTEMPTS = 4;
+    /**
+     * How long a message waits before its first attempt, in milliseconds,
+     * during which a later message to the same address replaces it
+     */
+    private static final long COALESCE_DELAY_MILLIS = 100;
+    /**
+     * How long to wait before the first retry, in milliseconds. Each
+     * subsequent retry waits twice as long as the previous.
+     */
+    private static final long INITIAL_BACKOFF_MILLIS = 250;
+    /**
+     * How long to wait for outstanding messages on shutdown, in milliseconds
+     */
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 5 * 1000;
+
+    /**
+     * What actually delivers messages
+     */
+    private final IMessageTransport transport;
+    /**
+     * The threads which deliver messages and schedule retries
+     */
+    private final ScheduledExecutorService workers;
+    /**
+     * Messages waiting for their first attempt, keyed by address
+     */
+    private final ConcurrentHashMap<String, Delivery> waiting =
+            new ConcurrentHashMap<>();
+    /**
+     * The number of messages accepted, but not yet delivered or given up on
+     */
+    private final AtomicInteger outstanding = new AtomicInteger();
+    /**
+     * The number of messages delivered
+     */
+    private final LongAdder sent = new LongAdder();
+    /**
+     * The number of messages replaced by a later one to the same address
+     */
+    private final LongAdder coalesced = new LongAdder();
+    /**
+     * The number of messages rejected because too many were outstanding, or
+     * because the dispatcher was closed
+     */
+    private final LongAdder dropped = new LongAdder();
+    /**
+     * The number of messages given up on after every attempt failed
+     */
+    private final LongAdder failed = new LongAdder();
+    /**
+     * The number of retries made
+     */
+    private final LongAdder retries = new LongAdder();
+
+    public MessageDispatcher(IMessageTransport transport) {
+        this.transport = transport;
+
+        this.workers = Executors.newScheduledThreadPool(WORKER_COUNT,
+                VirtualThreads.factory("message-dispatcher-"));
+    }
+
+    /**
+     * Queues a message for delivery. This never blocks.
+     *
+     * @param contactAddress The address to deliver to
+     * @param message The message to deliver
+     * @return If the message was accepted (including by replacing a waiting
+     * message to the same address), true. If too many messages are outstanding
+     * and it was dropped, false.
+     */
+    public boolean submit(String contactAddress, String message) {
+        Delivery[] created = new Delivery[1];
+
+        Delivery d = waiting.compute(contactAddress, (a, existing) -> {
+            if (existing != null) {
+                existing.message = message;
+                coalesced.increment();
+                return existing;
+            }
+
+            if (outstanding.incrementAndGet() > CAPACITY) {
+                outstanding.decrementAndGet();
+                dropped.increment();
+                return null;
+            }
+
+            created[0] = new Delivery(a, message);
+            return created[0];
+        });
+
+        if (created[0] != null) {
+            Delivery delivery = created[0];
+            try {
+                workers.schedule(() -> {
+                    // From here on, later messages to this address are queued
+                    // separately rather than replacing this one
+                    waiting.remove(delivery.contactAddress, delivery);
+                    attempt(delivery, 1);
+                }, COALESCE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                waiting.remove(delivery.contactAddress, delivery);
+                outstanding.decrementAndGet();
+                dropped.increment();
+                return false;
+            }
+        }
+
+        return d != null;
+    }
+
+    /**
+     * Gets the number of messages accepted, but not yet delivered or given up
+     * on
+     *
+     * @return The number of outstanding messages
+     */
+    public int getOutstandingCount() {
+        return outstanding.get();
+    }
+
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    /**
+     * Stops the worker threads, waiting a short while for messages already
+     * being sent, including those still waiting for their first attempt.
+     * Pending retries are abandoned.
+     */
+    public void close() {
+        workers.shutdown();
+        try {
+            workers.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Makes a single delivery attempt, scheduling a retry if it fails and
+     * attempts remain.
+     *
+     * @param delivery The message to deliver
+     * @param attemptNumber Which attempt this is, starting from 1
+     */
+    private void attempt(Delivery delivery, int attemptNumber) {
+        try {
+            transport.send(delivery.contactAddress, delivery.message);
+            sent.increment();
+            outstanding.decrementAndGet();
+        } catch (RuntimeException e) {
+            if (attemptNumber >= MAXIMUM_ATTEMPTS || workers.isShutdown()) {
+                e.printStackTrace();
+                failed.increment();
+                outstanding.decrementAndGet();
+                return;
+            }
+
+            long backoff = INITIAL_BACKOFF_MILLIS << (attemptNumber - 1);
+            try {
+                workers.schedule(() -> attempt(delivery, attemptNumber + 1),
+                        backoff, TimeUnit.MILLISECONDS);
+                retries.increment();
+            } catch (RejectedExecutionException rejected) {
+                // The dispatcher was closed since the check above
+                dropped.increment();
+                outstanding.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * A message waiting to be delivered
+     */
+    private static class Delivery {
+
+        /**
+         * The address to deliver to
+         */
+        private final String contactAddress;
+        /**
+         * The message to deliver. This may be replaced until the first attempt
+         * begins.
+         */
+        private volatile String message;
+
+        Delivery(String contactAddress, String message) {
+            this.contactAddress = contactAddress;
+            this.message = message;
+        }
+    }
+}
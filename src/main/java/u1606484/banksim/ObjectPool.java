@@ -0,0 +1,113 @@
+package u1606484.banksim;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * A bounded pool of reusable objects which are expensive to create but not
+ * thread-safe, such as {@link javax.crypto.Mac}s and {@link
+ * java.security.MessageDigest}s.
+ *
+ * <p>Objects are borrowed for the duration of a single operation and then
+ * released, rather than kept per thread. A {@link ThreadLocal} would create
+ * one for every thread which ever used it, which with virtual threads is one
+ * for nearly every request, and would never reuse any of them. If no object
+ * is idle, a new one is created. At most a fixed number are kept idle, so a
+ * burst of requests does not leave a pile of objects behind it.
+ *
+ * <p>Idle objects are held in a fixed array of slots, each taken and filled
+ * with a compare-and-set, so borrowing and releasing take no lock and
+ * allocate nothing. Each thread starts searching at a different slot, so
+ * threads rarely compete for the same one.
+ *
+ * @param <T> The type of object pooled
+ */
+public final class ObjectPool<T> {
+
+    /**
+     * The maximum number of idle objects kept, if not specified
+     */
+    private static final int DEFAULT_CAPACITY = 2 * Runtime.getRuntime()
+            .availableProcessors();
+
+    /**
+     * Creates new objects when none are idle
+     */
+    private final Supplier<T> factory;
+    /**
+     * Objects waiting to be borrowed. Empty slots hold null.
+     */
+    private final AtomicReferenceArray<T> idle;
+
+    /**
+     * Creates a pool keeping up to twice as many idle objects as there are
+     * processors
+     *
+     * @param factory Creates new objects when none are idle
+     */
+    public ObjectPool(Supplier<T> factory) {
+        this(factory, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a pool keeping up to a given number of idle objects
+     *
+     * @param factory Creates new objects when none are idle
+     * @param capacity The maximum number of idle objects to keep
+     */
+    public ObjectPool(Supplier<T> factory, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.factory = factory;
+        this.idle = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Takes an idle object, or creates one if none are idle. It must be
+     * released once finished with, and not used afterwards.
+     *
+     * @return An object for the caller's sole use
+     */
+    public T borrow() {
+        int capacity = idle.length();
+        int start = firstSlot(capacity);
+        for (int i = 0; i < capacity; i++) {
+            int slot = (start + i) % capacity;
+            T t = idle.get(slot);
+            if (t != null && idle.compareAndSet(slot, t, null)) {
+                return t;
+            }
+        }
+
+        return factory.get();
+    }
+
+    /**
+     * Returns a borrowed object to the pool, or discards it if the pool
+     * already holds as many idle objects as it may
+     *
+     * @param t The object, which the caller must no longer use
+     */
+    public void release(T t) {
+        int capacity = idle.length();
+        int start = firstSlot(capacity);
+        for (int i = 0; i < capacity; i++) {
+            int slot = (start + i) % capacity;
+            if (idle.get(slot) == null && idle.compareAndSet(slot, null, t)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Chooses the slot the current thread starts searching from, so that
+     * threads spread out across the slots
+     *
+     * @param capacity The number of slots
+     * @return The slot to start from
+     */
+    private static int firstSlot(int capacity) {
+        return (int) (Thread.currentThread().getId() % capacity);
+    }
+}
@@ -0,0 +1,137 @@
+package u1606484.banksim;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import u1606484.banksim.interfaces.IOtacGenerator;
+
+/**
+ * Remembers the OTAC computed for each secret key and window, so that sending
+ * a code, and each attempt to verify against it, only computes the HMAC once
+ * per window.
+ *
+ * <p>Entries are kept only while their window could still be accepted. Once
+ * the current window moves on, older entries are removed. The cache is also
+ * bounded in size, and is simply emptied if it ever grows past {@value
+ * MAXIMUM_SIZE} entries.
+ *
+ * <p>Secret keys are held by reference, so arrays passed to this class must
+ * not be modified afterwards.
+ */
+class OtacCodeCache {
+
+    /**
+     * The maximum number of codes held at once
+     */
+    private static final int MAXIMUM_SIZE = 10000;
+
+    /**
+     * The generator used to compute codes which are not cached
+     */
+    private final IOtacGenerator generator;
+    /**
+     * How many windows back from the latest seen a code is kept for
+     */
+    private final int retainedWindows;
+    /**
+     * Cached codes, keyed by secret key and window
+     */
+    private final ConcurrentHashMap<Key, Integer> codes =
+            new ConcurrentHashMap<>();
+    /**
+     * The latest window a code has been requested for
+     */
+    private final AtomicLong latestWindow = new AtomicLong(Long.MIN_VALUE);
+
+    OtacCodeCache(IOtacGenerator generator, int retainedWindows) {
+        this.generator = generator;
+        this.retainedWindows = retainedWindows;
+    }
+
+    /**
+     * Gets the code for a secret key in a given window, computing it if it is
+     * not already cached.
+     *
+     * @param secretKey The secret key to use for code generation
+     * @param window The window to get the code for, as given by {@link
+     * IOtacGenerator#getTimestamp(long, int)}
+     * @return The code, as a number
+     */
+    int getCode(byte[] secretKey, long window) {
+        advanceTo(window);
+
+        if (codes.size() >= MAXIMUM_SIZE) {
+            codes.clear();
+        }
+
+        return codes.computeIfAbsent(new Key(secretKey, window),
+                k -> generator.generateCode(secretKey, window));
+    }
+
+    /**
+     * Gets the number of codes currently cached
+     *
+     * @return The number of cached codes
+     */
+    int size() {
+        return codes.size();
+    }
+
+    /**
+     * Records that a window has been requested, and if it is newer than any
+     * seen so far, removes codes for windows which can no longer be accepted.
+     *
+     * @param window The window being requested
+     */
+    private void advanceTo(long window) {
+        long latest = latestWindow.get();
+        while (window > latest) {
+            if (latestWindow.compareAndSet(latest, window)) {
+                long oldest = window - retainedWindows;
+                codes.keySet().removeIf(k -> k.window < oldest);
+                return;
+            }
+            latest = latestWindow.get();
+        }
+    }
+
+    /**
+     * A secret key and window pair
+     */
+    private static class Key {
+
+        /**
+         * The secret key
+         */
+        private final byte[] secretKey;
+        /**
+         * The window
+         */
+        private final long window;
+        /**
+         * The hash code, computed once
+         */
+        private final int hash;
+
+        Key(byte[] secretKey, long window) {
+            this.secretKey = secretKey;
+            this.window = window;
+            this.hash = 31 * Arrays.hashCode(secretKey) + Long.hashCode(window);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key k = (Key) o;
+            return window == k.window && Arrays.equals(secretKey, k.secretKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
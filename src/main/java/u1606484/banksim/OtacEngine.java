@@ -0,0 +1,158 @@
+package u1606484.banksim;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Computes RFC 6238 (TOTP) codes directly from a raw secret key and a
+ * counter, using HMAC-SHA512.
+ *
+ * <p>{@link Mac} instances, along with buffers for the counter and the
+ * resulting hash, are borrowed from an {@link ObjectPool}, so computing a
+ * code does not look up a provider, or convert anything to or from
+ * hexadecimal strings. Codes are produced as integers, and only formatted as
+ * text when asked to.
+ */
+class OtacEngine {
+
+    /**
+     * The HMAC algorithm used, as named by the JCE
+     */
+    private static final String ALGORITHM = "HmacSHA512";
+    /**
+     * Powers of ten, used to reduce a truncated hash to the right number of
+     * digits
+     */
+    private static final int[] DIGITS_POWER
+            // 0  1   2    3     4      5       6        7
+            = {1, 10, 100, 1000, 10000, 100000, 1000000, 10000000,
+            // 8
+            100000000};
+
+    /**
+     * Mac instances and their buffers not currently in use
+     */
+    private static final ObjectPool<Hmac> HMACS = new ObjectPool<>(Hmac::new);
+
+    /**
+     * The number of digits in a code
+     */
+    private final int digitCount;
+
+    OtacEngine(int digitCount) {
+        if (digitCount <= 0 || digitCount >= DIGITS_POWER.length) {
+            throw new IllegalArgumentException("Unsupported digit count");
+        }
+
+        this.digitCount = digitCount;
+    }
+
+    /**
+     * Gets the number of digits in codes produced by this engine
+     *
+     * @return The number of digits in a code
+     */
+    int getDigitCount() {
+        return digitCount;
+    }
+
+    /**
+     * Computes the code for a secret key at a given counter value (for TOTP,
+     * the number of time steps since the epoch).
+     *
+     * @param secretKey The raw secret key
+     * @param counter The counter value to compute the code for
+     * @return The code, as an integer below {@code 10^digitCount}
+     */
+    int generateCode(byte[] secretKey, long counter) {
+        Hmac h = HMACS.borrow();
+        byte[] message = h.counter;
+        byte[] hash = h.hash;
+        int binary;
+
+        try {
+            for (int i = message.length - 1; i >= 0; i--) {
+                message[i] = (byte) counter;
+                counter >>>= 8;
+            }
+
+            try {
+                h.mac.init(new SecretKeySpec(secretKey, "RAW"));
+                h.mac.update(message);
+                h.mac.doFinal(hash, 0);
+            } catch (InvalidKeyException | ShortBufferException e) {
+                throw new IllegalStateException(e);
+            }
+
+            // Dynamic truncation, as described by RFC 4226
+            int offset = hash[hash.length - 1] & 0xf;
+            binary = ((hash[offset] & 0x7f) << 24)
+                    | ((hash[offset + 1] & 0xff) << 16)
+                    | ((hash[offset + 2] & 0xff) << 8)
+                    | (hash[offset + 3] & 0xff);
+        } finally {
+            HMACS.release(h);
+        }
+
+        return binary % DIGITS_POWER[digitCount];
+    }
+
+    /**
+     * Writes a code into a character array as decimal digits, padded with
+     * leading zeros to the full digit count.
+     *
+     * @param code The code to write
+     * @param destination The array to write into
+     * @param offset The position in the array of the first digit
+     */
+    void writeDigits(int code, char[] destination, int offset) {
+        for (int i = offset + digitCount - 1; i >= offset; i--) {
+            destination[i] = (char) ('0' + code % 10);
+            code /= 10;
+        }
+    }
+
+    /**
+     * Formats a code as a string of decimal digits, padded with leading zeros
+     * to the full digit count.
+     *
+     * @param code The code to format
+     * @return The formatted code
+     */
+    String format(int code) {
+        char[] digits = new char[digitCount];
+        writeDigits(code, digits, 0);
+        return new String(digits);
+    }
+
+    /**
+     * A Mac instance, with buffers for its input and output
+     */
+    private static class Hmac {
+
+        /**
+         * Computes the HMAC
+         */
+        private final Mac mac;
+        /**
+         * The big-endian counter
+         */
+        private final byte[] counter = new byte[Long.BYTES];
+        /**
+         * The HMAC result
+         */
+        private final byte[] hash;
+
+        Hmac() {
+            try {
+                mac = Mac.getInstance(ALGORITHM);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("No such HMAC algorithm", e);
+            }
+            hash = new byte[mac.getMacLength()];
+        }
+    }
+}
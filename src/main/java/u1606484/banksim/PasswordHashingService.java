@@ -0,0 +1,353 @@
+package u1606484.banksim;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import u1606484.banksim.databases.PasswordData;
+import u1606484.banksim.interfaces.IPasswordHasher;
+
+/**
+ * Hashes and verifies passwords on a dedicated, bounded pool of worker
+ * threads.
+ *
+ * <p>Password hashing is deliberately expensive. Running it on request
+ * threads would let a flood of login attempts occupy every CPU, starving
+ * every other request. Instead, at most a fixed number of hashes are computed
+ * at once, however many requests are waiting for them; the requests simply
+ * wait. If even the queue of waiting hashes fills, further attempts are
+ * rejected immediately rather than queueing without bound.
+ *
+ * <p>Work which is rejected, or which the caller gives up waiting for, fails
+ * with a {@link BusyException}, so that callers can tell a busy service apart
+ * from a wrong password.
+ *
+ * <p>New passwords are always hashed with the current scheme and work
+ * factor, from {@link SecurityService#PASSWORD_HASH_VERSION} and {@link
+ * SecurityService#PASSWORD_WORK_FACTOR}. Stored passwords are verified with
+ * whichever scheme they were hashed with, and {@link
+ * PasswordHashingService#needsRehash} reports when they should be upgraded.
+ *
+ * <p>An attempt against an account which does not exist is checked against
+ * a dummy password with {@link PasswordHashingService#verifyMissing}, so that
+ * it takes as long as one against an account which does, and response times
+ * do not reveal which accounts exist.
+ */
+public class PasswordHashingService {
+
+    /**
+     * The maximum number of hashes waiting for a worker
+     */
+    private static final int QUEUE_CAPACITY = 256;
+    /**
+     * How long a caller will wait for a hash before giving up, in
+     * milliseconds
+     */
+    private static final long TIMEOUT_MILLIS = 10 * 1000;
+
+    /**
+     * Every known hashing scheme, keyed by version
+     */
+    private final Map<Integer, IPasswordHasher> hashers = new HashMap<>();
+    /**
+     * The scheme new passwords are hashed with
+     */
+    private final IPasswordHasher current;
+    /**
+     * The work factor new passwords are hashed with
+     */
+    private final int workFactor;
+    /**
+     * A password no attempt matches, hashed with the current scheme and work
+     * factor, to check attempts against accounts which do not exist
+     */
+    private final PasswordData missing;
+    /**
+     * The threads hashing is performed on
+     */
+    private final ThreadPoolExecutor workers;
+    /**
+     * The number of hashes rejected because the queue was full
+     */
+    private final LongAdder rejected = new LongAdder();
+    /**
+     * The number of hashes the caller gave up waiting for
+     */
+    private final LongAdder timedOut = new LongAdder();
+
+    /**
+     * Creates a service hashing with the current scheme and work factor
+     *
+     * @param concurrency The maximum number of hashes computed at once
+     */
+    public PasswordHashingService(int concurrency) {
+        this(concurrency, SecurityService.PASSWORD_HASH_VERSION,
+                SecurityService.PASSWORD_WORK_FACTOR);
+    }
+
+    /**
+     * Creates a service hashing with a specific scheme and work factor
+     *
+     * @param concurrency The maximum number of hashes computed at once
+     * @param version The version of the scheme to hash new passwords with
+     * @param workFactor The work factor to hash new passwords with
+     */
+    public PasswordHashingService(int concurrency, int version,
+            int workFactor) {
+        register(new LegacyPasswordHasher());
+        register(new Pbkdf2PasswordHasher());
+
+        this.current = hashers.get(version);
+        if (current == null) {
+            throw new IllegalArgumentException(
+                    "Unknown hashing scheme " + version);
+        }
+        this.workFactor = workFactor;
+        // Verifying hashes in full whatever the stored hash is, so a random
+        // one costs the same as a real one
+        this.missing = new PasswordData(SecurityService.getSalt(),
+                SecurityService.getSalt(), current.getVersion(), workFactor);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(concurrency, concurrency,
+                0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), r -> {
+            Thread t = new Thread(r,
+                    "password-hasher-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Hashes a new password with a freshly generated salt, using the current
+     * scheme and work factor. The calling thread waits for the result.
+     *
+     * @param plaintext The plaintext password
+     * @return The hashed password, ready to be stored
+     * @throws BusyException If the hashing pool is saturated, or the hash took
+     * too long
+     * @throws IllegalStateException If the hash failed
+     */
+    public PasswordData hash(String plaintext) {
+        return await(hashAsync(plaintext));
+    }
+
+    /**
+     * Hashes a new password with a freshly generated salt, using the current
+     * scheme and work factor, without waiting for the result.
+     *
+     * @param plaintext The plaintext password
+     * @return A future completing with the hashed password. It completes
+     * exceptionally with a {@link BusyException} if the hashing pool is
+     * saturated.
+     */
+    public CompletableFuture<PasswordData> hashAsync(String plaintext) {
+        return submit(() -> {
+            byte[] salt = SecurityService.getSalt();
+            return new PasswordData(current.hash(plaintext, salt, workFactor),
+                    salt, current.getVersion(), workFactor);
+        });
+    }
+
+    /**
+     * Checks whether an attempted password matches a stored one, using the
+     * scheme the stored password was hashed with. The calling thread waits
+     * for the result.
+     *
+     * @param attempt The attempted password in plaintext
+     * @param stored The stored password
+     * @return If the passwords match, true. Otherwise false.
+     * @throws BusyException If the password could not be checked because the
+     * hashing pool is saturated, or the check took too long
+     * @throws IllegalStateException If the stored password was hashed with an
+     * unknown scheme, or the check failed
+     */
+    public boolean verify(String attempt, PasswordData stored) {
+        return await(verifyAsync(attempt, stored));
+    }
+
+    /**
+     * Checks whether an attempted password matches a stored one, using the
+     * scheme the stored password was hashed with, without waiting for the
+     * result.
+     *
+     * @param attempt The attempted password in plaintext
+     * @param stored The stored password
+     * @return A future completing with true if the passwords match, or false
+     * if they do not. It completes exceptionally with a {@link
+     * BusyException} if the hashing pool is saturated, or with an {@link
+     * IllegalStateException} if the stored password was hashed with an
+     * unknown scheme.
+     */
+    public CompletableFuture<Boolean> verifyAsync(String attempt,
+            PasswordData stored) {
+        IPasswordHasher hasher = hashers.get(stored.getHashVersion());
+        if (hasher == null) {
+            return failed(new IllegalStateException(
+                    "Unknown hashing scheme " + stored.getHashVersion()));
+        }
+
+        return submit(() -> hasher.verify(attempt, stored.getPasswordSalt(),
+                stored.getPasswordHash(), stored.getPasses()));
+    }
+
+    /**
+     * Does the same work as checking an attempted password against one stored
+     * with the current scheme and work factor, for an account which does not
+     * exist. The calling thread waits for the result.
+     *
+     * @param attempt The attempted password in plaintext
+     * @return False, once the work is done
+     * @throws BusyException If the work could not be done because the hashing
+     * pool is saturated, or it took too long
+     */
+    public boolean verifyMissing(String attempt) {
+        return await(verifyMissingAsync(attempt));
+    }
+
+    /**
+     * Does the same work as checking an attempted password against one stored
+     * with the current scheme and work factor, for an account which does not
+     * exist, without waiting for the result.
+     *
+     * @param attempt The attempted password in plaintext
+     * @return A future completing with false once the work is done. It
+     * completes exceptionally with a {@link BusyException} if the hashing
+     * pool is saturated.
+     */
+    public CompletableFuture<Boolean> verifyMissingAsync(String attempt) {
+        return verifyAsync(attempt, missing).thenApply(match -> false);
+    }
+
+    /**
+     * Checks whether a stored password was hashed with an older scheme, or a
+     * lower work factor, than new passwords are.
+     *
+     * @param stored The stored password
+     * @return If the password should be re-hashed, true. Otherwise false.
+     */
+    public boolean needsRehash(PasswordData stored) {
+        return stored.getHashVersion() != current.getVersion()
+                || stored.getPasses() < workFactor;
+    }
+
+    /**
+     * Gets the number of hashes either being computed or waiting for a
+     * worker
+     *
+     * @return The number of outstanding hashes
+     */
+    public int getOutstandingCount() {
+        return workers.getActiveCount() + workers.getQueue().size();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getTimedOutCount() {
+        return timedOut.sum();
+    }
+
+    /**
+     * Stops the worker threads, waiting a short while for any hashes already
+     * queued to finish.
+     */
+    public void close() {
+        workers.shutdown();
+        try {
+            workers.awaitTermination(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds a scheme to those passwords can be verified with
+     *
+     * @param hasher The scheme to add
+     */
+    private void register(IPasswordHasher hasher) {
+        hashers.put(hasher.getVersion(), hasher);
+    }
+
+    /**
+     * Runs some work on the hashing pool
+     *
+     * @param work The work to run
+     * @param <T> The type of result the work produces
+     * @return A future completing with the result, or exceptionally with a
+     * {@link BusyException} if the pool rejected the work
+     */
+    private <T> CompletableFuture<T> submit(Supplier<T> work) {
+        try {
+            return CompletableFuture.supplyAsync(work, workers);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return failed(new BusyException("Hashing pool is saturated", e));
+        }
+    }
+
+    /**
+     * Creates a future which has already failed
+     *
+     * @param e The reason it failed
+     * @param <T> The type of result it would have produced
+     * @return The failed future
+     */
+    private static <T> CompletableFuture<T> failed(RuntimeException e) {
+        CompletableFuture<T> failed = new CompletableFuture<>();
+        failed.completeExceptionally(e);
+        return failed;
+    }
+
+    /**
+     * Waits for a hashing result
+     *
+     * @param future The pending result
+     * @param <T> The type of the result
+     * @return The result
+     * @throws BusyException If the work was rejected, or did not complete in
+     * time
+     * @throws IllegalStateException If the work failed
+     */
+    private <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            timedOut.increment();
+            throw new BusyException("Timed out waiting for hash", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BusyException) {
+                throw (BusyException) e.getCause();
+            }
+            throw new IllegalStateException("Hashing failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for hash", e);
+        }
+    }
+
+    /**
+     * Thrown when a hash could not be computed because the service is too
+     * busy, rather than because anything is wrong with the password. Callers
+     * should ask the customer to try again later.
+     */
+    public static class BusyException extends IllegalStateException {
+
+        private static final long serialVersionUID = 1L;
+
+        BusyException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
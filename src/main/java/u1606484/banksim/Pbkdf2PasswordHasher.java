@@ -0,0 +1,73 @@
+package u1606484.banksim;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import u1606484.banksim.interfaces.IPasswordHasher;
+
+/**
+ * Hashes passwords with PBKDF2, using HMAC-SHA256 as its pseudorandom
+ * function. The work factor is the number of PBKDF2 iterations.
+ */
+class Pbkdf2PasswordHasher implements IPasswordHasher {
+
+    /**
+     * The version stored alongside passwords hashed with this scheme
+     */
+    static final int VERSION = 1;
+    /**
+     * The key derivation algorithm, as named by the JCE
+     */
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    /**
+     * The length of the resulting hash, in bits
+     */
+    private static final int HASH_LENGTH_BITS = 256;
+
+    /**
+     * Key factories not currently in use, since they are not thread-safe
+     */
+    private static final ObjectPool<SecretKeyFactory> FACTORIES =
+            new ObjectPool<>(() -> {
+                try {
+                    return SecretKeyFactory.getInstance(ALGORITHM);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(
+                            "No such key derivation algorithm", e);
+                }
+            });
+
+    @Override
+    public int getVersion() {
+        return VERSION;
+    }
+
+    /**
+     * Hashes a password
+     *
+     * @param plaintext The plaintext password
+     * @param salt The salt to combine with the password
+     * @param workFactor The number of PBKDF2 iterations
+     * @return The password hash
+     */
+    @Override
+    public byte[] hash(String plaintext, byte[] salt, int workFactor) {
+        if (workFactor <= 0) {
+            throw new IllegalArgumentException(
+                    "Work factor must be greater than 0");
+        }
+
+        PBEKeySpec spec = new PBEKeySpec(plaintext.toCharArray(), salt,
+                workFactor, HASH_LENGTH_BITS);
+        SecretKeyFactory factory = FACTORIES.borrow();
+        try {
+            return factory.generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            FACTORIES.release(factory);
+            spec.clearPassword();
+        }
+    }
+}
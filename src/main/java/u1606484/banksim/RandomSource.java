@@ -0,0 +1,292 @@
+package u1606484.banksim;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A source of cryptographically secure random bytes which many threads can
+ * draw from at once without queueing on a single {@link SecureRandom}.
+ *
+ * <p>Requests are served from buffers of {@value BUFFER_SIZE} pre-generated
+ * bytes, each borrowed from an {@link ObjectPool} for a single request, so
+ * that no two threads ever hold the same buffer and no locking is needed.
+ * Only when a buffer runs out is it refilled, in one bulk request to one of
+ * several independently seeded {@link SecureRandom} "stripes". A refilling
+ * thread tries its own stripe first, then any other which is free, and only
+ * waits if every stripe is busy.
+ *
+ * <p>Bytes are never served twice, and are erased from a buffer as soon as
+ * they are served. The counters on this class show how often refills found
+ * stripes busy, so contention can be monitored.
+ */
+public class RandomSource {
+
+    /**
+     * The number of bytes pre-generated in each pooled buffer
+     */
+    private static final int BUFFER_SIZE = 1024;
+    /**
+     * The generator algorithms to use for stripes, in order of preference
+     */
+    private static final String[] STRIPE_ALGORITHMS = {"DRBG", "SHA1PRNG"};
+
+    /**
+     * The generators buffers are refilled from
+     */
+    private final SecureRandom[] stripes;
+    /**
+     * One lock per stripe, since SecureRandom offers no non-blocking access
+     */
+    private final ReentrantLock[] locks;
+    /**
+     * Buffers of pre-generated bytes not currently in use
+     */
+    private final ObjectPool<Buffer> buffers = new ObjectPool<>(Buffer::new);
+    /**
+     * The number of times a buffer has been refilled
+     */
+    private final LongAdder refills = new LongAdder();
+    /**
+     * The number of times a refill found a stripe busy and moved on
+     */
+    private final LongAdder contended = new LongAdder();
+    /**
+     * The number of times a refill found every stripe busy, and had to wait
+     */
+    private final LongAdder blocked = new LongAdder();
+    /**
+     * The number of bytes handed out
+     */
+    private final LongAdder served = new LongAdder();
+
+    /**
+     * Creates a source with twice as many stripes as there are processors
+     */
+    public RandomSource() {
+        this(2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a source with a given number of stripes
+     *
+     * @param stripeCount The number of independent generators to use
+     */
+    public RandomSource(int stripeCount) {
+        if (stripeCount <= 0) {
+            throw new IllegalArgumentException(
+                    "Stripe count must be positive");
+        }
+
+        stripes = new SecureRandom[stripeCount];
+        locks = new ReentrantLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = newStripe();
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Creates a generator for a single stripe. The platform default on Linux,
+     * NativePRNG, serialises every instance on one global lock, which would
+     * defeat striping, so a generator holding its own state is preferred:
+     * DRBG where available (Java 9 onwards), otherwise SHA1PRNG. Each is
+     * seeded from the platform's entropy source on first use.
+     *
+     * @return A new, independent generator
+     */
+    private static SecureRandom newStripe() {
+        for (String algorithm : STRIPE_ALGORITHMS) {
+            try {
+                return SecureRandom.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                // Try the next algorithm
+            }
+        }
+        return new SecureRandom();
+    }
+
+    /**
+     * Fills an array with random bytes
+     *
+     * @param destination The array to fill
+     */
+    public void nextBytes(byte[] destination) {
+        if (destination.length > BUFFER_SIZE) {
+            // Too large to be worth buffering
+            fill(destination);
+        } else {
+            Buffer b = buffers.borrow();
+            try {
+                b.take(destination, 0, destination.length);
+            } finally {
+                buffers.release(b);
+            }
+        }
+        served.add(destination.length);
+    }
+
+    /**
+     * Gets a uniformly distributed random integer from 0 (inclusive) to a
+     * bound (exclusive)
+     *
+     * @param bound The upper bound, which must be positive
+     * @return A random integer below the bound
+     */
+    public int nextInt(int bound) {
+        if (bound <= 0) {
+            throw new IllegalArgumentException("Bound must be positive");
+        }
+
+        // Values from the top, incomplete range are rejected, as
+        // Random#nextInt does, so that every result is equally likely
+        int limit = Integer.MAX_VALUE - (Integer.MAX_VALUE % bound);
+        int value;
+        Buffer b = buffers.borrow();
+        try {
+            do {
+                value = b.nextInt() & Integer.MAX_VALUE;
+            } while (value >= limit);
+        } finally {
+            buffers.release(b);
+        }
+
+        served.add(Integer.BYTES);
+        return value % bound;
+    }
+
+    /**
+     * Gets a random long, every value being equally likely
+     *
+     * @return A random long
+     */
+    public long nextLong() {
+        long value;
+        Buffer b = buffers.borrow();
+        try {
+            value = ((long) b.nextInt() << 32) | (b.nextInt() & 0xffffffffL);
+        } finally {
+            buffers.release(b);
+        }
+
+        served.add(Long.BYTES);
+        return value;
+    }
+
+    public long getRefillCount() {
+        return refills.sum();
+    }
+
+    public long getContendedCount() {
+        return contended.sum();
+    }
+
+    public long getBlockedCount() {
+        return blocked.sum();
+    }
+
+    public long getBytesServed() {
+        return served.sum();
+    }
+
+    /**
+     * Fills an array directly from a stripe, preferring the calling thread's
+     * own stripe, then any free stripe, and only waiting if all are busy.
+     *
+     * @param destination The array to fill
+     */
+    private void fill(byte[] destination) {
+        int home = (int) (Thread.currentThread().getId() % stripes.length);
+
+        for (int i = 0; i < stripes.length; i++) {
+            int stripe = (home + i) % stripes.length;
+            if (locks[stripe].tryLock()) {
+                try {
+                    stripes[stripe].nextBytes(destination);
+                    return;
+                } finally {
+                    locks[stripe].unlock();
+                }
+            }
+            contended.increment();
+        }
+
+        blocked.increment();
+        locks[home].lock();
+        try {
+            stripes[home].nextBytes(destination);
+        } finally {
+            locks[home].unlock();
+        }
+    }
+
+    /**
+     * A buffer of pre-generated bytes, used by one thread at a time
+     */
+    private class Buffer {
+
+        /**
+         * The pre-generated bytes
+         */
+        private final byte[] bytes = new byte[BUFFER_SIZE];
+        /**
+         * The index of the next unused byte. Starts exhausted, so the buffer
+         * is filled upon first use.
+         */
+        private int position = BUFFER_SIZE;
+
+        /**
+         * Copies bytes out of the buffer, refilling it whenever it runs out
+         *
+         * @param destination The array to copy into
+         * @param offset The first index to copy to
+         * @param length The number of bytes to copy
+         */
+        void take(byte[] destination, int offset, int length) {
+            while (length > 0) {
+                if (position == BUFFER_SIZE) {
+                    refill();
+                }
+
+                int n = Math.min(length, BUFFER_SIZE - position);
+                System.arraycopy(bytes, position, destination, offset, n);
+                // Never leave used bytes lying around in memory
+                Arrays.fill(bytes, position, position + n, (byte) 0);
+                position += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        /**
+         * Takes four bytes from the buffer as an integer
+         *
+         * @return A random integer
+         */
+        int nextInt() {
+            if (BUFFER_SIZE - position < Integer.BYTES) {
+                refill();
+            }
+
+            int value = ((bytes[position] & 0xff) << 24)
+                    | ((bytes[position + 1] & 0xff) << 16)
+                    | ((bytes[position + 2] & 0xff) << 8)
+                    | (bytes[position + 3] & 0xff);
+            Arrays.fill(bytes, position, position + Integer.BYTES,
+                    (byte) 0);
+            position += Integer.BYTES;
+            return value;
+        }
+
+        /**
+         * Replaces the whole buffer with freshly generated bytes
+         */
+        private void refill() {
+            fill(bytes);
+            position = 0;
+            refills.increment();
+        }
+    }
+}
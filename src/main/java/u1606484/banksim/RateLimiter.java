@@ -0,0 +1,302 @@
+package u1606484.banksim;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits how often each key, such as an IP address or account ID, may do
+ * something, using a token bucket per key, without locking and in a fixed
+ * amount of memory.
+ *
+ * <p>Each key may act {@code capacity} times in a burst, and then once per
+ * refill interval. Every bucket is packed into a single {@code long} in a
+ * fixed table, so taking a token is one compare-and-set, and the table never
+ * grows however many keys are seen:
+ *
+ * <pre>
+ * | tag: 24 bits | tokens: 16 bits | last refill: 24 bits |
+ * </pre>
+ *
+ * <p>A key hashes to a group of {@value PROBE_LENGTH} adjacent slots, and is
+ * told apart from other keys in the group by a 24-bit tag. A key with no
+ * bucket takes over whichever slot in its group holds the most tokens. Once a
+ * bucket has refilled completely it is no different to a new one, so taking
+ * over a full bucket loses nothing; only if every slot in a group is in use by
+ * a key which has recently been limited is some of that state lost, which is
+ * counted as an eviction.
+ *
+ * <p>Refill times are kept in ticks of {@value TICK_MILLIS} milliseconds,
+ * which wrap after about 19 days. A bucket left untouched for that long may
+ * appear to have been used recently, which can only make it stricter, and
+ * only until its next refill.
+ */
+public class RateLimiter {
+
+    /**
+     * The number of slots in a table, if not specified
+     */
+    public static final int DEFAULT_SLOT_COUNT = 1 << 16;
+
+    private static final int TAG_BITS = 24;
+    private static final int TOKEN_BITS = 16;
+    private static final int TIME_BITS = 24;
+    private static final long TAG_MASK = (1L << TAG_BITS) - 1;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+    /**
+     * The number of units each token is divided into, so that fractions of a
+     * token can accumulate between refills
+     */
+    private static final int UNITS_PER_TOKEN = 64;
+    /**
+     * The length of a tick of the refill clock, in milliseconds
+     */
+    private static final long TICK_MILLIS = 100;
+    /**
+     * The number of adjacent slots a key may occupy. Eight slots fill a
+     * typical cache line, so a group of four never spans two.
+     */
+    private static final int PROBE_LENGTH = 4;
+
+    /**
+     * The buckets, each packed into a long. Zero marks an empty slot.
+     */
+    private final AtomicLongArray slots;
+    /**
+     * Selects a slot index from a hash
+     */
+    private final int indexMask;
+    /**
+     * The most units a bucket can hold
+     */
+    private final int capacityUnits;
+    /**
+     * The number of units each bucket gains per tick
+     */
+    private final double unitsPerTick;
+    /**
+     * Reads the time in nanoseconds, like {@link System#nanoTime()}
+     */
+    private final LongSupplier nanoTime;
+    /**
+     * When the refill clock started, from {@link RateLimiter#nanoTime}
+     */
+    private final long origin;
+
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder limited = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    /**
+     * Creates a rate limiter with the default number of slots
+     *
+     * @param capacity The number of times a key may act in a burst
+     * @param refillMillis How long it takes a key to earn one more action,
+     * in milliseconds
+     */
+    public RateLimiter(int capacity, long refillMillis) {
+        this(DEFAULT_SLOT_COUNT, capacity, refillMillis);
+    }
+
+    /**
+     * Creates a rate limiter
+     *
+     * @param slotCount The number of buckets to hold, which must be a power
+     * of two, and at least {@value PROBE_LENGTH}. Each takes 8 bytes.
+     * @param capacity The number of times a key may act in a burst
+     * @param refillMillis How long it takes a key to earn one more action,
+     * in milliseconds
+     */
+    public RateLimiter(int slotCount, int capacity, long refillMillis) {
+        this(slotCount, capacity, refillMillis, System::nanoTime);
+    }
+
+    /**
+     * Creates a rate limiter which reads the time from a given clock, so that
+     * tests can control how quickly buckets refill
+     *
+     * @param slotCount The number of buckets to hold, which must be a power
+     * of two, and at least {@value PROBE_LENGTH}
+     * @param capacity The number of times a key may act in a burst
+     * @param refillMillis How long it takes a key to earn one more action,
+     * in milliseconds
+     * @param nanoTime Reads the time in nanoseconds, like {@link
+     * System#nanoTime()}
+     */
+    RateLimiter(int slotCount, int capacity, long refillMillis,
+            LongSupplier nanoTime) {
+        if (slotCount < PROBE_LENGTH || Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException(
+                    "Slot count must be a power of two, at least "
+                            + PROBE_LENGTH);
+        }
+        if (capacity <= 0 || capacity * UNITS_PER_TOKEN > TOKEN_MASK) {
+            throw new IllegalArgumentException("Capacity must be from 1 to "
+                    + TOKEN_MASK / UNITS_PER_TOKEN);
+        }
+        if (refillMillis <= 0) {
+            throw new IllegalArgumentException(
+                    "Refill interval must be positive");
+        }
+
+        this.slots = new AtomicLongArray(slotCount);
+        this.indexMask = slotCount - 1;
+        this.capacityUnits = capacity * UNITS_PER_TOKEN;
+        this.unitsPerTick = (double) UNITS_PER_TOKEN * TICK_MILLIS
+                / refillMillis;
+        this.nanoTime = nanoTime;
+        this.origin = nanoTime.getAsLong();
+    }
+
+    /**
+     * Takes a token for a string key, such as an IP address
+     *
+     * @param key The key
+     * @return If the key has a token to spend, true. If it has been limited,
+     * false.
+     */
+    public boolean tryAcquire(String key) {
+        return tryAcquire(mix(key.hashCode()));
+    }
+
+    /**
+     * Takes a token for an integer key, such as an account ID
+     *
+     * @param key The key
+     * @return If the key has a token to spend, true. If it has been limited,
+     * false.
+     */
+    public boolean tryAcquire(int key) {
+        return tryAcquire(mix(key));
+    }
+
+    public long getAllowedCount() {
+        return allowed.sum();
+    }
+
+    public long getLimitedCount() {
+        return limited.sum();
+    }
+
+    public long getEvictedCount() {
+        return evicted.sum();
+    }
+
+    /**
+     * Takes a token from a key's bucket, creating the bucket if the key does
+     * not have one
+     *
+     * @param hash A well-mixed hash of the key
+     * @return If a token was taken, true. Otherwise false.
+     */
+    private boolean tryAcquire(long hash) {
+        long tag = (hash >>> (64 - TAG_BITS)) & TAG_MASK;
+        if (tag == 0) {
+            // Zero marks an empty slot
+            tag = 1;
+        }
+        int first = (int) hash & indexMask & -PROBE_LENGTH;
+
+        retry:
+        while (true) {
+            long now = tick();
+            int candidate = -1;
+            long candidateState = 0;
+            long candidateUnits = -1;
+
+            for (int i = first; i < first + PROBE_LENGTH; i++) {
+                long state = slots.get(i);
+                if (state != 0 && tagOf(state) == tag) {
+                    long units = refill(state, now);
+                    if (units < UNITS_PER_TOKEN) {
+                        // Nothing is written, so refill time keeps counting
+                        // from the last token taken
+                        limited.increment();
+                        return false;
+                    }
+
+                    if (slots.compareAndSet(i, state,
+                            pack(tag, units - UNITS_PER_TOKEN, now))) {
+                        allowed.increment();
+                        return true;
+                    }
+                    continue retry;
+                }
+
+                long units = state == 0 ? capacityUnits : refill(state, now);
+                if (units > candidateUnits) {
+                    candidate = i;
+                    candidateState = state;
+                    candidateUnits = units;
+                }
+            }
+
+            // The key has no bucket, so take over the fullest slot
+            if (slots.compareAndSet(candidate, candidateState,
+                    pack(tag, capacityUnits - UNITS_PER_TOKEN, now))) {
+                if (candidateUnits < capacityUnits) {
+                    evicted.increment();
+                }
+                allowed.increment();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Works out how many units a bucket holds now
+     *
+     * @param state The packed bucket
+     * @param now The current tick
+     * @return The units held, including those earned since the last refill
+     */
+    private long refill(long state, long now) {
+        long elapsed = (now - timeOf(state)) & TIME_MASK;
+        long units = unitsOf(state) + (long) (elapsed * unitsPerTick);
+        return Math.min(units, capacityUnits);
+    }
+
+    /**
+     * Reads the refill clock
+     *
+     * @return The current tick, wrapped to fit in a bucket
+     */
+    private long tick() {
+        long millis = TimeUnit.NANOSECONDS.toMillis(
+                nanoTime.getAsLong() - origin);
+        return (millis / TICK_MILLIS) & TIME_MASK;
+    }
+
+    private static long pack(long tag, long units, long time) {
+        return (tag << (TOKEN_BITS + TIME_BITS)) | (units << TIME_BITS) | time;
+    }
+
+    private static long tagOf(long state) {
+        return state >>> (TOKEN_BITS + TIME_BITS);
+    }
+
+    private static long unitsOf(long state) {
+        return (state >>> TIME_BITS) & TOKEN_MASK;
+    }
+
+    private static long timeOf(long state) {
+        return state & TIME_MASK;
+    }
+
+    /**
+     * Spreads the bits of a key's hash code across a long, so that similar
+     * keys land in different slots and get different tags
+     *
+     * @param h The hash code
+     * @return The mixed hash
+     */
+    private static long mix(int h) {
+        // The finaliser of SplitMix64
+        long z = (h & 0xffffffffL) + 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -2,17 +2,13 @@ package u1606484.banksim;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.util.Random;
-import java.util.function.Supplier;
 
 /**
  * Handles password cryptography, as well as containing a number of important,
  * security-related program constants.
  *
- * The {@code generateSessionKey} method will utilise {@link SecureRandom} to
- * generate a string of lowercase characters. The length of a session key
- * depends upon {@value SESSION_KEY_LENGTH}.
+ * Random salts are drawn from a shared {@link RandomSource}, which is also
+ * used to generate the {@link SessionToken}s sessions are keyed by.
  *
  * <p>The {@code getPasswordHash} method provides the resulting hash of a
  * password after combining plaintext with a salt and iterating over a number of
@@ -22,10 +18,6 @@ import java.util.function.Supplier;
  */
 public class SecurityService {
 
-    /**
-     * The length of a session key in characeters
-     */
-    public static final int SESSION_KEY_LENGTH = 15;
     /**
      * The time before a session expires and a user has to log in again in
      * milliseconds
@@ -36,19 +28,46 @@ public class SecurityService {
      * constant is updated, passwords should be re-hashed upon next login.
      */
     public static final int PASSWORD_HASH_PASSES = 1;
+    /**
+     * The version of the hashing scheme new passwords are hashed with. If
+     * this, or {@link SecurityService#PASSWORD_WORK_FACTOR}, is updated,
+     * passwords are re-hashed upon next login.
+     *
+     * @see PasswordHashingService
+     */
+    public static final int PASSWORD_HASH_VERSION =
+            Pbkdf2PasswordHasher.VERSION;
+    /**
+     * The work factor new passwords are hashed with. For PBKDF2, this is the
+     * number of iterations.
+     */
+    public static final int PASSWORD_WORK_FACTOR = 100000;
     /**
      * The minimum acceptable length of a password, in characters
      */
     public static final int MINIMUM_PASSWORD_LENGTH = 16;
     /**
-     * A random generator used throughout the class to provide cryptographically
-     * secure random numbers
+     * A random source used throughout the class to provide cryptographically
+     * secure random numbers, which many threads can draw from at once
      */
-    private static final Random RANDOM_GENERATOR = new SecureRandom();
+    private static final RandomSource RANDOM_SOURCE = new RandomSource();
     /**
      * The length of a salt, in bytes
      */
     private static final int SALT_LENGTH_DEFAULT = 20;
+    /**
+     * SHA-256 digests not currently in use, so that one need not be looked up
+     * for every hash
+     */
+    private static final ObjectPool<MessageDigest> DIGESTS = new ObjectPool<>(
+            () -> {
+                try {
+                    return MessageDigest.getInstance("SHA-256");
+                } catch (NoSuchAlgorithmException e) {
+                    e.printStackTrace();
+                    throw new IllegalStateException("No such hash algorithm");
+                }
+            });
 
     /**
      * Gets a salt a certain number of bytes long
@@ -58,37 +77,28 @@ public class SecurityService {
      */
     static byte[] getSalt(int byteCount) {
         byte[] bytes = new byte[byteCount];
-        RANDOM_GENERATOR.nextBytes(bytes);
+        RANDOM_SOURCE.nextBytes(bytes);
         return bytes;
     }
 
     /**
-     * Gets a salt the default number of bytes long
+     * Gets the random source used for salts and session keys, so that its
+     * contention can be monitored
      *
-     * @return A salt, with length set by SALT_LENGTH_DEFAULT
-     * @see SecurityService#SALT_LENGTH_DEFAULT
+     * @return The shared random source
      */
-    public static byte[] getSalt() {
-        return getSalt(SALT_LENGTH_DEFAULT);
+    public static RandomSource getRandomSource() {
+        return RANDOM_SOURCE;
     }
 
     /**
-     * Generates a random session key of specified length. Session keys are
-     * lowercase alphabetical characters.
+     * Gets a salt the default number of bytes long
      *
-     * @param length The length of the provided session key in characters
-     * @return A randomly generated alphabetical session key
+     * @return A salt, with length set by SALT_LENGTH_DEFAULT
+     * @see SecurityService#SALT_LENGTH_DEFAULT
      */
-    public static String generateSessionKey(int length) {
-        Supplier<Character> randomHex =
-                () -> (char) (RANDOM_GENERATOR.nextInt('z' - 'a') + 'a');
-
-        StringBuilder key = new StringBuilder();
-        for (int i = 0; i < length; i++) {
-            key.append(randomHex.get());
-        }
-
-        return key.toString();
+    public static byte[] getSalt() {
+        return getSalt(SALT_LENGTH_DEFAULT);
     }
 
     /**
@@ -106,16 +116,14 @@ public class SecurityService {
             throw new IllegalStateException("Repeats must be greater than 0");
         }
 
-        MessageDigest d;
+        // digest() resets the digest, so it is ready for the next use
+        MessageDigest d = DIGESTS.borrow();
         try {
-            d = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            throw new IllegalStateException("No such hash algorithm");
-        }
-
-        for (int i = 0; i < repeats; i++) {
-            message = d.digest(message);
+            for (int i = 0; i < repeats; i++) {
+                message = d.digest(message);
+            }
+        } finally {
+            DIGESTS.release(d);
         }
 
         return message;
@@ -0,0 +1,232 @@
+package u1606484.banksim;
+
+import java.util.Arrays;
+
+/**
+ * A 128-bit random session token.
+ *
+ * <p>Tokens are held as two {@code long}s, so that generating, comparing and
+ * hashing one never touches an array, and are stored in the database as
+ * {@value BYTE_LENGTH} raw bytes. In the {@code session_token} cookie they are
+ * written as {@value ENCODED_LENGTH} characters of URL-safe base64 (RFC 4648,
+ * section 5) without padding. Every token has exactly one valid encoding;
+ * {@link SessionToken#parse} rejects anything else.
+ */
+public final class SessionToken {
+
+    /**
+     * The length of a token in bytes
+     */
+    public static final int BYTE_LENGTH = 16;
+    /**
+     * The length of an encoded token in characters
+     */
+    public static final int ENCODED_LENGTH = 22;
+
+    /**
+     * The URL-safe base64 alphabet
+     */
+    private static final char[] ENCODE = ("ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+            + "abcdefghijklmnopqrstuvwxyz0123456789-_").toCharArray();
+    /**
+     * The value of each ASCII character in the alphabet, or -1 for
+     * characters outside it
+     */
+    private static final byte[] DECODE = new byte[128];
+
+    static {
+        Arrays.fill(DECODE, (byte) -1);
+        for (int i = 0; i < ENCODE.length; i++) {
+            DECODE[ENCODE[i]] = (byte) i;
+        }
+    }
+
+    /**
+     * The most significant 64 bits
+     */
+    private final long high;
+    /**
+     * The least significant 64 bits
+     */
+    private final long low;
+
+    private SessionToken(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * Generates a new token from the shared, cryptographically secure random
+     * source
+     *
+     * @return A new random token
+     * @see SecurityService#getRandomSource()
+     */
+    public static SessionToken generate() {
+        RandomSource random = SecurityService.getRandomSource();
+        return new SessionToken(random.nextLong(), random.nextLong());
+    }
+
+    /**
+     * Reads a token from its encoded form, as found in a cookie.
+     *
+     * @param text The encoded token
+     * @return The token, or null if the text is not a validly encoded token
+     */
+    public static SessionToken parse(CharSequence text) {
+        if (text == null || text.length() != ENCODED_LENGTH) {
+            return null;
+        }
+
+        long high = 0;
+        long low = 0;
+        // The first 21 characters carry 6 bits each
+        for (int i = 0; i < ENCODED_LENGTH - 1; i++) {
+            int value = decode(text.charAt(i));
+            if (value < 0) {
+                return null;
+            }
+            high = (high << 6) | (low >>> 58);
+            low = (low << 6) | value;
+        }
+
+        // The last carries the final 2 bits, followed by 4 bits of padding
+        // which must be zero
+        int value = decode(text.charAt(ENCODED_LENGTH - 1));
+        if (value < 0 || (value & 0xf) != 0) {
+            return null;
+        }
+        high = (high << 2) | (low >>> 62);
+        low = (low << 2) | (value >>> 4);
+
+        return new SessionToken(high, low);
+    }
+
+    /**
+     * Reads a token from its raw bytes, as stored in the database.
+     *
+     * @param bytes The token's bytes
+     * @return The token, or null if the array is the wrong length
+     */
+    public static SessionToken fromBytes(byte[] bytes) {
+        if (bytes == null || bytes.length != BYTE_LENGTH) {
+            return null;
+        }
+
+        return new SessionToken(readLong(bytes, 0), readLong(bytes, 8));
+    }
+
+    /**
+     * Writes the token in its encoded form, for use in a cookie
+     *
+     * @return The encoded token
+     */
+    public String encode() {
+        char[] text = new char[ENCODED_LENGTH];
+        for (int i = 0; i < ENCODED_LENGTH; i++) {
+            text[i] = ENCODE[sextet(i * 6)];
+        }
+        return new String(text);
+    }
+
+    /**
+     * Gets the token's raw bytes, for storage in the database
+     *
+     * @return A new array holding the token's bytes
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[BYTE_LENGTH];
+        writeLong(bytes, 0, high);
+        writeLong(bytes, 8, low);
+        return bytes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SessionToken)) {
+            return false;
+        }
+
+        SessionToken t = (SessionToken) o;
+        return high == t.high && low == t.low;
+    }
+
+    @Override
+    public int hashCode() {
+        // The bits are random, so any of them make a good hash
+        return (int) low;
+    }
+
+    /**
+     * Redacted, so that tokens are never written to logs by accident
+     *
+     * @return A placeholder
+     */
+    @Override
+    public String toString() {
+        return "SessionToken[redacted]";
+    }
+
+    /**
+     * Gets six bits of the token, treating it as a single 128-bit number
+     * followed by zeros.
+     *
+     * @param position The index of the first bit, counting from the most
+     * significant
+     * @return The six bits, as a number from 0 to 63
+     */
+    private int sextet(int position) {
+        if (position + 6 <= 64) {
+            return (int) (high >>> (58 - position)) & 0x3f;
+        } else if (position < 64) {
+            // Straddles the two halves
+            int fromHigh = 64 - position;
+            return (int) (((high << (6 - fromHigh))
+                    | (low >>> (58 + fromHigh))) & 0x3f);
+        } else if (position + 6 <= 128) {
+            return (int) (low >>> (122 - position)) & 0x3f;
+        } else {
+            // Runs off the end, so is padded with zeros
+            return (int) (low << (position + 6 - 128)) & 0x3f;
+        }
+    }
+
+    /**
+     * Looks up the value of a base64 character
+     *
+     * @param c The character
+     * @return Its value, or -1 if it is not in the alphabet
+     */
+    private static int decode(char c) {
+        return c < DECODE.length ? DECODE[c] : -1;
+    }
+
+    /**
+     * Reads eight bytes as a big-endian long
+     *
+     * @param bytes The array to read from
+     * @param offset The index of the first byte
+     * @return The long
+     */
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Writes a long as eight big-endian bytes
+     *
+     * @param bytes The array to write into
+     * @param offset The index of the first byte
+     * @param value The long
+     */
+    private static void writeLong(byte[] bytes, int offset, long value) {
+        for (int i = offset + 7; i >= offset; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
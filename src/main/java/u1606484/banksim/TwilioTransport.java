@@ -0,0 +1,58 @@
+package u1606484.banksim;
+
+import com.twilio.Twilio;
+import com.twilio.rest.api.v2010.account.Message;
+import com.twilio.type.PhoneNumber;
+import u1606484.banksim.interfaces.IMessageTransport;
+
+/**
+ * Delivers messages by SMS through Twilio's API. Credentials and the sending
+ * number are read from the environment.
+ */
+public class TwilioTransport implements IMessageTransport {
+
+    /**
+     * The account SID to sign in to Twilio with
+     */
+    private static final String ACCOUNT_SID = System
+            .getenv("twilio_account_sid");
+    /**
+     * The API key assigned to the account by twilio
+     */
+    private static final String AUTH_TOKEN = System.getenv("twilio_auth_token");
+    /**
+     * The number messages are sent from
+     */
+    private static final String PHONE_NUMBER = System
+            .getenv("twilio_phone_number");
+
+    /**
+     * Whether the Twilio client has been initialised
+     */
+    private volatile boolean initialised = false;
+
+    /**
+     * Sends a message as an SMS, blocking until Twilio has accepted it. The
+     * Twilio client is initialised on the first send.
+     *
+     * @param contactAddress The phone number to send to
+     * @param message The body of the SMS
+     */
+    @Override
+    public void send(String contactAddress, String message) {
+        if (!initialised) {
+            synchronized (this) {
+                if (!initialised) {
+                    Twilio.init(ACCOUNT_SID, AUTH_TOKEN);
+                    initialised = true;
+                }
+            }
+        }
+
+        Message m = Message.creator(
+                new PhoneNumber(contactAddress),
+                new PhoneNumber(PHONE_NUMBER),
+                message).create();
+        System.out.println(m.getBody());
+    }
+}
@@ -1,10 +1,7 @@
 package u1606484.banksim;
 
-import com.twilio.Twilio;
-import com.twilio.rest.api.v2010.account.Message;
-import com.twilio.rest.api.v2010.account.MessageCreator;
-import com.twilio.type.PhoneNumber;
 import java.security.SecureRandom;
+import u1606484.banksim.interfaces.IMessageTransport;
 import u1606484.banksim.interfaces.IOtacGenerator;
 import u1606484.banksim.interfaces.ITwoFactorService;
 
@@ -12,20 +9,13 @@ import u1606484.banksim.interfaces.ITwoFactorService;
  * An implementation of the {@link ITwoFactorService} interface using Twilio's
  * SMS API.
  *
- * <p>The bulk of the work is handlded by Twilio's API, so this class
- * effectively acts as a wrapper around that API.
+ * <p>Messages are handed to a {@link MessageDispatcher}, which delivers them
+ * in the background, so sending never delays the caller. By default they are
+ * delivered by {@link TwilioTransport}, but any {@link IMessageTransport} may
+ * be supplied instead, such as {@link InMemoryTransport} for tests.
  */
 public class TwoFactorService implements ITwoFactorService {
 
-    /**
-     * The account SID to sign in to Twilio with
-     */
-    private final static String ACCOUNT_SID = System
-            .getenv("twilio_account_sid");
-    /**
-     * The API key assigned to the account by twilio
-     */
-    private final static String AUTH_TOKEN = System.getenv("twilio_auth_token");
     /**
      * The OTAC generator to use when providing OTACs.
      */
@@ -35,11 +25,26 @@ public class TwoFactorService implements ITwoFactorService {
      * provided OTAC may be to still be accepted.
      */
     private final int otacStepWindowCount;
+    /**
+     * Codes already computed for windows which may still be accepted
+     */
+    private final OtacCodeCache codeCache;
+    /**
+     * Delivers messages in the background
+     */
+    private final MessageDispatcher dispatcher;
 
     public TwoFactorService(int otacLength, int otacStepSize,
             int otacStepWindow) {
+        this(otacLength, otacStepSize, otacStepWindow, new TwilioTransport());
+    }
+
+    public TwoFactorService(int otacLength, int otacStepSize,
+            int otacStepWindow, IMessageTransport transport) {
         this.generator = new OtacGenerator(otacLength, otacStepSize);
         this.otacStepWindowCount = otacStepWindow;
+        this.codeCache = new OtacCodeCache(generator, otacStepWindow);
+        this.dispatcher = new MessageDispatcher(transport);
     }
 
     public static void main(String[] arguments) throws InterruptedException {
@@ -55,27 +60,43 @@ public class TwoFactorService implements ITwoFactorService {
     }
 
     /**
-     * Transmits the provided OTAC to the provided address.
+     * Queues the provided OTAC to be transmitted to the provided address, and
+     * returns without waiting for it to be sent.
      *
      * @param contactAddress The phone number / email / etc. to use to transmit
      * the OTAC
      * @param messageBody The OTAC to transmit
+     * @see MessageDispatcher#submit(String, String)
      */
     @Override
     public void sendMessage(String contactAddress, String messageBody) {
-        Twilio.init(ACCOUNT_SID, AUTH_TOKEN);
+        dispatcher.submit(contactAddress, messageBody);
+    }
 
-        MessageCreator messageCreator = Message.creator(
-                new PhoneNumber(contactAddress),
-                new PhoneNumber(System.getenv("twilio_phone_number")),
-                messageBody);
+    /**
+     * Gets the dispatcher delivering this service's messages
+     *
+     * @return The message dispatcher
+     */
+    public MessageDispatcher getDispatcher() {
+        return dispatcher;
+    }
 
-        Message m = messageCreator.create();
-        System.out.println(m.getBody());
+    /**
+     * Stops delivering messages
+     *
+     * @see MessageDispatcher#close()
+     */
+    @Override
+    public void close() {
+        dispatcher.close();
     }
 
     /**
-     * Calls upon the generator to provide an OTAC at a certain offset
+     * Provides an OTAC at a certain offset, padded with leading zeros to the
+     * full digit count. The code is taken from the same cache as {@link
+     * TwoFactorService#generateOtacCode}, so the code sent to a customer is
+     * already cached when they enter it.
      *
      * @param secretKey The secret key to use for OTAC generation
      * @param offset The offset in terms of the number of windows
@@ -83,10 +104,35 @@ public class TwoFactorService implements ITwoFactorService {
      */
     @Override
     public String generateOtac(byte[] secretKey, int offset) {
-        return generator.generateOtac(secretKey,
+        return String.format("%0" + generator.getDigitCount() + "d",
+                generateOtacCode(secretKey, offset));
+    }
+
+    /**
+     * Provides an OTAC at a certain offset as a number, reusing the code
+     * computed for the same key and window if there is one.
+     *
+     * @param secretKey The secret key to use for OTAC generation
+     * @param offset The offset in terms of the number of windows
+     * @return A generated OTAC, as a number
+     * @see OtacCodeCache
+     */
+    @Override
+    public int generateOtacCode(byte[] secretKey, int offset) {
+        return codeCache.getCode(secretKey,
                 generator.getTimestamp(System.currentTimeMillis(), offset));
     }
 
+    /**
+     * Gets the number of digits in an OTAC
+     *
+     * @return The number of digits in an OTAC
+     */
+    @Override
+    public int getOtacLength() {
+        return generator.getDigitCount();
+    }
+
     /**
      * Gets the window count
      *
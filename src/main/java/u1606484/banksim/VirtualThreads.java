@@ -0,0 +1,124 @@
+package u1606484.banksim;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads which block on the database and on message delivery,
+ * as virtual threads where the runtime supports them and they have been asked
+ * for, or as ordinary daemon threads otherwise.
+ *
+ * <p>Virtual threads are enabled by setting the {@code virtual_threads}
+ * environment variable or system property to {@code true}, and need Java 21
+ * or later. The application is still compiled for Java 8, so they are reached
+ * through reflection; on an older runtime the setting is ignored, with a
+ * warning.
+ *
+ * <p>SQLite is called through JNI, which pins a virtual thread to its carrier
+ * for the duration of each statement. Database calls therefore gain little
+ * from virtual threads themselves; the benefit is that threads waiting for a
+ * connection, a password hash or an SMS gateway no longer each hold a
+ * platform thread.
+ */
+public final class VirtualThreads {
+
+    /**
+     * The name of the environment variable or system property which enables
+     * virtual threads
+     */
+    private static final String SETTING = "virtual_threads";
+    /**
+     * Whether virtual threads were asked for and are available
+     */
+    private static final boolean ENABLED = initialise();
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Checks whether virtual threads were asked for, and whether this runtime
+     * supports them
+     *
+     * @return True if virtual threads should be used
+     */
+    private static boolean initialise() {
+        String configured = System.getenv(SETTING);
+        if (configured == null) {
+            configured = System.getProperty(SETTING);
+        }
+        if (!Boolean.parseBoolean(configured)) {
+            return false;
+        }
+
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            System.out.println("Virtual threads need Java 21 or later; "
+                    + "using platform threads");
+            return false;
+        }
+    }
+
+    /**
+     * Whether threads created by this class are virtual
+     *
+     * @return True if virtual threads are in use
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Creates a factory for a pool's threads. Threads are named with the given
+     * prefix followed by a number counting from 1.
+     *
+     * @param prefix The prefix of each thread's name
+     * @return A factory creating virtual threads if enabled, otherwise daemon
+     * platform threads
+     */
+    public static ThreadFactory factory(String prefix) {
+        if (ENABLED) {
+            try {
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                Object b = Thread.class.getMethod("ofVirtual").invoke(null);
+                b = builder.getMethod("name", String.class, long.class)
+                        .invoke(b, prefix, 1L);
+                return (ThreadFactory) builder.getMethod("factory").invoke(b);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Creates an executor which runs every task on a new virtual thread, for
+     * handling web requests
+     *
+     * @return The executor
+     * @throws IllegalStateException If virtual threads are not enabled
+     */
+    public static ExecutorService newPerTaskExecutor() {
+        if (!ENABLED) {
+            throw new IllegalStateException("Virtual threads are not enabled");
+        }
+
+        try {
+            Method m = Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package u1606484.banksim;
+
+import java.util.concurrent.ExecutorService;
+import org.apache.coyote.AbstractProtocol;
+import org.apache.coyote.ProtocolHandler;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Configures the embedded web server.
+ *
+ * <p>When virtual threads are enabled, Tomcat's pool of request threads is
+ * replaced with an executor which handles every request on its own virtual
+ * thread, so the number of requests in progress is bounded by Tomcat's
+ * connection limit rather than its thread limit.
+ *
+ * @see VirtualThreads
+ */
+@Configuration
+public class WebServerConfiguration {
+
+    /**
+     * Customises Tomcat to handle requests on virtual threads, if enabled
+     *
+     * @return The customiser
+     */
+    @Bean
+    public WebServerFactoryCustomizer<TomcatServletWebServerFactory>
+            requestExecutorCustomizer() {
+        return factory -> {
+            if (!VirtualThreads.isEnabled()) {
+                return;
+            }
+
+            factory.addConnectorCustomizers(connector -> {
+                ProtocolHandler handler = connector.getProtocolHandler();
+                if (handler instanceof AbstractProtocol) {
+                    ExecutorService executor
+                            = VirtualThreads.newPerTaskExecutor();
+                    ((AbstractProtocol<?>) handler).setExecutor(executor);
+                    System.out.println("Handling requests on virtual threads");
+                }
+            });
+        };
+    }
+}
@@ -1,13 +1,21 @@
 package u1606484.banksim.controllers;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.OptionalInt;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.Supplier;
+import javax.annotation.PreDestroy;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.CookieValue;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
@@ -16,6 +24,7 @@ import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.servlet.ModelAndView;
 import u1606484.banksim.LogMessages;
+import u1606484.banksim.PasswordHashingService.BusyException;
 import u1606484.banksim.SecurityService;
 import u1606484.banksim.databases.UserAuthenticationPackage;
 import u1606484.banksim.weblogic.LoginSystem;
@@ -45,6 +54,10 @@ public class WebController {
      * Where to find the page a user will see once they are already logged in
      */
     private static final String SUCCESS = "success";
+    /**
+     * Used to write streamed JSON responses
+     */
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
 
     /**
      * Controller class to route data to and receive data from
@@ -53,6 +66,14 @@ public class WebController {
      */
     private final LoginSystem loginSystem = new LoginSystem();
 
+    /**
+     * Flushes outstanding session changes when the application shuts down
+     */
+    @PreDestroy
+    public void shutdown() {
+        loginSystem.close();
+    }
+
     /**
      * Attempts to parse the user's ID from an input
      *
@@ -72,15 +93,66 @@ public class WebController {
     /**
      * Testing-only endpoint for dumping log data in JSON format. This would not
      * exist in a real production build.
-     * @return Logs as an array of String objects, which Spring converts to JSON
+     *
+     * <p>Logs are written to the response as a JSON array of strings while they
+     * are read from the database, rather than being collected first, so the
+     * response is sent in chunks and memory use does not grow with the size of
+     * the log.
+     *
+     * @param from The earliest creation time to include in milliseconds,
+     * inclusive
+     * @param to The latest creation time to include in milliseconds, exclusive
+     * @param response The response to stream the logs to
+     * @throws IOException If writing to the client fails
      */
     @RequestMapping(
             value = {"dumpLogs"},
             method = {RequestMethod.POST, RequestMethod.GET}
     )
-    @ResponseBody
-    public String[] dumpLogs() {
-        return loginSystem.dumpLogs().toArray(new String[0]);
+    public void dumpLogs(
+            @RequestParam(name = "from", required = false, defaultValue = "0")
+                    long from,
+            @RequestParam(name = "to", required = false, defaultValue =
+                    "9223372036854775807") long to,
+            HttpServletResponse response) throws IOException {
+        response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+
+        try (JsonGenerator json = JSON_FACTORY
+                .createGenerator(response.getOutputStream())) {
+            json.writeStartArray();
+            loginSystem.exportLogs(from, to, entry -> {
+                try {
+                    json.writeString(entry);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            json.writeEndArray();
+        }
+    }
+
+    /**
+     * Testing-only endpoint for reading the login system's metrics: a latency
+     * histogram for each stage of logging in and each database query, and the
+     * counters kept by background components, as one JSON object. Latencies
+     * are in nanoseconds. Like {@link WebController#dumpLogs}, this would be
+     * restricted to operators in a real production build.
+     *
+     * @param response The response to write the metrics to
+     * @throws IOException If writing to the client fails
+     * @see LoginSystem#getMetrics()
+     */
+    @RequestMapping(
+            value = {"metrics"},
+            method = {RequestMethod.GET}
+    )
+    public void metrics(HttpServletResponse response) throws IOException {
+        response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+
+        try (JsonGenerator json = JSON_FACTORY
+                .createGenerator(response.getOutputStream())) {
+            loginSystem.getMetrics().writeJson(json);
+        }
     }
 
     /**
@@ -88,6 +160,10 @@ public class WebController {
      * different parts of the program depending upon the stage of the user's
      * session and input data.
      *
+     * <p>If a password cannot be checked because the password hashing pool is
+     * saturated, the first login page is shown again with status 503, so the
+     * customer knows to try again rather than that their password was wrong.
+     *
      * @param password An input password attempt
      * @param username An input account ID attempt
      * @param otac An input One-Time Authentication Code attempt
@@ -114,17 +190,9 @@ public class WebController {
                     sessionKey,
             HttpServletRequest request, HttpServletResponse response) {
 
-        // Style input boxes if there is an error
-        Map<String, String> model = new HashMap<>();
-
-        // Map state of session to one of three values
-        // -1: not logged in
-        //  0: stage one of login complete
-        //  1: stage two of login complete
         Optional<UserAuthenticationPackage> key = loginSystem
                 .getUserFromSession(sessionKey);
-        @SuppressWarnings("OptionalIsPresent") int keyLevel =
-                key.isPresent() ? key.get().getOtacLevel() : -1;
+        int keyLevel = getKeyLevel(key);
 
         // May be assigned differently in different parts of the method, but
         // are used at the end.
@@ -135,20 +203,29 @@ public class WebController {
         String ip;
 
         ip = request.getRemoteAddr();
-        attempt = !otac.equals("") || !username.equals("") || !password
-                .equals("");
+        attempt = isAttempt(password, username, otac);
+
+        Optional<ModelAndView> limited = checkRateLimit(key, keyLevel, attempt,
+                username, ip, response);
+        if (limited.isPresent()) {
+            return limited.get();
+        }
 
         if (keyLevel == -1) {
             // Parse user ID from username input
             userId = parseUserId(username).orElse(-1);
-            success = loginSystem.attemptBasicLogin(userId, password, response);
+            // Sends an OTAC and logs the success if we succeed
+            try {
+                success = loginSystem.beginLogin(userId, password, ip,
+                        response);
+            } catch (BusyException e) {
+                // The password was never checked, so this is not logged as a
+                // failed attempt
+                response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+                return render(LOGIN_ONE, false, attempt, userId);
+            }
 
-            // Send OTAC if we succeed
-            if (success) {
-                loginSystem.sendOtac(userId);
-                loginSystem
-                        .writeLog(LogMessages.SUCCEED_LOGIN_1.get(userId, ip));
-            } else if (attempt) {
+            if (!success && attempt) {
                 loginSystem.writeLog(LogMessages.FAIL_LOGIN_1.get(userId, ip));
             }
 
@@ -180,6 +257,214 @@ public class WebController {
             throw new IllegalStateException("Invalid key level");
         }
 
+        return render(view, success, attempt, userId);
+    }
+
+    /**
+     * Handles connections to the asynchronous variant of the main page. This
+     * behaves exactly as {@link WebController#index} does, but the request
+     * thread is released while the customer's data is read and their password
+     * or OTAC is checked, so a slow database or a busy hashing pool does not
+     * hold up the web server's threads.
+     *
+     * <p>If a pool is saturated, the login page is shown again with status
+     * 503 and nothing is logged, as for {@link WebController#index}.
+     *
+     * <p>The login pages post back to the address they were served from, so
+     * a customer who starts at this endpoint stays on it throughout.
+     *
+     * @param password An input password attempt
+     * @param username An input account ID attempt
+     * @param otac An input One-Time Authentication Code attempt
+     * @param sessionKey The session token provided by the session cookie
+     * @param request The request - used for fetching IP data from connecting
+     * client
+     * @param response The response - used for setting cookies or redirecting
+     * client
+     * @return A future completing with content for the appropriate web-page
+     * @see LoginSystem#beginLoginAsync
+     */
+    @RequestMapping(
+            value = {"async"},
+            method = {RequestMethod.POST, RequestMethod.GET}
+    )
+    @ResponseBody
+    public CompletableFuture<ModelAndView> indexAsync(
+            @RequestParam(name = "password", required = false, defaultValue =
+                    "") String password,
+            @RequestParam(name = "username", required = false, defaultValue =
+                    "") String username,
+            @RequestParam(name = "otac", required = false, defaultValue = "")
+                    String otac,
+            @CookieValue(value = "session_token", defaultValue = "") String
+                    sessionKey,
+            HttpServletRequest request, HttpServletResponse response) {
+
+        Optional<UserAuthenticationPackage> key = loginSystem
+                .getUserFromSession(sessionKey);
+        int keyLevel = getKeyLevel(key);
+
+        String ip = request.getRemoteAddr();
+        boolean attempt = isAttempt(password, username, otac);
+
+        Optional<ModelAndView> limited = checkRateLimit(key, keyLevel, attempt,
+                username, ip, response);
+        if (limited.isPresent()) {
+            return CompletableFuture.completedFuture(limited.get());
+        }
+
+        if (keyLevel == -1) {
+            int userId = parseUserId(username).orElse(-1);
+
+            return unavailableIfSaturated(loginSystem
+                    .beginLoginAsync(userId, password, ip, response)
+                    .thenApply(success -> {
+                        if (!success && attempt) {
+                            loginSystem.writeLog(
+                                    LogMessages.FAIL_LOGIN_1.get(userId, ip));
+                        }
+
+                        return render(success ? LOGIN_TWO : LOGIN_ONE, success,
+                                attempt, userId);
+                    }), LOGIN_ONE, attempt, userId, response);
+        } else if (keyLevel == 0) {
+            int userId = key.get().getUserId();
+
+            return unavailableIfSaturated(loginSystem
+                    .attemptOtacLoginAsync(userId, otac, response)
+                    .thenApply(valid -> {
+                        boolean success = valid || otac.equals("DEBUG");
+
+                        if (success) {
+                            loginSystem.writeLog(LogMessages.SUCCEED_LOGIN_2
+                                    .get(userId, ip));
+                        } else if (attempt) {
+                            loginSystem.sendOtac(userId);
+                            loginSystem.writeLog(
+                                    LogMessages.FAIL_LOGIN_2.get(userId, ip));
+                        }
+
+                        return render(success ? SUCCESS : LOGIN_TWO, success,
+                                attempt, userId);
+                    }), LOGIN_TWO, attempt, userId, response);
+        } else if (keyLevel == 1) {
+            return CompletableFuture.completedFuture(
+                    render(SUCCESS, true, attempt, key.get().getUserId()));
+        } else {
+            // This should never be reached
+            assert false;
+            throw new IllegalStateException("Invalid key level");
+        }
+    }
+
+    /**
+     * Shows a login page again with status 503 if an asynchronous login could
+     * not be processed because a pool was saturated, as {@link
+     * WebController#index} does. The credentials were never checked, so this
+     * is not logged as a failed attempt.
+     *
+     * @param page A future completing with content for the page to show
+     * @param view The login page the attempt came from
+     * @param attempt Whether the user submitted anything
+     * @param userId The account the attempt was made against
+     * @param response The response - used for setting the status
+     * @return A future completing with the page, or the login page if a pool
+     * was saturated. Any other failure is passed on.
+     * @see LoginSystem#isSaturated
+     */
+    private CompletableFuture<ModelAndView> unavailableIfSaturated(
+            CompletableFuture<ModelAndView> page, String view,
+            boolean attempt, int userId, HttpServletResponse response) {
+        return page.exceptionally(e -> {
+            if (!LoginSystem.isSaturated(e)) {
+                throw e instanceof CompletionException
+                        ? (CompletionException) e : new CompletionException(e);
+            }
+
+            response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+            return render(view, false, attempt, userId);
+        });
+    }
+
+    /**
+     * Refuses a login attempt if too many have recently come from its address
+     * or been made against its account. This is checked before any other work
+     * is done, so refused attempts cost next to nothing.
+     *
+     * @param key The user the session belongs to, if any
+     * @param keyLevel The session's stage of login
+     * @param attempt Whether the user submitted anything
+     * @param username An input account ID attempt
+     * @param ip The address the request came from
+     * @param response The response - used for setting the status
+     * @return Content for the page the attempt came from, marked as failed,
+     * if the attempt is refused. Otherwise, an empty optional.
+     * @see LoginSystem#allowLoginAttempt
+     */
+    @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+    private Optional<ModelAndView> checkRateLimit(
+            Optional<UserAuthenticationPackage> key, int keyLevel,
+            boolean attempt, String username, String ip,
+            HttpServletResponse response) {
+        if (!attempt || keyLevel == 1) {
+            return Optional.empty();
+        }
+
+        int userId = key.map(UserAuthenticationPackage::getUserId)
+                .orElseGet(() -> parseUserId(username).orElse(-1));
+        if (loginSystem.allowLoginAttempt(ip, userId)) {
+            return Optional.empty();
+        }
+
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        return Optional.of(render(keyLevel == -1 ? LOGIN_ONE : LOGIN_TWO,
+                false, true, userId));
+    }
+
+    /**
+     * Maps the state of a session to one of three values
+     * <ul>
+     * <li>-1: not logged in</li>
+     * <li>0: stage one of login complete</li>
+     * <li>1: stage two of login complete</li>
+     * </ul>
+     *
+     * @param key The user the session belongs to, if any
+     * @return The session's stage of login
+     */
+    @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
+    private static int getKeyLevel(Optional<UserAuthenticationPackage> key) {
+        return key.map(UserAuthenticationPackage::getOtacLevel).orElse(-1);
+    }
+
+    /**
+     * Checks whether the user submitted anything, as opposed to simply
+     * loading the page
+     *
+     * @param password An input password attempt
+     * @param username An input account ID attempt
+     * @param otac An input One-Time Authentication Code attempt
+     * @return True if any of the inputs were filled in
+     */
+    private static boolean isAttempt(String password, String username,
+            String otac) {
+        return !otac.equals("") || !username.equals("") || !password
+                .equals("");
+    }
+
+    /**
+     * Builds the content for a login page, or the page seen once logged in
+     *
+     * @param view The page to show
+     * @param success Whether the user's attempt succeeded
+     * @param attempt Whether the user made an attempt at all
+     * @param userId The user's account ID, or -1 if unknown
+     * @return Content for the page
+     */
+    private static ModelAndView render(String view, boolean success,
+            boolean attempt, int userId) {
+        Map<String, String> model = new HashMap<>();
+
         // If some inputs were made, but an attempt was unsuccessful, style
         // input boxes
         if (!success && attempt) {
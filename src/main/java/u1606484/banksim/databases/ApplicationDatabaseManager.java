@@ -2,31 +2,167 @@ package u1606484.banksim.databases;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
+import java.sql.Statement;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
-import java.util.TimeZone;
-import u1606484.banksim.AesEncryption;
 import u1606484.banksim.SecurityService;
-import u1606484.banksim.databases.FunctionalHelpers.DatabaseBinding;
-import u1606484.banksim.databases.FunctionalHelpers.UncheckedFunction;
-import u1606484.banksim.databases.FunctionalHelpers.bBytes;
-import u1606484.banksim.databases.FunctionalHelpers.bInteger;
-import u1606484.banksim.databases.FunctionalHelpers.bLong;
-import u1606484.banksim.databases.FunctionalHelpers.bString;
+import u1606484.banksim.SessionToken;
+import u1606484.banksim.databases.ConnectionPool.Lease;
+import u1606484.banksim.databases.QueryShape.Parameters;
+import u1606484.banksim.interfaces.IAuditLogStore;
+import u1606484.banksim.metrics.MetricsRegistry;
 
 /**
  * Manages application-specific database operations. Effectively a higher-level,
  * more specific wrapper for {@link DatabaseManager}.
  *
- * <p>A lot of the "heavy lifting" for this class is performed by the {@link
- * FunctionalHelpers} class, and the {@link TransactionContainer} class.
+ * <p>Every query this class runs is held in a {@link QueryShape} constant, so
+ * that binding its parameters allocates nothing.
+ *
+ * <p>The database is also the default {@link IAuditLogStore}, keeping entries
+ * in the {@code log} table.
  */
-public class ApplicationDatabaseManager extends DatabaseManager {
+public class ApplicationDatabaseManager extends DatabaseManager implements
+        IAuditLogStore {
+
+    /**
+     * The number of log rows read from the database at a time when streaming
+     */
+    private static final int LOG_PAGE_SIZE = 500;
+    /**
+     * The hashing scheme version of passwords hashed with {@link
+     * SecurityService#getPasswordHash}, as used by the methods which accept
+     * plaintext passwords
+     */
+    private static final int LEGACY_HASH_VERSION = 0;
+
+    /**
+     * Reads one page of logs, newest first
+     */
+    private static final QueryShape LOG_PAGE = new QueryShape(""
+            + "SELECT log_id, time_created, content "
+            + "FROM log "
+            + "WHERE time_created >= ? AND time_created < ? "
+            + "    AND (time_created < ? "
+            + "        OR (time_created = ? AND log_id < ?)) "
+            + "ORDER BY time_created DESC, log_id DESC "
+            + "LIMIT ?", 6);
+    /**
+     * Finds a customer's live session
+     */
+    private static final QueryShape SESSION_BY_CUSTOMER = new QueryShape(""
+            + "SELECT session_key, otac_authenticated "
+            + "FROM session "
+            + "WHERE expiry > ? AND customer_id = ?", 2);
+    /**
+     * Finds a live session by its key
+     */
+    private static final QueryShape SESSION_BY_KEY = new QueryShape(""
+            + "SELECT customer_id, otac_authenticated "
+            + "FROM session "
+            + "WHERE expiry > ? AND session_key = ?", 2);
+    /**
+     * Sets the expiry of every session belonging to a customer
+     */
+    private static final QueryShape EXPIRE_SESSIONS = new QueryShape(""
+            + "UPDATE session "
+            + "SET expiry = ? "
+            + "WHERE customer_id = ?", 2);
+    /**
+     * Reads every live session
+     */
+    private static final QueryShape ACTIVE_SESSIONS = new QueryShape(""
+            + "SELECT session_key, customer_id, expiry, otac_authenticated "
+            + "FROM session "
+            + "WHERE expiry > ?", 1);
+    /**
+     * Deletes a batch of expired sessions. SQLite is not usually built to
+     * support DELETE ... LIMIT, so the rows are chosen by a subquery on the
+     * expiry index instead.
+     */
+    private static final QueryShape DELETE_EXPIRED_SESSIONS = new QueryShape(
+            ""
+                    + "DELETE FROM session "
+                    + "WHERE session_id IN ("
+                    + "    SELECT session_id FROM session "
+                    + "    WHERE expiry <= ? "
+                    + "    LIMIT ?)", 2);
+    /**
+     * Inserts a session
+     */
+    private static final QueryShape INSERT_SESSION = new QueryShape(""
+            + "INSERT INTO session "
+            + "(session_key, customer_id, expiry, otac_authenticated) "
+            + "VALUES (?, ?, ?, ?)", 4);
+    /**
+     * Sets the OTAC-level of a session
+     */
+    private static final QueryShape SET_OTAC = new QueryShape(""
+            + "UPDATE session SET "
+            + "otac_authenticated = ? "
+            + "WHERE session_key = ?", 2);
+    /**
+     * Inserts a customer
+     */
+    private static final QueryShape INSERT_CUSTOMER = new QueryShape(""
+            + "INSERT INTO customer"
+            + "(phone_number, first_name, last_name, address_id, "
+            + "    security_id) "
+            + "VALUES (?, ?, ?, ?, ?)", 5);
+    /**
+     * Reads the ID of the row last inserted on this connection
+     */
+    private static final QueryShape LAST_INSERT_ID = new QueryShape(
+            "SELECT last_insert_rowid()", 0);
+    /**
+     * Inserts an address
+     */
+    private static final QueryShape INSERT_ADDRESS = new QueryShape(""
+            + "INSERT INTO address "
+            + "(address_1, address_2, postcode, county) "
+            + "VALUES (?, ?, ?, ?)", 4);
+    /**
+     * Inserts a security record
+     */
+    private static final QueryShape INSERT_SECURITY = new QueryShape(""
+            + "INSERT INTO security "
+            + "(login_salt, support_in_salt, support_out_salt, password, "
+            + "    password_salt, password_hash_passes, "
+            + "    password_hash_version) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?)", 7);
+    /**
+     * Inserts a log entry
+     */
+    private static final QueryShape INSERT_LOG = new QueryShape(""
+            + "INSERT INTO log "
+            + "(time_created, content) "
+            + "VALUES (?, ?)", 2);
+    /**
+     * Replaces the password on a security record
+     */
+    private static final QueryShape UPDATE_PASSWORD = new QueryShape(""
+            + "UPDATE security "
+            + "SET password=?, password_salt=?, password_hash_passes=?, "
+            + "    password_hash_version=? "
+            + "WHERE security_id=?", 5);
+    /**
+     * Reads everything the first stage of logging in needs about a customer
+     */
+    private static final QueryShape LOGIN_BY_CUSTOMER = new QueryShape(""
+            + "SELECT s.security_id, s.password, s.password_salt, "
+            + "    s.password_hash_passes, "
+            + "    s.password_hash_version, "
+            + "    s.login_salt, c.phone_number "
+            + "FROM customer c "
+            + "JOIN security s ON c.security_id = s.security_id "
+            + "WHERE c.customer_id = ?", 1);
+
+    /**
+     * Recently read customer credentials
+     */
+    private final CredentialCache credentialCache = new CredentialCache();
 
     /**
      * Initialises the database class using the parent class.
@@ -38,51 +174,80 @@ public class ApplicationDatabaseManager extends DatabaseManager {
     }
 
     /**
-     * Attempts to fetch all logs from the database, decrypt their content, and
-     * then return them as a {@code List<String>} instance.
-     *
-     * <p>Realistically, this method would not exist in production. Therefore,
-     * some of the data flow in the method is incorrect. For example, decryption
-     * should be performed in the {@link u1606484.banksim.weblogic.LoginSystem}
-     * class. To maintain a more simple implementation of a temporary operation,
-     * more functionality was moved into the method for this class.
-     *
-     * @param key The decryption key to use
-     * @return An optional list of strings of log entries - filled on success
-     */
-    public Optional<List<String>> dumpLogs(String key) {
-        List<String> logDump = new ArrayList<>();
-
-        String retrievalQuery = ""
-                + "SELECT time_created, content "
-                + "FROM log "
-                + "ORDER BY time_created DESC";
-        ResultSet logDumpResult = exec(retrievalQuery, new DatabaseBinding[]{},
-                true);
-
-        try {
-            DateTimeFormatter f = DateTimeFormatter.ISO_DATE_TIME;
-            ZoneId z = TimeZone.getDefault().toZoneId();
-
-            while (logDumpResult.next()) {
-                // Fetch raw database data
-                long timestamp = logDumpResult.getLong(1);
-                byte[] encryptedContent = logDumpResult.getBytes(2);
-                // Decrypt content and format date
-                byte[] decryptedContent = AesEncryption
-                        .decrypt(encryptedContent, key);
-                String content = new String(decryptedContent);
-                LocalDateTime d = LocalDateTime
-                        .ofInstant(Instant.ofEpochMilli(timestamp), z);
-                // Construct log line
-                logDump.add(d.format(f) + ": " + content);
+     * Initialises the database class against a database other than the
+     * application's own, such as a temporary one for testing.
+     *
+     * @param url The JDBC URL of the database
+     * @param poolSize The maximum number of connections to open
+     * @see DatabaseManager
+     */
+    public ApplicationDatabaseManager(String url, int poolSize) {
+        super(url, poolSize);
+    }
+
+    /**
+     * Fetches logs created within a time range from the database, and passes
+     * each entry to a consumer, newest first.
+     *
+     * <p>Rows are read in pages of {@value LOG_PAGE_SIZE}, each copied out in
+     * its own short read on a borrowed connection. The connection is returned
+     * before the page is passed to the consumer, so a slow consumer, such as a
+     * slow client downloading the logs, never holds a connection or a read
+     * snapshot open. Each page continues from the {@code (time_created,
+     * log_id)} of the last row of the previous one, rather than using an
+     * offset, so reading a page costs the same however far into the log it
+     * is. Memory use is constant however many logs there are.
+     *
+     * @param from The earliest creation time to include, inclusive
+     * @param to The latest creation time to include, exclusive
+     * @param sink Receives each entry, still encrypted
+     * @return The number of log entries passed to the sink
+     */
+    @Override
+    public long read(long from, long to, EntryConsumer sink) {
+        long[] ids = new long[LOG_PAGE_SIZE];
+        long[] timestamps = new long[LOG_PAGE_SIZE];
+        byte[][] contents = new byte[LOG_PAGE_SIZE][];
+        // Position of the last row read - starts past the end of the range
+        long lastTimestamp = to;
+        long lastId = Long.MAX_VALUE;
+        long total = 0;
+        int pageCount;
+
+        do {
+            Parameters retrievalParameters = LOG_PAGE.parameters()
+                    .setLong(1, from)
+                    .setLong(2, to)
+                    .setLong(3, lastTimestamp)
+                    .setLong(4, lastTimestamp)
+                    .setLong(5, lastId)
+                    .setInt(6, LOG_PAGE_SIZE);
+
+            pageCount = query(retrievalParameters, r -> {
+                int rows = 0;
+                while (r.next()) {
+                    ids[rows] = r.getLong(1);
+                    timestamps[rows] = r.getLong(2);
+                    contents[rows] = r.getBytes(3);
+                    rows++;
+                }
+                return rows;
+            });
+
+            // The connection has been returned by now
+            for (int i = 0; i < pageCount; i++) {
+                sink.accept(timestamps[i], contents[i]);
+                contents[i] = null;
+            }
+            if (pageCount > 0) {
+                lastTimestamp = timestamps[pageCount - 1];
+                lastId = ids[pageCount - 1];
             }
 
-            return Optional.of(logDump);
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return Optional.empty();
-        }
+            total += pageCount;
+        } while (pageCount == LOG_PAGE_SIZE);
+
+        return total;
     }
 
     /**
@@ -95,19 +260,12 @@ public class ApplicationDatabaseManager extends DatabaseManager {
      * @see SessionKeyPackage
      */
     public Optional<SessionKeyPackage> getSessionKeyData(int userId) {
-        String retrievalQuery = ""
-                + "SELECT session_key, otac_authenticated "
-                + "FROM session "
-                + "WHERE expiry > ? AND customer_id = ?";
-        DatabaseBinding[] retrievalBindings = new DatabaseBinding[]{
-                new bLong(1, System.currentTimeMillis()),
-                new bInteger(2, userId)
-        };
-        ResultSet keyResult = exec(retrievalQuery, retrievalBindings, true);
-
-        return FunctionalHelpers.attemptSingleRetrieval(keyResult, r -> {
-            String key = keyResult.getString(1);
-            int authenticationStage = keyResult.getInt(2);
+        Parameters retrievalParameters = SESSION_BY_CUSTOMER.parameters()
+                .setLong(1, System.currentTimeMillis())
+                .setInt(2, userId);
+        return querySingle(retrievalParameters, r -> {
+            String key = keyString(r.getBytes(1));
+            int authenticationStage = r.getInt(2);
             return new SessionKeyPackage(key, authenticationStage);
         });
     }
@@ -119,22 +277,41 @@ public class ApplicationDatabaseManager extends DatabaseManager {
      * <p>This should never return an empty optional due to database
      * constraints.
      *
-     * @param sessionKey The session key to find information for
+     * @param sessionKey The session key to find information for, which may be
+     * an encoded {@link SessionToken}
      * @return A single UserAuthenticationPackage instance if a matching user
      * can be found. Otherwise, an empty optional.
+     * @see ApplicationDatabaseManager#keyBytes(String)
      */
     public Optional<UserAuthenticationPackage> getUserData(String sessionKey) {
-        String retrievalQuery = ""
-                + "SELECT customer_id, otac_authenticated "
-                + "FROM session "
-                + "WHERE expiry > ? AND session_key = ?";
-        DatabaseBinding[] retrievalBindings = new DatabaseBinding[]{
-                new bLong(1, System.currentTimeMillis()),
-                new bString(2, sessionKey)
-        };
-        ResultSet idResult = exec(retrievalQuery, retrievalBindings, true);
-
-        return FunctionalHelpers.attemptSingleRetrieval(idResult, r -> {
+        return getUserData(keyBytes(sessionKey));
+    }
+
+    /**
+     * Attempts to fetch information on a user's session, provided in a {@link
+     * UserAuthenticationPackage} instance.
+     *
+     * @param token The session token to find information for
+     * @return A single UserAuthenticationPackage instance if a matching user
+     * can be found. Otherwise, an empty optional.
+     */
+    public Optional<UserAuthenticationPackage> getUserData(
+            SessionToken token) {
+        return getUserData(token.toBytes());
+    }
+
+    /**
+     * Looks up a session by the bytes stored as its key
+     *
+     * @param key The stored session key
+     * @return A single UserAuthenticationPackage instance if a matching user
+     * can be found. Otherwise, an empty optional.
+     */
+    private Optional<UserAuthenticationPackage> getUserData(byte[] key) {
+        Parameters retrievalParameters = SESSION_BY_KEY.parameters()
+                .setLong(1, System.currentTimeMillis())
+                .setBytes(2, key);
+        return querySingle(retrievalParameters, r -> {
             int userId = r.getInt(1);
             int userOtac = r.getInt(2);
             return new UserAuthenticationPackage(userId, userOtac);
@@ -148,64 +325,218 @@ public class ApplicationDatabaseManager extends DatabaseManager {
      * @param userId The account ID for which to invalidate logins.
      */
     public void invalidateSessionKeys(int userId) {
-        String updateQuery = ""
-                + "UPDATE session "
-                + "SET expiry = ? "
-                + "WHERE customer_id = ?";
-        DatabaseBinding[] updateBindings = new DatabaseBinding[]{
-                new bLong(1, System.currentTimeMillis() - 1),
-                new bInteger(2, userId)
-        };
+        invalidateSessionKeys(userId, System.currentTimeMillis() - 1);
+    }
+
+    /**
+     * Sets the expiry for all session keys for the provided account ID to a
+     * given time, which should be in the past.
+     *
+     * @param userId The account ID for which to invalidate logins.
+     * @param expiry The expiry time to give the sessions
+     */
+    void invalidateSessionKeys(int userId, long expiry) {
+        update(EXPIRE_SESSIONS.parameters()
+                .setLong(1, expiry)
+                .setInt(2, userId));
+    }
+
+    /**
+     * Fetches every session which has not yet expired. Sessions whose keys are
+     * not {@link SessionToken}s are left out.
+     *
+     * @param now The current time, used to decide whether a session has
+     * expired
+     * @return A list of all live sessions
+     */
+    List<Session> getActiveSessions(long now) {
+        return query(ACTIVE_SESSIONS.parameters().setLong(1, now), r -> {
+            List<Session> sessions = new ArrayList<>();
+            while (r.next()) {
+                SessionToken token = SessionToken.fromBytes(r.getBytes(1));
+                if (token != null) {
+                    sessions.add(new Session(token, r.getInt(2),
+                            r.getLong(3), r.getInt(4)));
+                }
+            }
+            return sessions;
+        });
+    }
+
+    /**
+     * Converts a session key, as it appears in a cookie, into the bytes stored
+     * in the session table. An encoded {@link SessionToken} is stored as its
+     * {@value SessionToken#BYTE_LENGTH} raw bytes. Any other key is stored as
+     * its UTF-8 bytes, so that it can still be written and matched.
+     *
+     * @param sessionKey The session key
+     * @return The bytes to store
+     */
+    static byte[] keyBytes(String sessionKey) {
+        SessionToken token = SessionToken.parse(sessionKey);
+        return token != null
+                ? token.toBytes()
+                : sessionKey.getBytes(StandardCharsets.UTF_8);
+    }
 
-        exec(updateQuery, updateBindings, false);
+    /**
+     * Converts a stored session key back into the form it takes in a cookie.
+     * This reverses {@link ApplicationDatabaseManager#keyBytes(String)}.
+     *
+     * @param key The stored bytes
+     * @return The session key
+     */
+    static String keyString(byte[] key) {
+        SessionToken token = SessionToken.fromBytes(key);
+        return token != null
+                ? token.encode()
+                : new String(key, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Deletes up to a given number of sessions which expired at or before a
+     * given time, in a single transaction.
+     *
+     * @param now The current time, used to decide whether a session has
+     * expired
+     * @param limit The maximum number of sessions to delete
+     * @return The number of sessions deleted
+     */
+    int deleteExpiredSessions(long now, int limit) {
+        return update(DELETE_EXPIRED_SESSIONS.parameters()
+                .setLong(1, now)
+                .setInt(2, limit));
+    }
+
+    /**
+     * Returns up to a given number of free pages from the database file to
+     * the operating system. This only has an effect once the database is in
+     * incremental auto-vacuum mode, which {@link SchemaMigrator} sets up.
+     *
+     * @param maximumPages The most pages to free
+     * @return The number of pages freed
+     */
+    int incrementalVacuum(int maximumPages) {
+        try (Lease lease = borrow()) {
+            long before = readPragma(lease, "PRAGMA freelist_count");
+
+            // Each step of this pragma frees a single page. A prepared
+            // statement is only stepped once, whereas executing the SQL
+            // directly runs it to completion.
+            try (Statement s = lease.getConnection().createStatement()) {
+                s.executeUpdate(
+                        "PRAGMA incremental_vacuum(" + maximumPages + ")");
+            }
+            lease.commit();
+
+            return (int) (before - readPragma(lease, "PRAGMA freelist_count"));
+        } catch (SQLException e) {
+            throw new IllegalStateException("Incremental vacuum failed", e);
+        }
+    }
+
+    /**
+     * Reads a pragma which produces a single number
+     *
+     * @param lease The lease to run the pragma on
+     * @param pragma The pragma statement
+     * @return The pragma's value
+     * @throws SQLException If the pragma could not be read
+     */
+    private static long readPragma(Lease lease, String pragma)
+            throws SQLException {
+        try (ResultSet rs = lease.prepare(pragma).executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
     }
 
     /**
      * Writes a session to the database, with state specified by parameters.
      *
      * @param userId The account ID to link the session to
-     * @param sessionKey The session key for the new session entry
+     * @param sessionKey The session key for the new session, which may be an
+     * encoded {@link SessionToken}
      * @param expiry When the session will expire
      * @param otacLevel 0 if the user has only authenticated via password. 1 if
      * the user has also authenticated via OTAC.
+     * @see ApplicationDatabaseManager#keyBytes(String)
      */
     public void assignSessionKey(int userId, String sessionKey,
             long expiry, int otacLevel) {
-        String insertionQuery = ""
-                + "INSERT INTO session "
-                + "(session_key, customer_id, expiry, otac_authenticated) "
-                + "VALUES (?, ?, ?, ?)";
-        DatabaseBinding[] insertionBindings = new DatabaseBinding[]{
-                new bString(1, sessionKey),
-                new bInteger(2, userId),
-                new bLong(3, expiry),
-                new bInteger(4, otacLevel)};
+        assignSessionKey(userId, keyBytes(sessionKey), expiry, otacLevel);
+    }
 
-        exec(insertionQuery, insertionBindings, false);
+    /**
+     * Writes a session to the database, with state specified by parameters.
+     *
+     * @param userId The account ID to link the session to
+     * @param token The session token for the new session
+     * @param expiry When the session will expire
+     * @param otacLevel 0 if the user has only authenticated via password. 1 if
+     * the user has also authenticated via OTAC.
+     */
+    public void assignSessionKey(int userId, SessionToken token,
+            long expiry, int otacLevel) {
+        assignSessionKey(userId, token.toBytes(), expiry, otacLevel);
+    }
+
+    /**
+     * Writes a session to the database under the bytes stored as its key
+     *
+     * @param userId The account ID to link the session to
+     * @param key The stored session key
+     * @param expiry When the session will expire
+     * @param otacLevel The OTAC-level of the session
+     */
+    private void assignSessionKey(int userId, byte[] key, long expiry,
+            int otacLevel) {
+        update(INSERT_SESSION.parameters()
+                .setBytes(1, key)
+                .setInt(2, userId)
+                .setLong(3, expiry)
+                .setInt(4, otacLevel));
+    }
+
+    /**
+     * Writes a session to the database together with an audit log entry, in
+     * a single transaction.
+     *
+     * @param userId The account ID to link the session to
+     * @param token The session token for the new session
+     * @param expiry When the session will expire
+     * @param otacLevel 0 if the user has only authenticated via password. 1 if
+     * the user has also authenticated via OTAC.
+     * @param logCreationDate The date of creation for the log entry
+     * @param logContent The encrypted content for the log entry
+     */
+    public void assignSessionKey(int userId, SessionToken token, long expiry,
+            int otacLevel, long logCreationDate, byte[] logContent) {
+        inTransaction(() -> {
+            assignSessionKey(userId, token.toBytes(), expiry, otacLevel);
+            update(INSERT_LOG.parameters()
+                    .setLong(1, logCreationDate)
+                    .setBytes(2, logContent));
+        });
     }
 
     /**
      * Updates the OTAC-level of an existing session within the database.
      *
-     * @param sessionKey The session key of the session to update
+     * @param sessionKey The session key of the session to update, which may
+     * be an encoded {@link SessionToken}
      * @param otacStage The new OTAC-level to set
      */
     public void setOtacAuthenticated(String sessionKey, int otacStage) {
-        String updateQuery = ""
-                + "UPDATE session SET "
-                + "otac_authenticated = ? "
-                + "WHERE session_key = ?";
-        DatabaseBinding[] updateBindings = new DatabaseBinding[]{
-                new bInteger(1, otacStage),
-                new bString(2, sessionKey)
-        };
-        exec(updateQuery, updateBindings, false);
+        update(SET_OTAC.parameters()
+                .setInt(1, otacStage)
+                .setBytes(2, keyBytes(sessionKey)));
     }
 
     /**
-     * Inserts a new customer into the database.
+     * Inserts a new customer into the database. The password is hashed with
+     * the legacy SHA-256 scheme, {@link SecurityService#getPasswordHash}.
      *
-     * <p>The {@link ApplicationDatabaseManager#newSecurity(String, int)} and
+     * <p>The {@link ApplicationDatabaseManager#newSecurity(PasswordData)} and
      * {@link ApplicationDatabaseManager#newAddress(String, String, String,
      * String)} methods handle insertion of data into linked tables.
      *
@@ -225,59 +556,138 @@ public class ApplicationDatabaseManager extends DatabaseManager {
             String lastName, String passwordPlaintext, int passwordHashPasses,
             String addressLine1, String addressLine2, String postcode,
             String county) {
+        byte[] passwordSalt = SecurityService.getSalt();
+        PasswordData password = new PasswordData(
+                SecurityService.getPasswordHash(passwordPlaintext,
+                        passwordSalt, passwordHashPasses),
+                passwordSalt, LEGACY_HASH_VERSION, passwordHashPasses);
+
+        return newCustomer(phoneNumber, firstName, lastName, password,
+                addressLine1, addressLine2, postcode, county);
+    }
+
+    /**
+     * Inserts a new customer into the database, with a password which has
+     * already been hashed.
+     *
+     * @param phoneNumber The customer's phone number
+     * @param firstName The customer's first name
+     * @param lastName The customer's last name
+     * @param password The customer's hashed password
+     * @param addressLine1 The first address line for the customer
+     * @param addressLine2 The second address line for the customer
+     * @param postcode The customer's postcode
+     * @param county The customer's county
+     * @return The ID of the newly inserted customer
+     * @see u1606484.banksim.PasswordHashingService#hash(String)
+     */
+    public int newCustomer(String phoneNumber, String firstName,
+            String lastName, PasswordData password, String addressLine1,
+            String addressLine2, String postcode, String county) {
         int addressId = newAddress(addressLine1, addressLine2, postcode,
                 county);
-        int securityId = newSecurity(passwordPlaintext, passwordHashPasses);
+        int securityId = newSecurity(password);
+
+        int customerId = newGenericDatabaseRecord(INSERT_CUSTOMER.parameters()
+                .setString(1, phoneNumber)
+                .setString(2, firstName)
+                .setString(3, lastName)
+                .setInt(4, addressId)
+                .setInt(5, securityId));
+        // SQLite may reuse the ID of a deleted customer
+        credentialCache.invalidate(customerId);
+
+        return customerId;
+    }
+
+    /**
+     * Inserts many new customers into the database in a single transaction,
+     * with passwords which have already been hashed.
+     *
+     * <p>Rather than inserting each customer's address, security record and
+     * customer record separately, each fetching its ID and committing, every
+     * address is inserted in one batch, then every security record, then
+     * every customer. The IDs linking them are worked out from the ID of the
+     * last row of each batch.
+     *
+     * @param customers The customers to insert
+     * @return The ID of each newly inserted customer, in the same order
+     * @see DatabaseManager#insertBatch
+     */
+    public int[] newCustomers(List<NewCustomer> customers) {
+        int count = customers.size();
+        int[] customerIds = new int[count];
+        if (count == 0) {
+            return customerIds;
+        }
+
+        inTransaction(() -> {
+            long firstAddressId = insertBatch(INSERT_ADDRESS, count,
+                    (p, i) -> {
+                        NewCustomer c = customers.get(i);
+                        p.setString(1, c.getAddressLine1())
+                                .setString(2, c.getAddressLine2())
+                                .setString(3, c.getPostcode())
+                                .setString(4, c.getCounty());
+                    });
+            long firstSecurityId = insertBatch(INSERT_SECURITY, count,
+                    (p, i) -> {
+                        PasswordData password = customers.get(i)
+                                .getPassword();
+                        p.setBytes(1, SecurityService.getSalt())
+                                .setBytes(2, SecurityService.getSalt())
+                                .setBytes(3, SecurityService.getSalt())
+                                .setBytes(4, password.getPasswordHash())
+                                .setBytes(5, password.getPasswordSalt())
+                                .setInt(6, password.getPasses())
+                                .setInt(7, password.getHashVersion());
+                    });
+            long firstCustomerId = insertBatch(INSERT_CUSTOMER, count,
+                    (p, i) -> {
+                        NewCustomer c = customers.get(i);
+                        p.setString(1, c.getPhoneNumber())
+                                .setString(2, c.getFirstName())
+                                .setString(3, c.getLastName())
+                                .setLong(4, firstAddressId + i)
+                                .setLong(5, firstSecurityId + i);
+                    });
+
+            for (int i = 0; i < count; i++) {
+                customerIds[i] = (int) (firstCustomerId + i);
+            }
+        });
 
-        String insertionQuery = ""
-                + "INSERT INTO customer"
-                + "(phone_number, first_name, last_name, address_id, "
-                + "    security_id) "
-                + "VALUES (?, ?, ?, ?, ?)";
-        DatabaseBinding[] insertionBindings = new DatabaseBinding[]{
-                new bString(1, phoneNumber),
-                new bString(2, firstName),
-                new bString(3, lastName),
-                new bInteger(4, addressId),
-                new bInteger(5, securityId)};
+        // SQLite may reuse the IDs of deleted customers
+        for (int customerId : customerIds) {
+            credentialCache.invalidate(customerId);
+        }
 
-        return newGenericDatabaseRecord(insertionQuery, insertionBindings);
+        return customerIds;
     }
 
     /**
      * Inserts a generic record into the database, and fetches its ID.
      *
-     * <p>Insertion is handled by a {@link TransactionContainer}, which executes
-     * an insertion and an ID getting query in a single transaction to prevent
-     * database concurrency issues.
+     * <p>The insertion and the query fetching its ID run in a single
+     * transaction on one connection, to prevent database concurrency issues.
      *
-     * @param insertionQuery The query to use for insertion
-     * @param insertionBindings Parameters to use for insertion
+     * @param insertionParameters The insertion to run, with its parameters
+     * filled in
      * @return The ID of the newly created record
      * @throws IllegalStateException The ID for the new record could not be
      * found
      */
-    private int newGenericDatabaseRecord(String insertionQuery,
-            DatabaseBinding[] insertionBindings) {
-        String retrieveIdQuery = "SELECT last_insert_rowid()";
-
-        TransactionContainer transaction = new TransactionContainer(
-                getConnection(),
-                new String[]{insertionQuery, retrieveIdQuery},
-                new DatabaseBinding[][]{insertionBindings, {}},
-                new boolean[]{false, true});
-
-        // Return ID of newly created address entry
-        List<Optional<ResultSet>> results = transaction.executeTransaction();
-
-        // Fetch the first row from results, and select the ID column
-        int newId = UncheckedFunction.<ResultSet, Integer>escapeFunction(
-                x -> x.getInt(1)).apply(results.get(1).orElseThrow(
-                () -> new IllegalStateException(
-                        "Failed to get last insert id")));
-        transaction.close(results);
+    private int newGenericDatabaseRecord(Parameters insertionParameters) {
+        int[] newId = new int[1];
+        inTransaction(() -> {
+            update(insertionParameters);
+            newId[0] = querySingle(LAST_INSERT_ID.parameters(),
+                    r -> r.getInt(1)).orElseThrow(
+                    () -> new IllegalStateException(
+                            "Failed to get last insert id"));
+        });
 
-        return newId;
+        return newId[0];
     }
 
     /**
@@ -291,54 +701,33 @@ public class ApplicationDatabaseManager extends DatabaseManager {
      */
     private int newAddress(String addressLine1, String addressLine2,
             String postcode, String county) {
-        String insertionQuery = ""
-                + "INSERT INTO address "
-                + "(address_1, address_2, postcode, county) "
-                + "VALUES (?, ?, ?, ?)";
-        DatabaseBinding[] insertionBindings = new DatabaseBinding[]{
-                new bString(1, addressLine1),
-                new bString(2, addressLine2),
-                new bString(3, postcode),
-                new bString(4, county)};
-
-        return newGenericDatabaseRecord(insertionQuery, insertionBindings);
+        return newGenericDatabaseRecord(INSERT_ADDRESS.parameters()
+                .setString(1, addressLine1)
+                .setString(2, addressLine2)
+                .setString(3, postcode)
+                .setString(4, county));
     }
 
     /**
      * Inserts a new security entry into the database. Generation of secure
-     * random data is performed in this class, as well as hashing the plaintext
-     * password.
+     * random data is performed in this class.
      *
-     * @param passwordPlaintext The plaintext of the password. It will be hashed
-     * before storage.
-     * @param passwordHashPasses The number of passes to use for the hashing
-     * algorithm when hashing the plaintext.
+     * @param password The hashed password
      * @return The ID of the newly created security entry.
      */
-    private int newSecurity(String passwordPlaintext,
-            int passwordHashPasses) {
+    private int newSecurity(PasswordData password) {
         byte[] loginSalt = SecurityService.getSalt();
         byte[] supportInSalt = SecurityService.getSalt();
         byte[] supportOutSalt = SecurityService.getSalt();
-        byte[] passwordSalt = SecurityService.getSalt();
-        byte[] passwordHash = SecurityService
-                .getPasswordHash(passwordPlaintext, passwordSalt,
-                        passwordHashPasses);
-
-        DatabaseBinding[] insertionBindings = new DatabaseBinding[]{
-                new bBytes(1, loginSalt),
-                new bBytes(2, supportInSalt),
-                new bBytes(3, supportOutSalt),
-                new bBytes(4, passwordHash),
-                new bBytes(5, passwordSalt),
-                new bInteger(6, passwordHashPasses)};
-        String insertionQuery = ""
-                + "INSERT INTO security "
-                + "(login_salt, support_in_salt, support_out_salt, password, "
-                + "    password_salt, password_hash_passes) "
-                + "VALUES (?, ?, ?, ?, ?, ?)";
 
-        return newGenericDatabaseRecord(insertionQuery, insertionBindings);
+        return newGenericDatabaseRecord(INSERT_SECURITY.parameters()
+                .setBytes(1, loginSalt)
+                .setBytes(2, supportInSalt)
+                .setBytes(3, supportOutSalt)
+                .setBytes(4, password.getPasswordHash())
+                .setBytes(5, password.getPasswordSalt())
+                .setInt(6, password.getPasses())
+                .setInt(7, password.getHashVersion()));
     }
 
     /**
@@ -348,21 +737,53 @@ public class ApplicationDatabaseManager extends DatabaseManager {
      * @param content The content for the log entry
      */
     public void newLog(long creationDate, byte[] content) {
-        DatabaseBinding[] insertionBindings = new DatabaseBinding[]{
-                new bLong(1, creationDate),
-                new bBytes(2, content)};
-        String insertionQuery = ""
-                + "INSERT INTO log "
-                + "(time_created, content) "
-                + "VALUES (?, ?)";
+        newLogs(new long[]{creationDate}, new byte[][]{content});
+    }
 
-        newGenericDatabaseRecord(insertionQuery, insertionBindings);
+    /**
+     * Inserts a batch of log entries into the database in a single
+     * transaction, which may be shared with other writes made at the same time.
+     * Entries at the same index of each array belong together.
+     *
+     * <p>Unlike other insertions, the IDs of new log entries are never needed,
+     * so they are not fetched.
+     *
+     * @param creationDates The date of creation for each log entry
+     * @param contents The content for each log entry
+     */
+    public void newLogs(long[] creationDates, byte[][] contents) {
+        append(creationDates, contents);
+    }
+
+    /**
+     * Inserts a batch of log entries into the database in a single
+     * transaction, which may be shared with other writes made at the same time.
+     *
+     * @param creationDates The date of creation for each log entry
+     * @param contents The content for each log entry
+     * @see ApplicationDatabaseManager#newLogs
+     */
+    @Override
+    public void append(long[] creationDates, byte[][] contents) {
+        if (creationDates.length != contents.length) {
+            throw new IllegalArgumentException(
+                    "Log dates and contents do not match");
+        }
+
+        inGroupCommit(() -> {
+            for (int i = 0; i < contents.length; i++) {
+                update(INSERT_LOG.parameters()
+                        .setLong(1, creationDates[i])
+                        .setBytes(2, contents[i]));
+            }
+        });
     }
 
     /**
      * Writes a change to a user's password to the database. This could
      * potentially include running more passes of the hashing function on the
-     * password in the case of a security upgrade.
+     * password in the case of a security upgrade. The password is hashed with
+     * the legacy SHA-256 scheme, {@link SecurityService#getPasswordHash}.
      *
      * @param securityId The ID of the user's security record
      * @param passwordPlaintext The plaintext of the new password
@@ -375,17 +796,28 @@ public class ApplicationDatabaseManager extends DatabaseManager {
         byte[] newPassword = SecurityService
                 .getPasswordHash(passwordPlaintext, passwordSalt,
                         hashIterations);
-        DatabaseBinding[] retrievalBindings = new DatabaseBinding[]{
-                new bBytes(1, newPassword),
-                new bBytes(2, passwordSalt),
-                new bInteger(3, hashIterations),
-                new bInteger(4, securityId)};
-        String updateQuery = ""
-                + "UPDATE security "
-                + "SET password=?, password_salt=?, password_hash_passes=? "
-                + "WHERE security_id=?";
+        updatePassword(securityId, new PasswordData(newPassword, passwordSalt,
+                LEGACY_HASH_VERSION, hashIterations));
+    }
 
-        exec(updateQuery, retrievalBindings, false);
+    /**
+     * Writes a change to a user's password to the database, with a password
+     * which has already been hashed. The change is group committed, since
+     * passwords are mostly updated when re-hashed in the background.
+     *
+     * @param securityId The ID of the user's security record
+     * @param password The new hashed password
+     * @see u1606484.banksim.PasswordHashingService#hash(String)
+     */
+    public void updatePassword(int securityId, PasswordData password) {
+        inGroupCommit(() -> update(UPDATE_PASSWORD.parameters()
+                .setBytes(1, password.getPasswordHash())
+                .setBytes(2, password.getPasswordSalt())
+                .setInt(3, password.getPasses())
+                .setInt(4, password.getHashVersion())
+                .setInt(5, securityId)));
+        // Only once the change is written, so it cannot be cached stale
+        credentialCache.invalidateSecurity(securityId);
     }
 
     /**
@@ -398,28 +830,46 @@ public class ApplicationDatabaseManager extends DatabaseManager {
      * @return An optional containing a PasswordData instance if a password
      * could be located. Otherwise, an empty optional.
      * @see PasswordData
+     * @see ApplicationDatabaseManager#getLoginData(int)
      */
     public Optional<PasswordData> getPasswordData(int userId) {
-        DatabaseBinding[] retrievalBindings = new DatabaseBinding[]{
-                new bInteger(1, userId)};
-
-        // Fetch password data
-        String retrievalQuery =
-                "SELECT s.security_id, s.password, s.password_salt, "
-                        + "    s.password_hash_passes "
-                        + "FROM customer c "
-                        + "JOIN security s ON c.security_id = s.security_id "
-                        + "WHERE c.customer_id = ?";
-
-        ResultSet rs = exec(retrievalQuery, retrievalBindings, true);
+        return getLoginData(userId).map(LoginData::getPassword);
+    }
 
-        return FunctionalHelpers.attemptSingleRetrieval(rs, r -> {
-            byte[] password = rs.getBytes(2);
-            byte[] salt = rs.getBytes(3);
-            int passes = rs.getInt(4);
+    /**
+     * Fetches a customer's password, OTAC secret key and phone number in a
+     * single query, for the first stage of logging in.
+     *
+     * <p>Results are held in a {@link CredentialCache}, so repeated calls for
+     * the same customer do not touch the database. The cache is invalidated
+     * whenever a customer is created or a password changed through this
+     * class.
+     *
+     * <p>This should never return an empty optional for an existing account,
+     * due to database constraints.
+     *
+     * @param userId The account ID to fetch data for
+     * @return An optional containing a LoginData instance if the account
+     * exists. Otherwise, an empty optional.
+     * @see LoginData
+     */
+    public Optional<LoginData> getLoginData(int userId) {
+        return credentialCache.get(userId, this::loadLoginData);
+    }
 
-            return new PasswordData(password, salt, passes);
-        });
+    /**
+     * Reads a customer's login data from the database, bypassing the cache
+     *
+     * @param userId The account ID to fetch data for
+     * @return An optional containing a LoginData instance if the account
+     * exists. Otherwise, an empty optional.
+     */
+    private Optional<LoginData> loadLoginData(int userId) {
+        return querySingle(LOGIN_BY_CUSTOMER.parameters().setInt(1, userId),
+                r -> new LoginData(
+                        new PasswordData(r.getInt(1), r.getBytes(2),
+                                r.getBytes(3), r.getInt(5), r.getInt(4)),
+                        r.getBytes(6), r.getString(7)));
     }
 
     /**
@@ -431,18 +881,10 @@ public class ApplicationDatabaseManager extends DatabaseManager {
      * @param userId The account ID to fetch the login secret key for
      * @return An optional containing the login secret key, if available.
      * Otherwise, an empty optional.
+     * @see ApplicationDatabaseManager#getLoginData(int)
      */
     public Optional<byte[]> fetchLoginKey(int userId) {
-        String retrievalQuery = ""
-                + "SELECT s.login_salt "
-                + "FROM customer c "
-                + "JOIN security s ON c.security_id "
-                + "WHERE c.customer_id = ?";
-        DatabaseBinding[] retrievalBindings = new DatabaseBinding[]{
-                new bInteger(1, userId)};
-        ResultSet rs = exec(retrievalQuery, retrievalBindings, true);
-
-        return FunctionalHelpers.attemptSingleRetrieval(rs, r -> r.getBytes(1));
+        return getLoginData(userId).map(LoginData::getLoginKey);
     }
 
     /**
@@ -454,17 +896,86 @@ public class ApplicationDatabaseManager extends DatabaseManager {
      * @param userId The account ID to fetch the phone number
      * @return An optional containing the phone number, if available. Otherwise,
      * an empty optional.
+     * @see ApplicationDatabaseManager#getLoginData(int)
      */
     public Optional<String> fetchPhoneNumber(int userId) {
-        String retrievalQuery = ""
-                + "SELECT c.phone_number "
-                + "FROM customer c "
-                + "WHERE c.customer_id = ?";
-        DatabaseBinding[] retrievalBindings = new DatabaseBinding[]{
-                new bInteger(1, userId)};
-        ResultSet rs = exec(retrievalQuery, retrievalBindings, true);
-
-        return FunctionalHelpers
-                .attemptSingleRetrieval(rs, r -> r.getString(1));
+        return getLoginData(userId).map(LoginData::getPhoneNumber);
+    }
+
+    /**
+     * Gets the cache in front of customer credentials, for its metrics
+     *
+     * @return The credential cache
+     */
+    public CredentialCache getCredentialCache() {
+        return credentialCache;
+    }
+
+    /**
+     * Publishes the latency of every query, and the figures kept by the
+     * connection pool, statement caches, credential cache and group commit
+     * coordinator, to a metrics registry
+     *
+     * @param metrics The registry to publish to
+     */
+    public void registerMetrics(MetricsRegistry metrics) {
+        metrics.register("db.log_page_ns", LOG_PAGE.getLatency());
+        metrics.register("db.session_by_customer_ns",
+                SESSION_BY_CUSTOMER.getLatency());
+        metrics.register("db.session_by_key_ns", SESSION_BY_KEY.getLatency());
+        metrics.register("db.expire_sessions_ns",
+                EXPIRE_SESSIONS.getLatency());
+        metrics.register("db.active_sessions_ns",
+                ACTIVE_SESSIONS.getLatency());
+        metrics.register("db.delete_expired_sessions_ns",
+                DELETE_EXPIRED_SESSIONS.getLatency());
+        metrics.register("db.insert_session_ns", INSERT_SESSION.getLatency());
+        metrics.register("db.set_otac_ns", SET_OTAC.getLatency());
+        metrics.register("db.insert_customer_ns",
+                INSERT_CUSTOMER.getLatency());
+        metrics.register("db.last_insert_id_ns", LAST_INSERT_ID.getLatency());
+        metrics.register("db.insert_address_ns", INSERT_ADDRESS.getLatency());
+        metrics.register("db.insert_security_ns",
+                INSERT_SECURITY.getLatency());
+        metrics.register("db.insert_log_ns", INSERT_LOG.getLatency());
+        metrics.register("db.update_password_ns",
+                UPDATE_PASSWORD.getLatency());
+        metrics.register("db.login_by_customer_ns",
+                LOGIN_BY_CUSTOMER.getLatency());
+
+        ConnectionPool pool = getPool();
+        metrics.gauge("db.pool.open", pool::getOpenCount);
+        metrics.gauge("db.pool.idle", pool::getIdleCount);
+        StatementCache.Counters statements = pool.getStatementCounters();
+        metrics.gauge("db.statement_cache.hits", statements::getHits);
+        metrics.gauge("db.statement_cache.misses", statements::getMisses);
+        metrics.gauge("db.statement_cache.evictions",
+                statements::getEvictions);
+
+        metrics.gauge("credential_cache.size", credentialCache::size);
+        metrics.gauge("credential_cache.hits", credentialCache::getHitCount);
+        metrics.gauge("credential_cache.misses",
+                credentialCache::getMissCount);
+        metrics.gauge("credential_cache.evictions",
+                credentialCache::getEvictionCount);
+        metrics.gauge("credential_cache.expirations",
+                credentialCache::getExpirationCount);
+        metrics.gauge("credential_cache.invalidations",
+                credentialCache::getInvalidationCount);
+
+        GroupCommitCoordinator groupCommit = getGroupCommit();
+        metrics.register("group_commit.batch_size",
+                groupCommit.getBatchSizes());
+        metrics.register("group_commit.commit_ns",
+                groupCommit.getCommitLatency());
+        metrics.register("group_commit.write_ns",
+                groupCommit.getWriteLatency());
+        metrics.gauge("group_commit.queue_depth", groupCommit::getQueueDepth);
+        metrics.gauge("group_commit.retried_batches",
+                groupCommit::getRetriedBatchCount);
+        metrics.gauge("group_commit.failed_writes",
+                groupCommit::getFailedWriteCount);
+        metrics.gauge("group_commit.rejected_writes",
+                groupCommit::getRejectedWriteCount);
     }
 }
@@ -0,0 +1,489 @@
+package u1606484.banksim.databases;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of connections to a single SQLite database.
+ *
+ * <p>Connections are handed out as {@link Lease} objects, which are bound to
+ * the thread that borrowed them. Borrowing again from the same thread while a
+ * lease is still open returns that same lease, so a transaction run from
+ * inside another database operation, through {@link
+ * DatabaseManager#inTransaction}, shares its connection and transaction. The
+ * connection only goes back to the pool once the outermost lease has been
+ * closed.
+ *
+ * <p>Every connection is opened in WAL journal mode, so any number of pooled
+ * readers can run alongside the single writer SQLite allows, rather than
+ * blocking on it.
+ *
+ * <p>Each connection keeps its own {@link StatementCache}, so queries prepared
+ * through {@link Lease#prepare(String)} are compiled once per connection
+ * rather than once per use.
+ */
+class ConnectionPool {
+
+    /**
+     * The number of connections a pool may open if no size is specified
+     */
+    static final int DEFAULT_POOL_SIZE = 8;
+    /**
+     * How long a thread may wait for a connection to be returned before giving
+     * up, in milliseconds
+     */
+    private static final long BORROW_TIMEOUT_MILLIS = 5 * 1000;
+    /**
+     * How long SQLite itself will retry a locked database before failing, in
+     * milliseconds
+     */
+    private static final int BUSY_TIMEOUT_MILLIS = 5 * 1000;
+    /**
+     * How long a connection may sit idle before it is checked for health upon
+     * being borrowed, in milliseconds
+     */
+    private static final long VALIDATION_INTERVAL_MILLIS = 30 * 1000;
+    /**
+     * How long to wait for a health check to respond, in seconds
+     */
+    private static final int VALIDATION_TIMEOUT_SECONDS = 1;
+
+    /**
+     * The JDBC URL used to open new connections
+     */
+    private final String url;
+    /**
+     * The maximum number of connections this pool will have open at once
+     */
+    private final int maximumSize;
+    /**
+     * Connections which are open, but not currently leased to any thread
+     */
+    private final BlockingQueue<PooledConnection> idle;
+    /**
+     * The number of connections currently open, whether idle or leased
+     */
+    private final AtomicInteger openCount = new AtomicInteger();
+    /**
+     * The lease currently held by each thread, if any
+     */
+    private final ThreadLocal<Lease> currentLease = new ThreadLocal<>();
+    /**
+     * Statement cache activity, totalled across every connection
+     */
+    private final StatementCache.Counters statementCounters =
+            new StatementCache.Counters();
+    /**
+     * Whether the pool has been shut down
+     */
+    private volatile boolean closed = false;
+
+    ConnectionPool(String url, int maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("Pool size must be positive");
+        }
+
+        this.url = url;
+        this.maximumSize = maximumSize;
+        this.idle = new ArrayBlockingQueue<>(maximumSize);
+    }
+
+    /**
+     * Borrows a connection for the current thread. If this thread already
+     * holds a lease, that lease is returned again and must be closed once more
+     * before the connection is released.
+     *
+     * @return A lease over a healthy connection
+     * @throws IllegalStateException If the pool has been closed, or no
+     * connection became available in time
+     */
+    Lease borrow() {
+        Lease existing = currentLease.get();
+        if (existing != null) {
+            existing.depth++;
+            return existing;
+        }
+
+        Lease lease = new Lease(acquire());
+        currentLease.set(lease);
+        return lease;
+    }
+
+    /**
+     * Checks whether the current thread already holds a lease
+     *
+     * @return If the thread holds a lease, true. Otherwise false.
+     */
+    boolean isLeaseHeld() {
+        return currentLease.get() != null;
+    }
+
+    /**
+     * Gets the number of connections currently open
+     *
+     * @return The number of open connections, leased or idle
+     */
+    int getOpenCount() {
+        return openCount.get();
+    }
+
+    /**
+     * Gets the number of connections currently sitting idle in the pool
+     *
+     * @return The number of idle connections
+     */
+    int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Gets the statement cache activity of every connection in the pool
+     *
+     * @return Statement cache hit, miss and eviction counts
+     */
+    StatementCache.Counters getStatementCounters() {
+        return statementCounters;
+    }
+
+    /**
+     * Closes every idle connection and stops any further borrowing.
+     * Connections which are leased at the time of closing are closed as they
+     * are returned.
+     */
+    void close() {
+        closed = true;
+
+        PooledConnection c;
+        while ((c = idle.poll()) != null) {
+            discard(c);
+        }
+    }
+
+    /**
+     * Takes an idle connection, opens a new one if the pool has room, or
+     * otherwise waits for another thread to return one.
+     *
+     * @return A healthy connection, removed from the idle queue
+     */
+    private PooledConnection acquire() {
+        while (true) {
+            if (closed) {
+                throw new IllegalStateException("Connection pool is closed");
+            }
+
+            PooledConnection c = idle.poll();
+            if (c == null) {
+                c = tryOpen();
+            }
+            if (c == null) {
+                try {
+                    c = idle.poll(BORROW_TIMEOUT_MILLIS,
+                            TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(
+                            "Interrupted waiting for a database connection",
+                            e);
+                }
+
+                if (c == null) {
+                    throw new IllegalStateException(
+                            "Timed out waiting for a database connection");
+                }
+            }
+
+            if (isHealthy(c)) {
+                return c;
+            }
+            discard(c);
+        }
+    }
+
+    /**
+     * Opens a new connection, provided doing so would not exceed the maximum
+     * pool size.
+     *
+     * @return A new connection, or null if the pool is already full
+     */
+    private PooledConnection tryOpen() {
+        int count;
+        do {
+            count = openCount.get();
+            if (count >= maximumSize) {
+                return null;
+            }
+        } while (!openCount.compareAndSet(count, count + 1));
+
+        try {
+            Connection conn = DriverManager.getConnection(url);
+
+            // Journal mode cannot be changed mid-transaction, so this must
+            // happen before auto-commit is disabled
+            try (Statement s = conn.createStatement()) {
+                s.execute("PRAGMA journal_mode = WAL");
+                s.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MILLIS);
+            }
+            conn.setAutoCommit(false);
+
+            return new PooledConnection(conn,
+                    new StatementCache(conn, StatementCache.DEFAULT_CAPACITY,
+                            statementCounters));
+        } catch (SQLException e) {
+            openCount.decrementAndGet();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Checks whether a connection is still usable. Connections used recently
+     * are assumed to be healthy to avoid a round trip on every borrow.
+     *
+     * @param c The connection to check
+     * @return If the connection can be used, true. Otherwise false.
+     */
+    private boolean isHealthy(PooledConnection c) {
+        try {
+            if (c.connection.isClosed()) {
+                return false;
+            }
+
+            long idleTime = System.currentTimeMillis() - c.lastUsed;
+            return idleTime < VALIDATION_INTERVAL_MILLIS
+                    || c.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes a connection and frees its space in the pool
+     *
+     * @param c The connection to discard
+     */
+    private void discard(PooledConnection c) {
+        openCount.decrementAndGet();
+        try {
+            c.statements.clear();
+            c.connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Hands a connection back to the pool once its outermost lease is closed.
+     * Any work left uncommitted by the lease holder is rolled back, so the next
+     * borrower always starts with a clean transaction.
+     *
+     * @param c The connection to return
+     */
+    private void release(PooledConnection c) {
+        currentLease.remove();
+
+        try {
+            c.connection.rollback();
+        } catch (SQLException e) {
+            discard(c);
+            return;
+        }
+
+        c.lastUsed = System.currentTimeMillis();
+        if (closed || !idle.offer(c)) {
+            discard(c);
+        }
+    }
+
+    /**
+     * A single open connection, along with the bookkeeping the pool needs to
+     * manage it.
+     */
+    private static class PooledConnection {
+
+        /**
+         * The underlying JDBC connection
+         */
+        private final Connection connection;
+        /**
+         * Statements already prepared on this connection
+         */
+        private final StatementCache statements;
+        /**
+         * When the connection was last returned to the pool
+         */
+        private long lastUsed;
+
+        PooledConnection(Connection connection, StatementCache statements) {
+            this.connection = connection;
+            this.statements = statements;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * A connection borrowed from the pool by a single thread. Closing the
+     * lease returns the connection, so leases are intended to be used in a
+     * try-with-resources block.
+     */
+    final class Lease implements AutoCloseable {
+
+        /**
+         * The connection backing this lease
+         */
+        private final PooledConnection pooled;
+        /**
+         * How many times the owning thread has borrowed this lease without
+         * closing it
+         */
+        private int depth = 1;
+        /**
+         * How many explicit transactions are open on this lease. While any
+         * are, individual commits are deferred until the outermost one ends.
+         */
+        private int transactionDepth = 0;
+        /**
+         * Set when a nested transaction fails, so that the outermost one rolls
+         * back rather than committing the rest of the work without it
+         */
+        private boolean rollbackOnly = false;
+
+        private Lease(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        /**
+         * Gets the leased connection. This must not be used after the lease
+         * has been closed.
+         *
+         * @return The leased connection
+         */
+        Connection getConnection() {
+            return pooled.connection;
+        }
+
+        /**
+         * Fetches a prepared statement for the given SQL from the
+         * connection's statement cache. The statement belongs to the cache and
+         * must not be closed.
+         *
+         * @param sql The SQL text of the statement
+         * @return A prepared statement with no parameters bound
+         * @throws SQLException If the statement could not be prepared
+         * @see StatementCache#prepare(String)
+         */
+        PreparedStatement prepare(String sql) throws SQLException {
+            return pooled.statements.prepare(sql);
+        }
+
+        /**
+         * Checks whether this is the only open borrow of the lease, meaning
+         * closing it will return the connection to the pool.
+         *
+         * @return If this is the outermost borrow, true. Otherwise false.
+         */
+        boolean isOutermost() {
+            return depth == 1;
+        }
+
+        /**
+         * Commits the current transaction on the leased connection, unless an
+         * explicit transaction is open, in which case the commit is left to
+         * {@link Lease#endTransaction()}.
+         */
+        void commit() {
+            if (transactionDepth > 0) {
+                return;
+            }
+
+            try {
+                pooled.connection.commit();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * Opens an explicit transaction, grouping every statement run on this
+         * lease until the matching {@link Lease#endTransaction()} into a single
+         * commit.
+         */
+        void beginTransaction() {
+            transactionDepth++;
+        }
+
+        /**
+         * Closes an explicit transaction, committing if it was the outermost
+         * one. If the lease is closed without this being called, the work is
+         * rolled back instead.
+         *
+         * @throws IllegalStateException If a transaction nested within this
+         * one was aborted, in which case all of the work has been rolled back
+         */
+        void endTransaction() {
+            if (transactionDepth <= 0) {
+                throw new IllegalStateException("No transaction is open");
+            }
+
+            transactionDepth--;
+            if (transactionDepth == 0 && rollbackOnly) {
+                rollbackOnly = false;
+                rollback();
+                throw new IllegalStateException("Transaction rolled back, "
+                        + "since work nested within it failed");
+            }
+            commit();
+        }
+
+        /**
+         * Closes an explicit transaction whose work failed. If it was the
+         * outermost one, everything since it began is rolled back straight
+         * away. Otherwise, the outermost transaction is marked so that it
+         * rolls back too, rather than committing what remains.
+         */
+        void abortTransaction() {
+            if (transactionDepth <= 0) {
+                throw new IllegalStateException("No transaction is open");
+            }
+
+            transactionDepth--;
+            if (transactionDepth > 0) {
+                rollbackOnly = true;
+                return;
+            }
+
+            rollbackOnly = false;
+            rollback();
+        }
+
+        /**
+         * Rolls back the current transaction on the leased connection
+         */
+        private void rollback() {
+            try {
+                pooled.connection.rollback();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * Closes this lease, returning the connection to the pool if this was
+         * the outermost borrow on the thread.
+         */
+        @Override
+        public void close() {
+            depth--;
+            if (depth == 0) {
+                transactionDepth = 0;
+                rollbackOnly = false;
+                release(pooled);
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package u1606484.banksim.databases;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/**
+ * A bounded, read-through cache of each customer's {@link LoginData}, so that
+ * repeated login attempts and OTAC resends for the same account do not query
+ * the database each time.
+ *
+ * <p>At most {@value DEFAULT_CAPACITY} customers are held by default, and
+ * each entry expires a fixed time after it was loaded. Entries are
+ * invalidated explicitly whenever this process changes the underlying rows;
+ * the expiry only bounds how long a change made by another process can go
+ * unseen.
+ *
+ * <p>Lookups take no lock, so that logins for different customers never wait
+ * on each other. Eviction is therefore approximate: each entry records when
+ * it was last used, to within {@value ACCESS_GRANULARITY_MILLIS}ms, and once
+ * the cache is over capacity a single thread sweeps it, dropping expired
+ * entries and then the least recently used, until it is {@value
+ * EVICTION_PERCENT}% below capacity. The cache may briefly hold more than
+ * its capacity while a sweep runs.
+ *
+ * <p>An invalidation which happens while an entry is being loaded prevents
+ * that load from being cached, so a stale read can never be cached after the
+ * change which made it stale.
+ */
+public class CredentialCache {
+
+    /**
+     * The number of customers held, if not specified
+     */
+    static final int DEFAULT_CAPACITY = 10000;
+    /**
+     * How long an entry is held, if not specified, in milliseconds
+     */
+    static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    /**
+     * How stale an entry's last use time may be, in milliseconds. Hits on an
+     * entry within this time of its last recorded use do not write to it.
+     */
+    private static final long ACCESS_GRANULARITY_MILLIS = 1000;
+    /**
+     * How far below capacity a sweep reduces the cache, as a percentage of
+     * the capacity, so that sweeps are not run on every insertion
+     */
+    private static final int EVICTION_PERCENT = 10;
+
+    /**
+     * The maximum number of customers held
+     */
+    private final int capacity;
+    /**
+     * How long an entry is held after being loaded, in milliseconds
+     */
+    private final long ttlMillis;
+    /**
+     * Cached entries by customer ID
+     */
+    private final ConcurrentHashMap<Integer, Cached> entries =
+            new ConcurrentHashMap<>();
+    /**
+     * Incremented by every invalidation, so that loads which overlap one can
+     * be discarded
+     */
+    private final AtomicLong generation = new AtomicLong();
+    /**
+     * Set while a thread is sweeping the cache, so that only one does so at
+     * a time
+     */
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * Creates a cache with the default capacity and expiry
+     */
+    CredentialCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * Creates a cache with a given capacity and expiry
+     *
+     * @param capacity The maximum number of customers to hold
+     * @param ttlMillis How long to hold each entry, in milliseconds
+     */
+    CredentialCache(int capacity, long ttlMillis) {
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Gets a customer's login data, loading and caching it if it is not
+     * already held. Customers who could not be found are not cached.
+     *
+     * @param customerId The account ID of the customer
+     * @param loader Reads the customer's login data from the database
+     * @return The customer's login data, or an empty optional if the loader
+     * found none
+     */
+    Optional<LoginData> get(int customerId,
+            IntFunction<Optional<LoginData>> loader) {
+        long loadGeneration = generation.get();
+        Cached e = entries.get(customerId);
+        if (e != null) {
+            long now = System.currentTimeMillis();
+            if (e.expiry > now) {
+                if (now - e.lastUsed >= ACCESS_GRANULARITY_MILLIS) {
+                    e.lastUsed = now;
+                }
+                hits.increment();
+                return Optional.of(e.data);
+            }
+            if (entries.remove(customerId, e)) {
+                expirations.increment();
+            }
+        }
+
+        misses.increment();
+        Optional<LoginData> loaded = loader.apply(customerId);
+
+        if (loaded.isPresent() && generation.get() == loadGeneration) {
+            long now = System.currentTimeMillis();
+            Cached c = new Cached(loaded.get(), now + ttlMillis, now);
+            entries.put(customerId, c);
+
+            // An invalidation between the check above and the put may have
+            // missed this entry, so it must be withdrawn
+            if (generation.get() != loadGeneration) {
+                entries.remove(customerId, c);
+            } else if (entries.size() > capacity) {
+                sweep();
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Discards the cached data for a customer
+     *
+     * @param customerId The account ID of the customer
+     */
+    void invalidate(int customerId) {
+        generation.incrementAndGet();
+        entries.remove(customerId);
+        invalidations.increment();
+    }
+
+    /**
+     * Discards the cached data for whichever customer a security record
+     * belongs to. Passwords change rarely, so this simply searches every
+     * entry.
+     *
+     * @param securityId The ID of the security record
+     */
+    void invalidateSecurity(int securityId) {
+        generation.incrementAndGet();
+        entries.values().removeIf(
+                c -> c.data.getPassword().getSecurityId() == securityId);
+        invalidations.increment();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getExpirationCount() {
+        return expirations.sum();
+    }
+
+    public long getInvalidationCount() {
+        return invalidations.sum();
+    }
+
+    /**
+     * Gets the fraction of lookups which were answered from the cache
+     *
+     * @return The hit rate, from 0 to 1. 0 if there have been no lookups.
+     */
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Brings the cache back below capacity, by dropping expired entries and
+     * then the least recently used. If another thread is already doing so,
+     * this returns immediately.
+     */
+    private void sweep() {
+        if (!sweeping.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            long now = System.currentTimeMillis();
+            List<Map.Entry<Integer, Cached>> live =
+                    new ArrayList<>(entries.size());
+            for (Map.Entry<Integer, Cached> e : entries.entrySet()) {
+                if (e.getValue().expiry > now) {
+                    live.add(e);
+                } else if (entries.remove(e.getKey(), e.getValue())) {
+                    expirations.increment();
+                }
+            }
+
+            int target = capacity - capacity * EVICTION_PERCENT / 100;
+            int excess = live.size() - target;
+            if (excess <= 0) {
+                return;
+            }
+
+            // Last use times may change during the sweep, so the cut-off is
+            // found from a copy of them
+            long[] lastUsed = new long[live.size()];
+            for (int i = 0; i < lastUsed.length; i++) {
+                lastUsed[i] = live.get(i).getValue().lastUsed;
+            }
+            Arrays.sort(lastUsed);
+            long cutoff = lastUsed[excess - 1];
+
+            int evicted = 0;
+            for (Map.Entry<Integer, Cached> e : live) {
+                if (evicted == excess) {
+                    break;
+                }
+                if (e.getValue().lastUsed <= cutoff
+                        && entries.remove(e.getKey(), e.getValue())) {
+                    evictions.increment();
+                    evicted++;
+                }
+            }
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    /**
+     * A customer's cached data, when it expires, and roughly when it was
+     * last used
+     */
+    private static class Cached {
+
+        private final LoginData data;
+        private final long expiry;
+        private volatile long lastUsed;
+
+        Cached(LoginData data, long expiry, long lastUsed) {
+            this.data = data;
+            this.expiry = expiry;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
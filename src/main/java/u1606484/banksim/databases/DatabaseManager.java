@@ -1,13 +1,42 @@
 package u1606484.banksim.databases;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.function.ObjIntConsumer;
+import u1606484.banksim.databases.ConnectionPool.Lease;
 import u1606484.banksim.databases.FunctionalHelpers.DatabaseBinding;
+import u1606484.banksim.databases.FunctionalHelpers.UncheckedConsumer;
+import u1606484.banksim.databases.FunctionalHelpers.UncheckedFunction;
+import u1606484.banksim.databases.QueryShape.Parameters;
 
+/**
+ * Provides low-level access to the database through a {@link ConnectionPool},
+ * so that concurrent requests each run on their own connection rather than
+ * queueing behind a single shared one.
+ *
+ * <p>Statements are prepared through each connection's {@link
+ * StatementCache}, so the fixed queries used by {@link
+ * ApplicationDatabaseManager} are only compiled once per connection.
+ *
+ * <p>Each method accepts its parameters either as an array of {@link
+ * DatabaseBinding}s, or as the {@link Parameters} of a {@link QueryShape}.
+ * The latter allocate nothing to bind, so should be used for queries run on
+ * every request.
+ *
+ * <p>Statements run from a {@link QueryShape} have their latency recorded
+ * against it, and can be published with {@link
+ * ApplicationDatabaseManager#registerMetrics}.
+ *
+ * <p>Writes which need not commit straight away, but are made often and from
+ * many threads, can be run through {@link DatabaseManager#inGroupCommit}, so
+ * that they share commits rather than each syncing the database to disk.
+ *
+ * <p>Before any connections are opened, the database's schema is brought up
+ * to date by a {@link SchemaMigrator}.
+ */
 class DatabaseManager {
 
     /**
@@ -15,42 +44,102 @@ class DatabaseManager {
      */
     private static final String DATABASE_URL = "jdbc:sqlite::resource"
             + ":accounts.db";
-    private final Connection conn;
+    /**
+     * The pool all queries borrow their connections from
+     */
+    private final ConnectionPool pool;
+    /**
+     * Coalesces writes from many threads into shared transactions
+     */
+    private final GroupCommitCoordinator groupCommit;
 
     DatabaseManager() {
-        try {
-            conn = DriverManager.getConnection(DATABASE_URL);
-            conn.setAutoCommit(false);
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
+        this(ConnectionPool.DEFAULT_POOL_SIZE);
     }
 
-    private void commit() {
-        try {
-            conn.commit();
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
+    DatabaseManager(int poolSize) {
+        this(DATABASE_URL, poolSize);
+    }
+
+    DatabaseManager(String url, int poolSize) {
+        new SchemaMigrator(url).migrate();
+        pool = new ConnectionPool(url, poolSize);
+        groupCommit = new GroupCommitCoordinator(this);
+    }
+
+    /**
+     * Borrows a connection for the current thread. The returned lease should
+     * be closed once the caller is finished with any results it produced.
+     *
+     * @return A lease over a pooled connection
+     * @see ConnectionPool#borrow()
+     */
+    Lease borrow() {
+        return pool.borrow();
+    }
+
+    /**
+     * Gets the pool backing this manager
+     *
+     * @return The connection pool
+     */
+    ConnectionPool getPool() {
+        return pool;
     }
 
-    Connection getConnection() {
-        return conn;
+    /**
+     * Gets the coordinator grouping writes into shared transactions, for its
+     * batch size and latency figures
+     *
+     * @return The group commit coordinator
+     */
+    public GroupCommitCoordinator getGroupCommit() {
+        return groupCommit;
+    }
+
+    /**
+     * Commits any writes waiting for a group commit, then closes all pooled
+     * connections. The manager cannot be used afterwards.
+     */
+    public void close() {
+        groupCommit.close();
+        pool.close();
     }
 
+    /**
+     * Runs a single statement against the database.
+     *
+     * <p>DML statements ({@code resultsRequired} false) are committed
+     * immediately. Queries returning results must be run while the calling
+     * thread holds a lease, since the returned {@link ResultSet} is only valid
+     * for as long as its connection is; {@link DatabaseManager#query} handles
+     * this for most callers.
+     *
+     * @param query The SQL to run
+     * @param bindings Parameters to bind to the statement
+     * @param resultsRequired If the query is a DML query, this should be false.
+     * Otherwise true.
+     * @return The results of the query, or null for DML statements and on
+     * failure
+     * @throws IllegalStateException If results are required, but the thread
+     * does not already hold a lease
+     */
     ResultSet exec(String query, DatabaseBinding[] bindings,
             boolean resultsRequired) {
+        try (Lease lease = pool.borrow()) {
+            if (resultsRequired && lease.isOutermost()) {
+                throw new IllegalStateException(
+                        "Results can only be read while holding a lease");
+            }
 
-        try {
-            PreparedStatement runQuery = conn.prepareStatement(query);
-            Arrays.stream(bindings).forEach(b -> b.performBinding(runQuery));
+            PreparedStatement runQuery = lease.prepare(query);
+            DatabaseBinding.bindAll(runQuery, bindings);
 
             if (resultsRequired) {
                 return runQuery.executeQuery();
             } else {
                 runQuery.executeUpdate();
-                runQuery.close();
-                commit();
+                lease.commit();
                 return null;
             }
         } catch (SQLException e) {
@@ -58,4 +147,298 @@ class DatabaseManager {
             return null;
         }
     }
+
+    /**
+     * Runs a single DML statement, committing it unless the calling thread is
+     * inside {@link DatabaseManager#inTransaction}.
+     *
+     * @param query The SQL to run
+     * @param bindings Parameters to bind to the statement
+     * @return The number of rows changed
+     * @throws IllegalStateException If the statement could not be run
+     */
+    int update(String query, DatabaseBinding[] bindings) {
+        return update(query, s -> DatabaseBinding.bindAll(s, bindings));
+    }
+
+    /**
+     * Runs a single DML statement, committing it unless the calling thread is
+     * inside {@link DatabaseManager#inTransaction}.
+     *
+     * @param parameters The statement to run, with its parameters filled in
+     * @return The number of rows changed
+     * @throws IllegalStateException If the statement could not be run
+     */
+    int update(Parameters parameters) {
+        QueryShape shape = parameters.getShape();
+        long start = System.nanoTime();
+        try {
+            return update(shape.getSql(), parameters);
+        } finally {
+            shape.getLatency().record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Runs a single DML statement, committing it unless the calling thread is
+     * inside {@link DatabaseManager#inTransaction}.
+     *
+     * @param query The SQL to run
+     * @param binder Binds parameters to the prepared statement
+     * @return The number of rows changed
+     * @throws IllegalStateException If the statement could not be run
+     */
+    private int update(String query,
+            UncheckedConsumer<PreparedStatement> binder) {
+        try (Lease lease = pool.borrow()) {
+            PreparedStatement runQuery = lease.prepare(query);
+            binder.accept(runQuery);
+
+            int changed = runQuery.executeUpdate();
+            lease.commit();
+            return changed;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Update failed: " + query, e);
+        }
+    }
+
+    /**
+     * Inserts many rows with one statement, sent to the database as a single
+     * JDBC batch, and works out the IDs they were given.
+     *
+     * <p>The rows are inserted in a transaction, joining the calling thread's
+     * own if it has one. While it is open, no other connection can write, and
+     * SQLite gives each new row of a table with an {@code INTEGER PRIMARY KEY}
+     * one more than the largest ID so far, so the rows are given consecutive
+     * IDs. Only the last is read back, rather than one per row; SQLite's own
+     * {@code RETURNING} clause is not available in the driver version used.
+     *
+     * @param shape The insertion to run
+     * @param rows The number of rows to insert
+     * @param binder Fills in the parameters for the row with a given index
+     * @return The ID of the first row inserted. The row at index {@code i}
+     * was given this ID plus {@code i}.
+     * @throws IllegalStateException If the rows could not be inserted
+     */
+    long insertBatch(QueryShape shape, int rows,
+            ObjIntConsumer<Parameters> binder) {
+        String query = shape.getSql();
+        long[] firstId = new long[1];
+        long start = System.nanoTime();
+
+        inTransaction(() -> {
+            try (Lease lease = pool.borrow()) {
+                PreparedStatement insert = lease.prepare(query);
+                for (int i = 0; i < rows; i++) {
+                    Parameters p = shape.parameters();
+                    binder.accept(p, i);
+                    p.accept(insert);
+                    insert.addBatch();
+                }
+
+                int inserted = 0;
+                for (int changed : insert.executeBatch()) {
+                    inserted += changed;
+                }
+                if (inserted != rows) {
+                    throw new IllegalStateException("Inserted " + inserted
+                            + " of " + rows + " rows: " + query);
+                }
+
+                try (ResultSet rs = lease.prepare("SELECT last_insert_rowid()")
+                        .executeQuery()) {
+                    if (!rs.next()) {
+                        throw new IllegalStateException(
+                                "Failed to get last insert id");
+                    }
+                    firstId[0] = rs.getLong(1) - rows + 1;
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException("Update failed: " + query, e);
+            }
+        });
+
+        shape.getLatency().record(System.nanoTime() - start);
+        return firstId[0];
+    }
+
+    /**
+     * Runs some work in a single transaction on one borrowed connection. Any
+     * statements run by the work on this thread, including those committed by
+     * {@link DatabaseManager#exec}, are only committed once the work finishes,
+     * and are rolled back if it throws.
+     *
+     * <p>If this is nested within another transaction on the same thread and
+     * the work throws, the outer transaction is rolled back as well, even if
+     * its own work catches the exception and carries on.
+     *
+     * @param work The database operations to group
+     * @throws IllegalStateException If a transaction nested within this one
+     * failed, so everything was rolled back
+     */
+    void inTransaction(Runnable work) {
+        try (Lease lease = pool.borrow()) {
+            lease.beginTransaction();
+            try {
+                work.run();
+            } catch (RuntimeException | Error e) {
+                try {
+                    lease.abortTransaction();
+                } catch (RuntimeException rollbackFailure) {
+                    e.addSuppressed(rollbackFailure);
+                }
+                throw e;
+            }
+            lease.endTransaction();
+        }
+    }
+
+    /**
+     * Runs some writes in a transaction shared with writes submitted by other
+     * threads at around the same time, and waits for it to commit.
+     *
+     * <p>If the calling thread already holds a lease, for example inside
+     * {@link DatabaseManager#inTransaction}, the work instead joins that
+     * thread's own transaction, so that it still commits or rolls back along
+     * with the rest of it.
+     *
+     * @param work The database operations to perform. These may be run more
+     * than once, so must not change anything other than the database.
+     * @throws RuntimeException If the work failed, or could not be queued
+     * @see GroupCommitCoordinator
+     */
+    public void inGroupCommit(Runnable work) {
+        if (pool.isLeaseHeld()) {
+            inTransaction(work);
+            return;
+        }
+
+        try {
+            groupCommit.submit(() -> {
+                work.run();
+                return null;
+            }).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Runs a query on a borrowed connection, passing its results to a handler
+     * before the connection is returned.
+     *
+     * @param query The SQL to run
+     * @param bindings Parameters to bind to the query
+     * @param handler Reads whatever is required from the results
+     * @param <T> The type of data the handler produces
+     * @return Whatever the handler returned
+     * @throws IllegalStateException If the query could not be run
+     */
+    <T> T query(String query, DatabaseBinding[] bindings,
+            UncheckedFunction<ResultSet, T> handler) {
+        return query(query, s -> DatabaseBinding.bindAll(s, bindings),
+                handler);
+    }
+
+    /**
+     * Runs a query on a borrowed connection, passing its results to a handler
+     * before the connection is returned.
+     *
+     * @param parameters The query to run, with its parameters filled in
+     * @param handler Reads whatever is required from the results
+     * @param <T> The type of data the handler produces
+     * @return Whatever the handler returned
+     * @throws IllegalStateException If the query could not be run
+     */
+    <T> T query(Parameters parameters,
+            UncheckedFunction<ResultSet, T> handler) {
+        QueryShape shape = parameters.getShape();
+        long start = System.nanoTime();
+        try {
+            return query(shape.getSql(), parameters, handler);
+        } finally {
+            shape.getLatency().record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Runs a query on a borrowed connection, passing its results to a handler
+     * before the connection is returned.
+     *
+     * @param query The SQL to run
+     * @param binder Binds parameters to the prepared statement
+     * @param handler Reads whatever is required from the results
+     * @param <T> The type of data the handler produces
+     * @return Whatever the handler returned
+     * @throws IllegalStateException If the query could not be run
+     */
+    private <T> T query(String query,
+            UncheckedConsumer<PreparedStatement> binder,
+            UncheckedFunction<ResultSet, T> handler) {
+        try (Lease lease = pool.borrow()) {
+            PreparedStatement runQuery = lease.prepare(query);
+            binder.accept(runQuery);
+
+            try (ResultSet rs = runQuery.executeQuery()) {
+                return handler.apply(rs);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Query failed: " + query, e);
+        }
+    }
+
+    /**
+     * Runs a query expected to produce at most one row of interest.
+     *
+     * @param query The SQL to run
+     * @param bindings Parameters to bind to the query
+     * @param handler Converts the first row of results into a value
+     * @param <T> The type of data the handler produces
+     * @return An optional containing the handler's value for the first row, or
+     * an empty optional if there were no rows
+     * @see FunctionalHelpers#attemptSingleRetrieval
+     */
+    <T> Optional<T> querySingle(String query, DatabaseBinding[] bindings,
+            UncheckedFunction<ResultSet, T> handler) {
+        return query(query, bindings,
+                rs -> FunctionalHelpers.attemptSingleRetrieval(rs, handler));
+    }
+
+    /**
+     * Runs a query expected to produce at most one row of interest.
+     *
+     * <p>Unlike the other overloads, this reads the row directly rather than
+     * through a wrapping handler, so a non-capturing handler means the query
+     * allocates nothing beyond the JDBC driver's own objects and the result.
+     *
+     * @param parameters The query to run, with its parameters filled in
+     * @param handler Converts the first row of results into a value
+     * @param <T> The type of data the handler produces
+     * @return An optional containing the handler's value for the first row, or
+     * an empty optional if there were no rows
+     * @throws IllegalStateException If the query could not be run
+     */
+    <T> Optional<T> querySingle(Parameters parameters,
+            UncheckedFunction<ResultSet, T> handler) {
+        QueryShape shape = parameters.getShape();
+        String query = shape.getSql();
+        long start = System.nanoTime();
+        try (Lease lease = pool.borrow()) {
+            PreparedStatement runQuery = lease.prepare(query);
+            parameters.accept(runQuery);
+
+            try (ResultSet rs = runQuery.executeQuery()) {
+                return rs.next()
+                        ? Optional.of(handler.apply(rs))
+                        : Optional.empty();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Query failed: " + query, e);
+        } finally {
+            shape.getLatency().record(System.nanoTime() - start);
+        }
+    }
 }
@@ -17,44 +17,6 @@ import java.util.function.Function;
  */
 class FunctionalHelpers {
 
-    /**
-     * Binds a string to a prepared statement
-     *
-     * <p>{@code Integer -> String -> PreparedStatement}
-     */
-    private static final Function<Integer, Function<String,
-            Consumer<PreparedStatement>>> BIND_STRING = (i) -> (v) ->
-            UncheckedConsumer
-                    .escapeConsumer((s) -> s.setString(i, v));
-    /**
-     * Binds an integer to a prepared statement
-     *
-     * <p>{@code Integer -> Integer -> PreparedStatement}
-     */
-    private static final Function<Integer, Function<Integer,
-            Consumer<PreparedStatement>>> BIND_INTEGER = (i) -> (v) ->
-            UncheckedConsumer
-                    .escapeConsumer((s) -> s.setInt(i, v));
-    // Integer -> byte[] -> PreparedStatement
-    /**
-     * Binds a byte array to a prepared statement
-     *
-     * <p>{@code Integer -> byte[] -> PreparedStatement}
-     */
-    private static final Function<Integer, Function<byte[],
-            Consumer<PreparedStatement>>> BIND_BYTES = (i) -> (v) ->
-            UncheckedConsumer
-                    .escapeConsumer((s) -> s.setBytes(i, v));
-    /**
-     * Binds a long to a prepared statement
-     *
-     * <p>{@code Integer -> Long -> PreparedStatement}
-     */
-    private static final Function<Integer, Function<Long,
-            Consumer<PreparedStatement>>> BIND_LONG = (i) -> (v) ->
-            UncheckedConsumer
-                    .escapeConsumer((s) -> s.setLong(i, v));
-
     /**
      * Attempts to retrieve a single record of data from a {@link ResultSet}.
      * This operation accounts for the majority of all reading from the
@@ -154,44 +116,59 @@ class FunctionalHelpers {
     }
 
     /**
-     * Contains an index, value and binding function, containing all parameters
-     * to bind a single value to a {@link PreparedStatement}. This allows an
-     * array or {@link Collection} of objects to be given to a method to bind
-     * all of them to a statement.
+     * Contains an index and value, containing all parameters to bind a single
+     * value to a {@link PreparedStatement}. This allows an array or {@link
+     * Collection} of objects to be given to a method to bind all of them to a
+     * statement.
+     *
+     * <p>Queries run often should use a {@link QueryShape} instead, which
+     * binds without allocating.
      */
-    abstract static class DatabaseBinding<T> {
+    abstract static class DatabaseBinding {
 
         /**
          * Bind position in the prepared statement
          */
-        private final int index;
+        final int index;
+
+        private DatabaseBinding(int index) {
+            this.index = index;
+        }
+
         /**
-         * The value to bind to the statement
+         * Binds the provided value to the query, at provided position.
+         *
+         * @param s The PreparedStatement to bind to
+         * @throws SQLException If the value could not be bound
          */
-        private final T value;
+        abstract void bind(PreparedStatement s) throws SQLException;
+
         /**
-         * The "handler function" to manage the binding of the value to the
-         * prepared statement.
+         * Binds the provided value to the query, at provided position.
+         *
+         * @param s The PreparedStatement to bind to
+         * @throws RuntimeException If the value could not be bound
          */
-        private final Function<Integer, Function<T,
-                Consumer<PreparedStatement>>>
-                binder;
-
-        private DatabaseBinding(int index, T value,
-                Function<Integer, Function<T, Consumer<PreparedStatement>>>
-                        binder) {
-            this.index = index;
-            this.value = value;
-            this.binder = binder;
+        void performBinding(PreparedStatement s) {
+            try {
+                bind(s);
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
         }
 
         /**
-         * Binds the provided value to the query, at provided position using
-         * provided binding function.
+         * Binds every binding in an array to a statement
+         *
          * @param s The PreparedStatement to bind to
+         * @param bindings The bindings to apply
+         * @throws SQLException If a value could not be bound
          */
-        void performBinding(PreparedStatement s) {
-            binder.apply(index).apply(value).accept(s);
+        static void bindAll(PreparedStatement s, DatabaseBinding[] bindings)
+                throws SQLException {
+            for (DatabaseBinding b : bindings) {
+                b.bind(s);
+            }
         }
     }
 
@@ -199,10 +176,18 @@ class FunctionalHelpers {
      * A version of {@link DatabaseBinding} specified to use only strings,
      * yielding more consise code
      */
-    static class bString extends DatabaseBinding<String> {
+    static class bString extends DatabaseBinding {
+
+        private final String value;
 
         bString(int index, String value) {
-            super(index, value, BIND_STRING);
+            super(index);
+            this.value = value;
+        }
+
+        @Override
+        void bind(PreparedStatement s) throws SQLException {
+            s.setString(index, value);
         }
     }
 
@@ -210,10 +195,18 @@ class FunctionalHelpers {
     /**
      * A version of {@link DatabaseBinding} specified to use only integers, yielding more consise code
      */
-    static class bInteger extends DatabaseBinding<Integer> {
+    static class bInteger extends DatabaseBinding {
+
+        private final int value;
 
-        bInteger(int index, Integer value) {
-            super(index, value, BIND_INTEGER);
+        bInteger(int index, int value) {
+            super(index);
+            this.value = value;
+        }
+
+        @Override
+        void bind(PreparedStatement s) throws SQLException {
+            s.setInt(index, value);
         }
     }
 
@@ -222,10 +215,18 @@ class FunctionalHelpers {
      * A version of {@link DatabaseBinding} specified to use only byte
      * arrays, yielding more consise code
      */
-    static class bBytes extends DatabaseBinding<byte[]> {
+    static class bBytes extends DatabaseBinding {
+
+        private final byte[] value;
 
         bBytes(int index, byte[] value) {
-            super(index, value, BIND_BYTES);
+            super(index);
+            this.value = value;
+        }
+
+        @Override
+        void bind(PreparedStatement s) throws SQLException {
+            s.setBytes(index, value);
         }
     }
 
@@ -233,10 +234,18 @@ class FunctionalHelpers {
     /**
      * A version of {@link DatabaseBinding} specified to use only longs, yielding more consise code
      */
-    static class bLong extends DatabaseBinding<Long> {
+    static class bLong extends DatabaseBinding {
+
+        private final long value;
+
+        bLong(int index, long value) {
+            super(index);
+            this.value = value;
+        }
 
-        bLong(int index, Long value) {
-            super(index, value, BIND_LONG);
+        @Override
+        void bind(PreparedStatement s) throws SQLException {
+            s.setLong(index, value);
         }
     }
-}
\ No newline at end of file
+}
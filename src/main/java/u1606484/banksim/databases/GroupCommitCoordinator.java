@@ -0,0 +1,350 @@
+package u1606484.banksim.databases;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import u1606484.banksim.metrics.Histogram;
+
+/**
+ * Coalesces writes submitted by many threads into shared transactions, so
+ * that they share one commit, and therefore one sync of the database file to
+ * disk, rather than paying for one each.
+ *
+ * <p>A single background thread takes the first waiting write, then keeps
+ * collecting writes for up to a short window, or until {@value
+ * MAXIMUM_BATCH_SIZE} have been collected. It runs the whole batch in one
+ * transaction, and completes each write's future once the transaction has
+ * committed.
+ *
+ * <p>If any write in a batch fails, the whole transaction is rolled back, and
+ * each write is retried in a transaction of its own, so that only the faulty
+ * write fails. Writes must therefore only change the database, and not
+ * memory, since they may be run twice.
+ *
+ * <p>Futures are completed on the background thread, so actions depending on
+ * them should be brief, and must never wait on another group commit.
+ */
+public class GroupCommitCoordinator {
+
+    /**
+     * How long to wait for further writes to join a batch, if not specified,
+     * in microseconds
+     */
+    static final long DEFAULT_WINDOW_MICROS = 1000;
+    /**
+     * The maximum number of writes committed in one transaction
+     */
+    private static final int MAXIMUM_BATCH_SIZE = 256;
+    /**
+     * The maximum number of writes waiting to be committed
+     */
+    private static final int QUEUE_CAPACITY = 8192;
+    /**
+     * How long the background thread waits for a write before checking
+     * whether it has been stopped, in milliseconds
+     */
+    private static final long POLL_INTERVAL_MILLIS = 100;
+    /**
+     * How long to wait for waiting writes to be committed on shutdown, in
+     * milliseconds
+     */
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 5 * 1000;
+
+    /**
+     * The database writes are committed to
+     */
+    private final DatabaseManager databaseManager;
+    /**
+     * How long to wait for further writes to join a batch, in nanoseconds
+     */
+    private final long windowNanos;
+    /**
+     * Writes waiting to be committed
+     */
+    private final BlockingQueue<PendingWrite<?>> queue =
+            new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    /**
+     * The thread running and committing batches
+     */
+    private final Thread committer;
+
+    /**
+     * The number of writes in each batch
+     */
+    private final Histogram batchSizes = new Histogram();
+    /**
+     * How long each batch's transaction took to run and commit, in
+     * nanoseconds
+     */
+    private final Histogram commitLatency = new Histogram();
+    /**
+     * How long each write took from being submitted to being committed, in
+     * nanoseconds
+     */
+    private final Histogram writeLatency = new Histogram();
+    /**
+     * The number of batches which failed, and were retried write by write
+     */
+    private final LongAdder retriedBatches = new LongAdder();
+    /**
+     * The number of writes which failed
+     */
+    private final LongAdder failedWrites = new LongAdder();
+    /**
+     * The number of writes rejected because the queue was full
+     */
+    private final LongAdder rejectedWrites = new LongAdder();
+    /**
+     * Whether the coordinator has been asked to stop
+     */
+    private volatile boolean stopping = false;
+
+    /**
+     * Creates a coordinator with the default window
+     *
+     * @param databaseManager The database to commit writes to
+     */
+    GroupCommitCoordinator(DatabaseManager databaseManager) {
+        this(databaseManager, DEFAULT_WINDOW_MICROS);
+    }
+
+    /**
+     * Creates a coordinator
+     *
+     * @param databaseManager The database to commit writes to
+     * @param windowMicros How long to wait for further writes to join a
+     * batch, in microseconds. Longer windows give larger batches, but delay
+     * every write by up to that long.
+     */
+    GroupCommitCoordinator(DatabaseManager databaseManager,
+            long windowMicros) {
+        this.databaseManager = databaseManager;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+
+        committer = new Thread(this::run, "group-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Queues a write to be run and committed alongside others. This never
+     * blocks.
+     *
+     * @param write The database operations to perform, which may be run more
+     * than once
+     * @param <T> The type of result the write produces
+     * @return A future completing with the write's result once it has been
+     * committed, or exceptionally if it failed or the queue was full
+     */
+    <T> CompletableFuture<T> submit(Supplier<T> write) {
+        PendingWrite<T> pending = new PendingWrite<>(write);
+        if (stopping || !queue.offer(pending)) {
+            rejectedWrites.increment();
+            pending.future.completeExceptionally(new IllegalStateException(
+                    "Group commit queue is full or closed"));
+        }
+        return pending.future;
+    }
+
+    public Histogram getBatchSizes() {
+        return batchSizes;
+    }
+
+    public Histogram getCommitLatency() {
+        return commitLatency;
+    }
+
+    public Histogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    public long getRetriedBatchCount() {
+        return retriedBatches.sum();
+    }
+
+    public long getFailedWriteCount() {
+        return failedWrites.sum();
+    }
+
+    public long getRejectedWriteCount() {
+        return rejectedWrites.sum();
+    }
+
+    /**
+     * Gets the number of writes waiting to be committed
+     *
+     * @return The current queue depth
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Stops accepting writes, and waits for those already queued to be
+     * committed.
+     */
+    void close() {
+        stopping = true;
+        try {
+            committer.join(SHUTDOWN_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The body of the background thread. Collects and commits batches until
+     * stopped and drained.
+     */
+    private void run() {
+        List<PendingWrite<?>> batch = new ArrayList<>(MAXIMUM_BATCH_SIZE);
+
+        while (!stopping || !queue.isEmpty()) {
+            try {
+                PendingWrite<?> first = queue.poll(POLL_INTERVAL_MILLIS,
+                        TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                collect(batch);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            commit(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Adds further writes to a batch, until it is full or the window since
+     * its first write has passed
+     *
+     * @param batch The batch, holding its first write
+     * @throws InterruptedException If interrupted while waiting
+     */
+    private void collect(List<PendingWrite<?>> batch)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + windowNanos;
+
+        while (batch.size() < MAXIMUM_BATCH_SIZE) {
+            queue.drainTo(batch, MAXIMUM_BATCH_SIZE - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= MAXIMUM_BATCH_SIZE || remaining <= 0) {
+                return;
+            }
+
+            PendingWrite<?> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    /**
+     * Runs a batch of writes in one transaction, falling back to one
+     * transaction per write if it fails
+     *
+     * @param batch The writes to commit
+     */
+    private void commit(List<PendingWrite<?>> batch) {
+        long start = System.nanoTime();
+        try {
+            databaseManager.inTransaction(() -> batch.forEach(
+                    PendingWrite::run));
+        } catch (RuntimeException e) {
+            if (batch.size() == 1) {
+                fail(batch.get(0), e);
+                return;
+            }
+
+            retriedBatches.increment();
+            batch.forEach(this::commitAlone);
+            return;
+        }
+
+        long end = System.nanoTime();
+        batchSizes.record(batch.size());
+        commitLatency.record(end - start);
+        for (PendingWrite<?> w : batch) {
+            writeLatency.record(end - w.submitted);
+            w.complete();
+        }
+    }
+
+    /**
+     * Runs a single write in a transaction of its own
+     *
+     * @param w The write to commit
+     */
+    private void commitAlone(PendingWrite<?> w) {
+        long start = System.nanoTime();
+        try {
+            databaseManager.inTransaction(w::run);
+        } catch (RuntimeException e) {
+            fail(w, e);
+            return;
+        }
+
+        long end = System.nanoTime();
+        batchSizes.record(1);
+        commitLatency.record(end - start);
+        writeLatency.record(end - w.submitted);
+        w.complete();
+    }
+
+    /**
+     * Fails a write
+     *
+     * @param w The write which failed
+     * @param e Why it failed
+     */
+    private void fail(PendingWrite<?> w, RuntimeException e) {
+        failedWrites.increment();
+        w.future.completeExceptionally(e);
+    }
+
+    /**
+     * A write waiting to be committed, with the future its submitter holds
+     *
+     * @param <T> The type of result the write produces
+     */
+    private static class PendingWrite<T> {
+
+        private final Supplier<T> write;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        /**
+         * When the write was submitted, from {@link System#nanoTime()}
+         */
+        private final long submitted = System.nanoTime();
+        /**
+         * The result of the write's most recent run
+         */
+        private T result;
+
+        PendingWrite(Supplier<T> write) {
+            this.write = write;
+        }
+
+        /**
+         * Runs the write, holding its result until it is committed
+         */
+        void run() {
+            result = write.get();
+        }
+
+        /**
+         * Completes the future with the committed result
+         */
+        void complete() {
+            future.complete(result);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package u1606484.banksim.databases;
+
+/**
+ * A container for everything the first stage of logging in needs to know
+ * about a customer, read from the database in a single query
+ *
+ * @see ApplicationDatabaseManager#getLoginData(int)
+ */
+public class LoginData {
+
+    /**
+     * The customer's stored password
+     */
+    private final PasswordData password;
+    /**
+     * The customer's secret key for OTAC generation
+     */
+    private final byte[] loginKey;
+    /**
+     * The phone number OTACs are sent to
+     */
+    private final String phoneNumber;
+
+    LoginData(PasswordData password, byte[] loginKey, String phoneNumber) {
+        this.password = password;
+        this.loginKey = loginKey;
+        this.phoneNumber = phoneNumber;
+    }
+
+    public PasswordData getPassword() {
+        return password;
+    }
+
+    public byte[] getLoginKey() {
+        return loginKey;
+    }
+
+    public String getPhoneNumber() {
+        return phoneNumber;
+    }
+}
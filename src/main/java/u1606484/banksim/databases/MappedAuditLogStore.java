@@ -0,0 +1,603 @@
+package u1606484.banksim.databases;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+import u1606484.banksim.interfaces.IAuditLogStore;
+
+/**
+ * Keeps audit log entries in append-only files outside the database, so that
+ * writing them never contends with sessions and customers for the database's
+ * single write lock.
+ *
+ * <p>Entries are appended to a segment file of fixed size, mapped into memory,
+ * so writing one is a copy into the page cache rather than a system call.
+ * Once a segment is full, it is synced to disk and the next is started. Each
+ * batch is synced to disk before {@link MappedAuditLogStore#append} returns.
+ *
+ * <p>Each entry is stored as a record:
+ *
+ * <pre>
+ * | length: 4 | CRC32: 4 | timestamp: 8 | content: length | length: 4 |
+ * </pre>
+ *
+ * <p>A length of zero marks the end of a segment's records, since new
+ * segments are filled with zeroes. Repeating the length after the content
+ * lets records be read newest first. The checksum covers the timestamp and
+ * content. When the store is reopened, the newest segment's records are
+ * checked up to the first which does not match, so an entry torn by a crash
+ * is discarded rather than misread, and the rest of that segment is cleared.
+ * Older segments were synced in full before the next was started, so they
+ * are not checked.
+ *
+ * <p>A sparse index is kept for each segment: for every block of about
+ * {@value INDEX_INTERVAL} bytes of records, the earliest and latest
+ * timestamps in it. Range reads skip whole blocks outside the range, and
+ * still find every entry if timestamps are out of order, such as after the
+ * clock is adjusted. The index is rebuilt from the segments on startup. For
+ * every segment but the newest, this only reads each record's header.
+ *
+ * <p>Appending is serialised, but any number of threads may read while
+ * entries are appended. Java 8 cannot unmap files explicitly, so segments
+ * stay mapped until garbage collected, even after the store is closed.
+ */
+public class MappedAuditLogStore implements IAuditLogStore {
+
+    /**
+     * The size of each segment file, if not specified, in bytes
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The number of bytes of records between entries in the sparse index
+     */
+    private static final int INDEX_INTERVAL = 64 * 1024;
+    /**
+     * The size of the length, checksum and timestamp before each record's
+     * content
+     */
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+    /**
+     * The size of the length repeated after each record's content
+     */
+    private static final int TRAILER_SIZE = 4;
+    private static final String SEGMENT_PREFIX = "audit-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * The directory holding the segment files
+     */
+    private final Path directory;
+    /**
+     * The size of each segment file, in bytes
+     */
+    private final int segmentSize;
+    /**
+     * Every segment, oldest first. The last is the one being appended to.
+     */
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    /**
+     * Calculates record checksums while appending
+     */
+    private final CRC32 checksum = new CRC32();
+    /**
+     * Whether the store has been closed
+     */
+    private boolean closed = false;
+
+    /**
+     * Opens a store with segments of the default size, creating its directory
+     * if there is none
+     *
+     * @param directory The directory to keep segment files in
+     */
+    public MappedAuditLogStore(Path directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens a store, creating its directory if there is none. Any existing
+     * segments are reopened, and appending continues in the newest of them.
+     *
+     * @param directory The directory to keep segment files in
+     * @param segmentSize The size of each new segment file, in bytes. No
+     * entry can be larger than a segment.
+     * @throws IllegalStateException If the directory or segments could not be
+     * opened
+     */
+    public MappedAuditLogStore(Path directory, int segmentSize) {
+        if (segmentSize < HEADER_SIZE + TRAILER_SIZE + 1) {
+            throw new IllegalArgumentException("Segment size too small");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        List<Path> existing = new ArrayList<>();
+        try {
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(
+                    directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+                files.forEach(existing::add);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(
+                    "Could not open audit log directory " + directory, e);
+        }
+
+        // Names are zero-padded sequence numbers, so sort into order
+        Collections.sort(existing);
+        for (int i = 0; i < existing.size(); i++) {
+            Path p = existing.get(i);
+            segments.add(openSegment(p, sequenceOf(p),
+                    i == existing.size() - 1));
+        }
+        if (segments.isEmpty()) {
+            segments.add(createSegment(0));
+        }
+    }
+
+    /**
+     * Appends a batch of entries, and syncs them to disk.
+     *
+     * @param timestamps The time each entry was created, in milliseconds
+     * @param contents The encrypted content of each entry, none of which may
+     * be empty or larger than a segment
+     * @throws IllegalStateException If a new segment could not be created, or
+     * the store is closed
+     */
+    @Override
+    public synchronized void append(long[] timestamps, byte[][] contents) {
+        if (timestamps.length != contents.length) {
+            throw new IllegalArgumentException(
+                    "Log dates and contents do not match");
+        }
+        if (closed) {
+            throw new IllegalStateException("Audit log store is closed");
+        }
+
+        for (byte[] content : contents) {
+            if (content.length == 0
+                    || recordSize(content.length) > segmentSize) {
+                throw new IllegalArgumentException("Log entry of "
+                        + content.length + " bytes cannot be stored");
+            }
+        }
+
+        Segment active = segments.get(segments.size() - 1);
+        for (int i = 0; i < contents.length; i++) {
+            if (!active.hasRoomFor(contents[i].length)) {
+                active.buffer.force();
+                active = createSegment(active.sequence + 1);
+                segments.add(active);
+            }
+            active.append(timestamps[i], contents[i], checksum);
+        }
+        active.buffer.force();
+    }
+
+    /**
+     * Passes every entry created within a time range to a consumer, newest
+     * first. Entries appended while reading may or may not be included.
+     *
+     * @param from The earliest creation time to include, inclusive
+     * @param to The latest creation time to include, exclusive
+     * @param sink Receives each entry, still encrypted
+     * @return The number of entries passed to the sink
+     */
+    @Override
+    public long read(long from, long to, EntryConsumer sink) {
+        long total = 0;
+        List<Segment> snapshot = new ArrayList<>(segments);
+        for (int i = snapshot.size() - 1; i >= 0; i--) {
+            total += snapshot.get(i).read(from, to, sink);
+        }
+        return total;
+    }
+
+    /**
+     * Syncs the segment being appended to, and stops accepting entries.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            segments.get(segments.size() - 1).buffer.force();
+        }
+    }
+
+    /**
+     * Gets the number of segment files
+     *
+     * @return The number of segments
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Gets the total size of every record stored
+     *
+     * @return The number of bytes used in all segments
+     */
+    public long getSize() {
+        long size = 0;
+        for (Segment s : segments) {
+            size += s.limit;
+        }
+        return size;
+    }
+
+    /**
+     * Creates and maps a new, empty segment file
+     *
+     * @param sequence The new segment's position in the sequence
+     * @return The new segment
+     * @throws IllegalStateException If the file could not be created
+     */
+    private Segment createSegment(long sequence) {
+        Path path = directory.resolve(String.format("%s%020d%s",
+                SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // Mapping past the end of the file extends it with zeroes
+            return new Segment(sequence,
+                    channel.map(MapMode.READ_WRITE, 0, segmentSize));
+        } catch (IOException e) {
+            throw new IllegalStateException(
+                    "Could not create audit log segment " + path, e);
+        }
+    }
+
+    /**
+     * Maps an existing segment file, and finds where its records end
+     *
+     * @param path The segment file
+     * @param sequence The segment's position in the sequence
+     * @param newest Whether this is the newest segment, which may end in a
+     * record torn by a crash
+     * @return The segment
+     * @throws IllegalStateException If the file could not be opened
+     */
+    private Segment openSegment(Path path, long sequence, boolean newest) {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Segment s = new Segment(sequence,
+                    channel.map(MapMode.READ_WRITE, 0, channel.size()));
+            if (newest) {
+                s.recover(new CRC32());
+            } else {
+                s.reindex();
+            }
+            return s;
+        } catch (IOException e) {
+            throw new IllegalStateException(
+                    "Could not open audit log segment " + path, e);
+        }
+    }
+
+    /**
+     * Reads a segment's sequence number from its file name
+     *
+     * @param path The segment file
+     * @return The sequence number
+     */
+    private static long sequenceOf(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Gets the space a record takes up
+     *
+     * @param contentLength The length of the record's content
+     * @return The size of the record, in bytes
+     */
+    private static long recordSize(int contentLength) {
+        return (long) HEADER_SIZE + contentLength + TRAILER_SIZE;
+    }
+
+    /**
+     * Calculates the checksum of a record's timestamp and content
+     *
+     * @param crc The checksum calculator to use
+     * @param timestamp The record's timestamp
+     * @param content The record's content
+     * @return The checksum
+     */
+    private static int checksumOf(CRC32 crc, long timestamp, byte[] content) {
+        crc.reset();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (timestamp >>> shift));
+        }
+        crc.update(content, 0, content.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * A single segment file, mapped into memory, and its sparse index
+     */
+    private static class Segment {
+
+        /**
+         * The segment's position in the sequence
+         */
+        private final long sequence;
+        /**
+         * The mapped file. Only absolute reads and writes are made on this
+         * buffer itself, so that it can be shared between threads.
+         */
+        private final MappedByteBuffer buffer;
+        /**
+         * The earliest and latest timestamps in each complete block of
+         * records. Blocks are only added, in order.
+         */
+        private final List<IndexBlock> index = new CopyOnWriteArrayList<>();
+        /**
+         * The end of the last record. Only written by the appending thread,
+         * once the record and any index block it completes are in place.
+         */
+        private volatile int limit = 0;
+
+        /**
+         * Where the block being filled starts
+         */
+        private int blockStart = 0;
+        /**
+         * The earliest timestamp in the block being filled
+         */
+        private long blockEarliest = Long.MAX_VALUE;
+        /**
+         * The latest timestamp in the block being filled
+         */
+        private long blockLatest = Long.MIN_VALUE;
+
+        Segment(long sequence, MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Checks whether a record fits in the space left in this segment
+         *
+         * @param contentLength The length of the record's content
+         * @return If the record fits, true. Otherwise false.
+         */
+        boolean hasRoomFor(int contentLength) {
+            return limit + recordSize(contentLength) <= buffer.capacity();
+        }
+
+        /**
+         * Appends a record, which must fit
+         *
+         * @param timestamp The record's timestamp
+         * @param content The record's content
+         * @param crc The checksum calculator to use
+         */
+        void append(long timestamp, byte[] content, CRC32 crc) {
+            int start = limit;
+            ByteBuffer view = buffer.duplicate();
+            view.position(start + 4);
+            view.putInt(checksumOf(crc, timestamp, content));
+            view.putLong(timestamp);
+            view.put(content);
+            view.putInt(content.length);
+            // The leading length goes last, so a partial record reads as
+            // the end of the segment
+            buffer.putInt(start, content.length);
+
+            indexRecord(timestamp, view.position());
+            limit = view.position();
+        }
+
+        /**
+         * Rebuilds the index of a reopened segment which was synced in full,
+         * reading only each record's header
+         */
+        void reindex() {
+            int position = 0;
+            while (position + HEADER_SIZE <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + recordSize(length)
+                        > buffer.capacity()) {
+                    break;
+                }
+
+                long timestamp = buffer.getLong(position + 8);
+                position += (int) recordSize(length);
+                indexRecord(timestamp, position);
+            }
+            limit = position;
+        }
+
+        /**
+         * Finds the end of the records in a reopened segment which may end in
+         * a torn record, checking every record's content against its
+         * checksum. The index is rebuilt, and anything after the last intact
+         * record is cleared, so that it cannot be mistaken for records once
+         * more are appended.
+         *
+         * @param crc The checksum calculator to use
+         */
+        void recover(CRC32 crc) {
+            int position = 0;
+            while (position + HEADER_SIZE <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + recordSize(length)
+                        > buffer.capacity()) {
+                    break;
+                }
+
+                int expected = buffer.getInt(position + 4);
+                long timestamp = buffer.getLong(position + 8);
+                byte[] content = new byte[length];
+                ByteBuffer view = buffer.duplicate();
+                view.position(position + HEADER_SIZE);
+                view.get(content);
+                if (view.getInt() != length
+                        || checksumOf(crc, timestamp, content) != expected) {
+                    break;
+                }
+
+                position = view.position();
+                indexRecord(timestamp, position);
+            }
+
+            limit = position;
+            clearFrom(position);
+        }
+
+        /**
+         * Zeroes the segment from a position to its end. A word at a time
+         * is read, and only those which are not already zero are written, so
+         * the untouched part of the file is not dirtied.
+         *
+         * @param start The position to clear from
+         */
+        private void clearFrom(int start) {
+            int capacity = buffer.capacity();
+            int i = start;
+            for (; i < capacity && i % 8 != 0; i++) {
+                buffer.put(i, (byte) 0);
+            }
+            for (; i + 8 <= capacity; i += 8) {
+                if (buffer.getLong(i) != 0) {
+                    buffer.putLong(i, 0);
+                }
+            }
+            for (; i < capacity; i++) {
+                buffer.put(i, (byte) 0);
+            }
+            buffer.force();
+        }
+
+        /**
+         * Passes every record created within a time range to a consumer,
+         * newest first
+         *
+         * @param from The earliest creation time to include, inclusive
+         * @param to The latest creation time to include, exclusive
+         * @param sink Receives each record
+         * @return The number of records passed to the sink
+         */
+        long read(long from, long to, EntryConsumer sink) {
+            // Read the limit first, so every block up to it is indexed
+            int end = limit;
+            List<IndexBlock> blocks = new ArrayList<>(index);
+            ByteBuffer view = buffer.duplicate();
+
+            int i = blocks.size() - 1;
+            while (i >= 0 && blocks.get(i).end > end) {
+                i--;
+            }
+
+            // Records after the last complete block are not indexed
+            int tailStart = i >= 0 ? blocks.get(i).end : 0;
+            long total = readBackwards(view, tailStart, end, from, to, sink);
+
+            for (; i >= 0; i--) {
+                IndexBlock b = blocks.get(i);
+                if (b.latest >= from && b.earliest < to) {
+                    total += readBackwards(view, b.start, b.end, from, to,
+                            sink);
+                }
+            }
+            return total;
+        }
+
+        /**
+         * Passes every record within a time range, in part of the segment, to
+         * a consumer, newest first
+         *
+         * @param view A view of the segment to read through
+         * @param start The start of the first record to read
+         * @param end The end of the last record to read
+         * @param from The earliest creation time to include, inclusive
+         * @param to The latest creation time to include, exclusive
+         * @param sink Receives each record
+         * @return The number of records passed to the sink
+         */
+        private static long readBackwards(ByteBuffer view, int start,
+                int end, long from, long to, EntryConsumer sink) {
+            long total = 0;
+            int position = end;
+            while (position > start) {
+                int length = view.getInt(position - TRAILER_SIZE);
+                int recordStart = position - (int) recordSize(length);
+                long timestamp = view.getLong(recordStart + 8);
+
+                if (timestamp >= from && timestamp < to) {
+                    byte[] content = new byte[length];
+                    view.position(recordStart + HEADER_SIZE);
+                    view.get(content);
+                    sink.accept(timestamp, content);
+                    total++;
+                }
+                position = recordStart;
+            }
+            return total;
+        }
+
+        /**
+         * Adds a record to the block being filled, completing the block if it
+         * has grown large enough
+         *
+         * @param timestamp The record's timestamp
+         * @param end The end of the record
+         */
+        private void indexRecord(long timestamp, int end) {
+            blockEarliest = Math.min(blockEarliest, timestamp);
+            blockLatest = Math.max(blockLatest, timestamp);
+
+            if (end - blockStart >= INDEX_INTERVAL) {
+                index.add(new IndexBlock(blockStart, end, blockEarliest,
+                        blockLatest));
+                blockStart = end;
+                blockEarliest = Long.MAX_VALUE;
+                blockLatest = Long.MIN_VALUE;
+            }
+        }
+    }
+
+    /**
+     * An entry in a segment's sparse index, covering a block of records
+     */
+    private static class IndexBlock {
+
+        /**
+         * The start of the block's first record
+         */
+        private final int start;
+        /**
+         * The end of the block's last record
+         */
+        private final int end;
+        /**
+         * The earliest timestamp of any record in the block
+         */
+        private final long earliest;
+        /**
+         * The latest timestamp of any record in the block
+         */
+        private final long latest;
+
+        IndexBlock(int start, int end, long earliest, long latest) {
+            this.start = start;
+            this.end = end;
+            this.earliest = earliest;
+            this.latest = latest;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package u1606484.banksim.databases;
+
+/**
+ * A container for the details of a customer who has not yet been inserted,
+ * with their password already hashed
+ *
+ * @see ApplicationDatabaseManager#newCustomers(java.util.List)
+ */
+public class NewCustomer {
+
+    private final String phoneNumber;
+    private final String firstName;
+    private final String lastName;
+    private final PasswordData password;
+    private final String addressLine1;
+    private final String addressLine2;
+    private final String postcode;
+    private final String county;
+
+    /**
+     * Creates a container for a new customer
+     *
+     * @param phoneNumber The customer's phone number
+     * @param firstName The customer's first name
+     * @param lastName The customer's last name
+     * @param password The customer's hashed password
+     * @param addressLine1 The first address line for the customer
+     * @param addressLine2 The second address line for the customer
+     * @param postcode The customer's postcode
+     * @param county The customer's county
+     */
+    public NewCustomer(String phoneNumber, String firstName, String lastName,
+            PasswordData password, String addressLine1, String addressLine2,
+            String postcode, String county) {
+        this.phoneNumber = phoneNumber;
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.password = password;
+        this.addressLine1 = addressLine1;
+        this.addressLine2 = addressLine2;
+        this.postcode = postcode;
+        this.county = county;
+    }
+
+    public String getPhoneNumber() {
+        return phoneNumber;
+    }
+
+    public String getFirstName() {
+        return firstName;
+    }
+
+    public String getLastName() {
+        return lastName;
+    }
+
+    public PasswordData getPassword() {
+        return password;
+    }
+
+    public String getAddressLine1() {
+        return addressLine1;
+    }
+
+    public String getAddressLine2() {
+        return addressLine2;
+    }
+
+    public String getPostcode() {
+        return postcode;
+    }
+
+    public String getCounty() {
+        return county;
+    }
+}
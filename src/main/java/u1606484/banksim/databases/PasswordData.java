@@ -5,6 +5,11 @@ package u1606484.banksim.databases;
  */
 public class PasswordData {
 
+    /**
+     * The ID of the security record, or 0 if the password has not yet been
+     * stored
+     */
+    private final int securityId;
     /**
      * The hash of the password
      */
@@ -13,17 +18,42 @@ public class PasswordData {
      * The salt the password was generated
      */
     private final byte[] passwordSalt;
+    /**
+     * The version of the hashing scheme used to calculate the hash
+     */
+    private final int hashVersion;
     /**
      * The number of iterations used to calculate the hash
      */
     private final int passes;
 
-    PasswordData(byte[] passwordHash, byte[] passwordSalt, int passes) {
+    PasswordData(int securityId, byte[] passwordHash, byte[] passwordSalt,
+            int hashVersion, int passes) {
+        this.securityId = securityId;
         this.passwordHash = passwordHash;
         this.passwordSalt = passwordSalt;
+        this.hashVersion = hashVersion;
         this.passes = passes;
     }
 
+    /**
+     * Creates a container for a newly hashed password, which has not yet been
+     * stored
+     *
+     * @param passwordHash The hash of the password
+     * @param passwordSalt The salt the password was hashed with
+     * @param hashVersion The version of the hashing scheme used
+     * @param passes The work factor used
+     */
+    public PasswordData(byte[] passwordHash, byte[] passwordSalt,
+            int hashVersion, int passes) {
+        this(0, passwordHash, passwordSalt, hashVersion, passes);
+    }
+
+    public int getSecurityId() {
+        return securityId;
+    }
+
     public byte[] getPasswordHash() {
         return passwordHash;
     }
@@ -32,6 +62,10 @@ public class PasswordData {
         return passwordSalt;
     }
 
+    public int getHashVersion() {
+        return hashVersion;
+    }
+
     public int getPasses() {
         return passes;
     }
@@ -0,0 +1,196 @@
+package u1606484.banksim.databases;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import u1606484.banksim.ObjectPool;
+import u1606484.banksim.databases.FunctionalHelpers.UncheckedConsumer;
+import u1606484.banksim.metrics.Histogram;
+
+/**
+ * A fixed SQL statement, together with the number and position of the
+ * parameters it takes.
+ *
+ * <p>Reusable {@link Parameters} are borrowed from a pool per shape, by {@link
+ * QueryShape#parameters()}, and go back to it once bound to a statement.
+ * Integers and longs are held in a primitive array, so filling in and binding
+ * parameters allocates nothing beyond what the JDBC driver does itself,
+ * unlike building an array of {@link FunctionalHelpers.DatabaseBinding}s for
+ * every query.
+ *
+ * <p>Shapes are intended to be held in constants, one per query, by the
+ * classes which run them. Each records how long its statement takes to run,
+ * including waiting for a connection, in a {@link Histogram}.
+ */
+final class QueryShape {
+
+    /**
+     * The SQL of the statement
+     */
+    private final String sql;
+    /**
+     * The number of parameters the statement takes
+     */
+    private final int parameterCount;
+    /**
+     * Parameters for this statement which are not currently in use
+     */
+    private final ObjectPool<Parameters> parameters;
+    /**
+     * How long each run of the statement took, in nanoseconds
+     */
+    private final Histogram latency = new Histogram();
+
+    /**
+     * Creates a shape for a statement
+     *
+     * @param sql The SQL of the statement
+     * @param parameterCount The number of {@code ?} parameters in the SQL
+     */
+    QueryShape(String sql, int parameterCount) {
+        this.sql = sql;
+        this.parameterCount = parameterCount;
+        this.parameters = new ObjectPool<>(() -> new Parameters(this));
+    }
+
+    String getSql() {
+        return sql;
+    }
+
+    Histogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Borrows parameters for this statement, with every parameter unset. They
+     * are returned to the pool when bound to a statement, so must not be used
+     * again after being run.
+     *
+     * @return Parameters for the statement
+     */
+    Parameters parameters() {
+        Parameters p = parameters.borrow();
+        p.borrowed = true;
+        return p;
+    }
+
+    /**
+     * A set of values for the parameters of a {@link QueryShape}. Positions
+     * are numbered from 1, as in JDBC.
+     */
+    static final class Parameters implements
+            UncheckedConsumer<PreparedStatement> {
+
+        private static final byte UNSET = 0;
+        private static final byte INTEGER = 1;
+        private static final byte LONG = 2;
+        private static final byte BYTES = 3;
+        private static final byte STRING = 4;
+
+        /**
+         * The statement these are parameters for
+         */
+        private final QueryShape shape;
+        /**
+         * The type of value held at each position
+         */
+        private final byte[] types;
+        /**
+         * Integer and long values, by position
+         */
+        private final long[] numbers;
+        /**
+         * Byte array and string values, by position
+         */
+        private final Object[] objects;
+        /**
+         * Whether these have been handed out and not yet bound, so that
+         * binding them twice cannot put them in the pool twice
+         */
+        private boolean borrowed;
+
+        private Parameters(QueryShape shape) {
+            this.shape = shape;
+            this.types = new byte[shape.parameterCount];
+            this.numbers = new long[shape.parameterCount];
+            this.objects = new Object[shape.parameterCount];
+        }
+
+        QueryShape getShape() {
+            return shape;
+        }
+
+        Parameters setInt(int index, int value) {
+            types[index - 1] = INTEGER;
+            numbers[index - 1] = value;
+            return this;
+        }
+
+        Parameters setLong(int index, long value) {
+            types[index - 1] = LONG;
+            numbers[index - 1] = value;
+            return this;
+        }
+
+        Parameters setBytes(int index, byte[] value) {
+            types[index - 1] = BYTES;
+            objects[index - 1] = value;
+            return this;
+        }
+
+        Parameters setString(int index, String value) {
+            types[index - 1] = STRING;
+            objects[index - 1] = value;
+            return this;
+        }
+
+        /**
+         * Binds every parameter to a statement prepared from this shape's SQL,
+         * then forgets any byte arrays and strings, so that session keys and
+         * password hashes are not kept alive by the pool, and returns these
+         * parameters to it.
+         *
+         * @param s The statement to bind to
+         * @throws SQLException If a value could not be bound
+         * @throws IllegalStateException If any parameter was never set
+         */
+        @Override
+        public void accept(PreparedStatement s) throws SQLException {
+            try {
+                for (int i = 0; i < types.length; i++) {
+                    switch (types[i]) {
+                        case INTEGER:
+                            s.setInt(i + 1, (int) numbers[i]);
+                            break;
+                        case LONG:
+                            s.setLong(i + 1, numbers[i]);
+                            break;
+                        case BYTES:
+                            s.setBytes(i + 1, (byte[]) objects[i]);
+                            break;
+                        case STRING:
+                            s.setString(i + 1, (String) objects[i]);
+                            break;
+                        default:
+                            throw new IllegalStateException("Parameter "
+                                    + (i + 1) + " not set for: " + shape.sql);
+                    }
+                }
+            } finally {
+                clear();
+                if (borrowed) {
+                    borrowed = false;
+                    shape.parameters.release(this);
+                }
+            }
+        }
+
+        /**
+         * Unsets every parameter
+         */
+        private void clear() {
+            Arrays.fill(types, UNSET);
+            Arrays.fill(objects, null);
+        }
+    }
+}
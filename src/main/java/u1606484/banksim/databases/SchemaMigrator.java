@@ -0,0 +1,356 @@
+package u1606484.banksim.databases;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Brings a database's schema up to date by applying any migrations it has not
+ * yet had, in order of version.
+ *
+ * <p>Each migration is applied in its own transaction, together with a row in
+ * the {@code schema_version} table recording that it has been applied, so a
+ * database is never left with a migration half-applied. The write lock is
+ * taken before the current version is read, so several processes starting
+ * against the same database at once will apply each migration exactly once.
+ *
+ * <p>A few statements, such as {@code VACUUM}, cannot be run inside a
+ * transaction. Migrations containing them are created with {@link
+ * Migration#outsideTransaction}, and must be safe to run more than once, since
+ * a failure part-way through cannot be rolled back, and two processes may run
+ * them at the same time.
+ *
+ * <p>Migrations run on a dedicated connection, opened and closed by {@link
+ * SchemaMigrator#migrate()}, rather than on one from a {@link ConnectionPool},
+ * since the pool's connections never leave auto-commit disabled.
+ *
+ * <p>To change the schema, add a new migration to the end of {@link
+ * SchemaMigrator#MIGRATIONS}. Migrations which have been released must never
+ * be edited, since databases which have already applied them will not see
+ * the change. {@code src/main/sql/schema.sql} should be kept in step, as the
+ * reference for the fully migrated schema.
+ */
+class SchemaMigrator {
+
+    /**
+     * How long SQLite will retry a locked database before failing, in
+     * milliseconds
+     */
+    private static final int BUSY_TIMEOUT_MILLIS = 30 * 1000;
+
+    /**
+     * Every migration, in the order they are applied
+     */
+    static final List<Migration> MIGRATIONS = Collections.unmodifiableList(
+            Arrays.asList(
+                    new Migration(1, "Create baseline tables",
+                            "CREATE TABLE IF NOT EXISTS customer ("
+                                    + "customer_id INTEGER, "
+                                    + "phone_number VARCHAR(12) NOT NULL, "
+                                    + "first_name VARCHAR(30) NOT NULL, "
+                                    + "last_name VARCHAR(30) NOT NULL, "
+                                    + "address_id INTEGER NOT NULL, "
+                                    + "security_id INTEGER NOT NULL, "
+                                    + "PRIMARY KEY (customer_id), "
+                                    + "FOREIGN KEY (address_id) "
+                                    + "REFERENCES address, "
+                                    + "FOREIGN KEY (security_id) "
+                                    + "REFERENCES security)",
+                            "CREATE TABLE IF NOT EXISTS session ("
+                                    + "session_id INTEGER, "
+                                    + "session_key VARCHAR(20) NOT NULL, "
+                                    + "expiry INTEGER NOT NULL, "
+                                    + "otac_authenticated INTEGER "
+                                    + "DEFAULT 0 NOT NULL, "
+                                    + "customer_id INTEGER NOT NULL, "
+                                    + "PRIMARY KEY (session_id), "
+                                    + "FOREIGN KEY (customer_id) "
+                                    + "REFERENCES customer, "
+                                    + "CHECK (otac_authenticated >= 0 "
+                                    + "AND otac_authenticated <= 1))",
+                            "CREATE TABLE IF NOT EXISTS address ("
+                                    + "address_id INTEGER, "
+                                    + "address_1 VARCHAR(30) NOT NULL, "
+                                    + "address_2 VARCHAR(30), "
+                                    + "postcode VARCHAR(10) NOT NULL, "
+                                    + "county VARCHAR(26) NOT NULL, "
+                                    + "PRIMARY KEY (address_id))",
+                            "CREATE TABLE IF NOT EXISTS security ("
+                                    + "security_id INTEGER, "
+                                    + "login_salt BLOB(20) NOT NULL, "
+                                    + "support_in_salt BLOB(20) NOT NULL, "
+                                    + "support_out_salt BLOB(20) NOT NULL, "
+                                    + "password BLOB(20) NOT NULL, "
+                                    + "password_salt BLOB(20) NOT NULL, "
+                                    + "password_hash_passes INTEGER NOT NULL, "
+                                    + "PRIMARY KEY (security_id))",
+                            "CREATE TABLE IF NOT EXISTS log ("
+                                    + "log_id INTEGER, "
+                                    + "time_created INTEGER NOT NULL, "
+                                    + "content BLOB(1000) NOT NULL, "
+                                    + "PRIMARY KEY (log_id))"),
+                    new Migration(2, "Index session and log lookups",
+                            // Sessions are looked up by key on every request
+                            "CREATE INDEX IF NOT EXISTS session_key_index "
+                                    + "ON session (session_key)",
+                            // Finding and invalidating a customer's sessions
+                            "CREATE INDEX IF NOT EXISTS "
+                                    + "session_customer_index "
+                                    + "ON session (customer_id, expiry)",
+                            // Finding every live (or every expired) session
+                            "CREATE INDEX IF NOT EXISTS session_expiry_index "
+                                    + "ON session (expiry)",
+                            // Every index entry also holds the rowid, so this
+                            // covers ordering by (time_created, log_id)
+                            "CREATE INDEX IF NOT EXISTS log_time_index "
+                                    + "ON log (time_created)"),
+                    // Changing the auto-vacuum mode of an existing database
+                    // only takes effect after a full VACUUM
+                    Migration.outsideTransaction(3,
+                            "Enable incremental auto-vacuum",
+                            "PRAGMA auto_vacuum = INCREMENTAL",
+                            "VACUUM"),
+                    // Existing passwords were all hashed with the legacy
+                    // SHA-256 scheme, version 0
+                    new Migration(4, "Record password hashing scheme",
+                            "ALTER TABLE security "
+                                    + "ADD COLUMN password_hash_version "
+                                    + "INTEGER DEFAULT 0 NOT NULL"),
+                    // SQLite cannot change a column's type in place, so the
+                    // table is rebuilt. Existing sessions used the old text
+                    // keys, so are dropped rather than copied, and customers
+                    // must sign in once more.
+                    new Migration(5, "Store session keys as binary tokens",
+                            "CREATE TABLE session_new ("
+                                    + "session_id INTEGER, "
+                                    + "session_key BLOB(16) NOT NULL, "
+                                    + "expiry INTEGER NOT NULL, "
+                                    + "otac_authenticated INTEGER "
+                                    + "DEFAULT 0 NOT NULL, "
+                                    + "customer_id INTEGER NOT NULL, "
+                                    + "PRIMARY KEY (session_id), "
+                                    + "FOREIGN KEY (customer_id) "
+                                    + "REFERENCES customer, "
+                                    + "CHECK (otac_authenticated >= 0 "
+                                    + "AND otac_authenticated <= 1))",
+                            "DROP TABLE session",
+                            "ALTER TABLE session_new RENAME TO session",
+                            "CREATE INDEX session_key_index "
+                                    + "ON session (session_key)",
+                            "CREATE INDEX session_customer_index "
+                                    + "ON session (customer_id, expiry)",
+                            "CREATE INDEX session_expiry_index "
+                                    + "ON session (expiry)")
+            ));
+
+    /**
+     * The JDBC URL of the database to migrate
+     */
+    private final String url;
+
+    SchemaMigrator(String url) {
+        this.url = url;
+    }
+
+    /**
+     * Gets the version a fully migrated database will be at
+     *
+     * @return The version of the last migration
+     */
+    static int getLatestVersion() {
+        return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+    }
+
+    /**
+     * Applies every migration the database has not yet had.
+     *
+     * @return The number of migrations applied
+     * @throws IllegalStateException If a migration fails. Migrations applied
+     * before the failing one are kept.
+     */
+    int migrate() {
+        try (Connection c = DriverManager.getConnection(url);
+                Statement s = c.createStatement()) {
+            s.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MILLIS);
+            s.execute("CREATE TABLE IF NOT EXISTS schema_version ("
+                    + "version INTEGER, "
+                    + "description VARCHAR(100) NOT NULL, "
+                    + "applied_at INTEGER NOT NULL, "
+                    + "PRIMARY KEY (version))");
+
+            int applied = 0;
+            for (Migration m : MIGRATIONS) {
+                if (apply(c, s, m)) {
+                    applied++;
+                }
+            }
+            return applied;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not migrate database", e);
+        }
+    }
+
+    /**
+     * Applies a single migration, unless the database already has it.
+     *
+     * @param c The connection to the database, in auto-commit mode
+     * @param s A statement on that connection
+     * @param m The migration to apply
+     * @return If the migration was applied, true. If the database already had
+     * it, false.
+     * @throws SQLException If the migration failed, in which case it has been
+     * rolled back
+     */
+    private static boolean apply(Connection c, Statement s, Migration m)
+            throws SQLException {
+        if (!m.transactional) {
+            return applyOutsideTransaction(c, s, m);
+        }
+
+        // Taking the write lock up front means no other process can apply this
+        // migration between the version check and the migration itself
+        s.execute("BEGIN IMMEDIATE");
+        try {
+            if (readVersion(s) >= m.version) {
+                s.execute("COMMIT");
+                return false;
+            }
+
+            for (String statement : m.statements) {
+                s.execute(statement);
+            }
+            record(c, m);
+
+            s.execute("COMMIT");
+            return true;
+        } catch (SQLException e) {
+            s.execute("ROLLBACK");
+            throw new SQLException(
+                    "Migration " + m.version + " (" + m.description
+                            + ") failed", e);
+        }
+    }
+
+    /**
+     * Applies a single migration which cannot run inside a transaction,
+     * unless the database already has it. Each statement is committed as it
+     * runs.
+     *
+     * @param c The connection to the database, in auto-commit mode
+     * @param s A statement on that connection
+     * @param m The migration to apply
+     * @return If the migration was applied, true. If the database already had
+     * it, false.
+     * @throws SQLException If the migration failed, in which case any
+     * statements before the failing one remain applied
+     */
+    private static boolean applyOutsideTransaction(Connection c, Statement s,
+            Migration m) throws SQLException {
+        if (readVersion(s) >= m.version) {
+            return false;
+        }
+
+        try {
+            for (String statement : m.statements) {
+                s.execute(statement);
+            }
+            record(c, m);
+            return true;
+        } catch (SQLException e) {
+            throw new SQLException(
+                    "Migration " + m.version + " (" + m.description
+                            + ") failed", e);
+        }
+    }
+
+    /**
+     * Records that a migration has been applied. If another process recorded
+     * it first, this does nothing.
+     *
+     * @param c The connection to the database
+     * @param m The migration which was applied
+     * @throws SQLException If the record could not be written
+     */
+    private static void record(Connection c, Migration m)
+            throws SQLException {
+        try (PreparedStatement record = c.prepareStatement(""
+                + "INSERT OR IGNORE INTO schema_version "
+                + "(version, description, applied_at) "
+                + "VALUES (?, ?, ?)")) {
+            record.setInt(1, m.version);
+            record.setString(2, m.description);
+            record.setLong(3, System.currentTimeMillis());
+            record.executeUpdate();
+        }
+    }
+
+    /**
+     * Reads the highest version recorded in the {@code schema_version} table
+     *
+     * @param s A statement to run the query with
+     * @return The current schema version, or 0 if none is recorded
+     * @throws SQLException If the table could not be read
+     */
+    private static int readVersion(Statement s) throws SQLException {
+        try (ResultSet rs = s.executeQuery(
+                "SELECT IFNULL(MAX(version), 0) FROM schema_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * A single, numbered change to the schema
+     */
+    static class Migration {
+
+        /**
+         * The schema version the database is at once this migration has been
+         * applied
+         */
+        private final int version;
+        /**
+         * A short, human-readable summary of the change
+         */
+        private final String description;
+        /**
+         * The SQL statements making up the change, run in order
+         */
+        private final String[] statements;
+        /**
+         * Whether the statements are run together in a single transaction
+         */
+        private final boolean transactional;
+
+        Migration(int version, String description, String... statements) {
+            this(version, description, true, statements);
+        }
+
+        private Migration(int version, String description,
+                boolean transactional, String... statements) {
+            this.version = version;
+            this.description = description;
+            this.transactional = transactional;
+            this.statements = statements;
+        }
+
+        /**
+         * Creates a migration whose statements cannot be run inside a
+         * transaction. Its statements must be safe to run more than once.
+         *
+         * @param version The schema version once the migration is applied
+         * @param description A short summary of the change
+         * @param statements The statements making up the change
+         * @return The migration
+         */
+        static Migration outsideTransaction(int version, String description,
+                String... statements) {
+            return new Migration(version, description, false, statements);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package u1606484.banksim.databases;
+
+import u1606484.banksim.SessionToken;
+
+/**
+ * A container for a single row of the session table, as held in memory by
+ * {@link SessionStore}.
+ */
+class Session {
+
+    /**
+     * The session token given to the client
+     */
+    private final SessionToken token;
+    /**
+     * The account ID the session belongs to
+     */
+    private final int customerId;
+    /**
+     * When the session expires, in milliseconds since the epoch
+     */
+    private final long expiry;
+    /**
+     * 0 if the user has only authenticated via password. 1 if the user has
+     * also authenticated via OTAC.
+     */
+    private final int otacLevel;
+
+    Session(SessionToken token, int customerId, long expiry, int otacLevel) {
+        this.token = token;
+        this.customerId = customerId;
+        this.expiry = expiry;
+        this.otacLevel = otacLevel;
+    }
+
+    SessionToken getToken() {
+        return token;
+    }
+
+    int getCustomerId() {
+        return customerId;
+    }
+
+    long getExpiry() {
+        return expiry;
+    }
+
+    int getOtacLevel() {
+        return otacLevel;
+    }
+
+    /**
+     * Checks whether the session has expired at the given time
+     *
+     * @param now The time to check against
+     * @return If the session has expired, true. Otherwise false.
+     */
+    boolean isExpired(long now) {
+        return expiry <= now;
+    }
+}
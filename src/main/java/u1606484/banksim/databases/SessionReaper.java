@@ -0,0 +1,180 @@
+package u1606484.banksim.databases;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Periodically deletes expired sessions from the database, and from a {@link
+ * SessionStore}, so that the session table stays proportional to the number of
+ * active users rather than growing forever.
+ *
+ * <p>Rows are deleted in batches of {@value BATCH_SIZE}, each in its own short
+ * transaction, so the reaper never holds the write lock for long enough to
+ * stall logins. At most {@value MAXIMUM_BATCHES_PER_RUN} batches are deleted
+ * per run; any backlog beyond that is left for later runs. Once rows have been
+ * deleted, up to {@value VACUUM_PAGES_PER_RUN} of the pages they occupied are
+ * returned to the operating system by an incremental vacuum.
+ *
+ * <p>Each run which reclaims anything reports the rows deleted, pages freed
+ * and time taken. Totals are also available from the getters on this class.
+ */
+public class SessionReaper {
+
+    /**
+     * How often the reaper runs, in milliseconds
+     */
+    private static final long INTERVAL_MILLIS = 60 * 1000;
+    /**
+     * The number of sessions deleted per transaction
+     */
+    private static final int BATCH_SIZE = 1000;
+    /**
+     * The maximum number of batches deleted in a single run
+     */
+    private static final int MAXIMUM_BATCHES_PER_RUN = 100;
+    /**
+     * The maximum number of free pages returned to the operating system in a
+     * single run
+     */
+    private static final int VACUUM_PAGES_PER_RUN = 1000;
+
+    /**
+     * The database to delete sessions from
+     */
+    private final ApplicationDatabaseManager databaseManager;
+    /**
+     * The in-memory sessions to purge alongside the database
+     */
+    private final SessionStore sessionStore;
+    /**
+     * Runs the reaper periodically
+     */
+    private final ScheduledExecutorService scheduler;
+    /**
+     * The number of sessions deleted from the database
+     */
+    private final LongAdder deleted = new LongAdder();
+    /**
+     * The number of sessions removed from memory
+     */
+    private final LongAdder purged = new LongAdder();
+    /**
+     * The number of database pages freed
+     */
+    private final LongAdder pagesFreed = new LongAdder();
+    /**
+     * The number of runs completed
+     */
+    private final LongAdder runs = new LongAdder();
+    /**
+     * The total time spent reaping, in nanoseconds
+     */
+    private final LongAdder busyNanos = new LongAdder();
+
+    public SessionReaper(ApplicationDatabaseManager databaseManager,
+            SessionStore sessionStore) {
+        this.databaseManager = databaseManager;
+        this.sessionStore = sessionStore;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::runSafely, INTERVAL_MILLIS,
+                INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Deletes sessions which have expired, then frees the space they
+     * occupied. This is normally called by the reaper's own thread.
+     *
+     * @return The number of sessions deleted from the database
+     */
+    public int reap() {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+
+        int removedFromMemory = sessionStore.purgeExpired(now);
+
+        int removedFromDatabase = 0;
+        for (int i = 0; i < MAXIMUM_BATCHES_PER_RUN; i++) {
+            int batch = databaseManager.deleteExpiredSessions(now, BATCH_SIZE);
+            removedFromDatabase += batch;
+            if (batch < BATCH_SIZE) {
+                break;
+            }
+        }
+
+        int freed = removedFromDatabase > 0
+                ? databaseManager.incrementalVacuum(VACUUM_PAGES_PER_RUN)
+                : 0;
+
+        long elapsed = System.nanoTime() - start;
+        deleted.add(removedFromDatabase);
+        purged.add(removedFromMemory);
+        pagesFreed.add(freed);
+        runs.increment();
+        busyNanos.add(elapsed);
+
+        if (removedFromDatabase > 0 || removedFromMemory > 0) {
+            System.out.println("Session reaper: deleted " + removedFromDatabase
+                    + " rows, purged " + removedFromMemory
+                    + " from memory, freed " + freed + " pages in "
+                    + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms");
+        }
+
+        return removedFromDatabase;
+    }
+
+    public long getDeletedCount() {
+        return deleted.sum();
+    }
+
+    public long getPurgedCount() {
+        return purged.sum();
+    }
+
+    public long getPagesFreedCount() {
+        return pagesFreed.sum();
+    }
+
+    public long getRunCount() {
+        return runs.sum();
+    }
+
+    /**
+     * Gets the total time spent reaping, across every run
+     *
+     * @return The time spent, in milliseconds
+     */
+    public long getBusyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(busyNanos.sum());
+    }
+
+    /**
+     * Stops the reaper, waiting for a run already in progress to finish.
+     */
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs {@link SessionReaper#reap()}, keeping the scheduled task alive if
+     * it fails.
+     */
+    private void runSafely() {
+        try {
+            reap();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,507 @@
+package u1606484.banksim.databases;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import u1606484.banksim.SessionToken;
+
+/**
+ * Holds every live session in memory, so that looking up the user behind a
+ * session token on each page load does not need to touch the database.
+ *
+ * <p>Sessions are indexed both by session token, and by the account they belong
+ * to, so that all of a customer's sessions can be invalidated at once.
+ *
+ * <p>Changes are applied to memory immediately, and written behind to the
+ * session table by a background thread, which groups everything queued since
+ * its last run into a single transaction. Writes are queued in the order they
+ * were made for each customer, so the table always converges on the state held
+ * in memory. Upon construction, all unexpired sessions are loaded back from the
+ * table, so sessions survive a restart. At most {@value FLUSH_INTERVAL_MILLIS}
+ * milliseconds of changes can be lost if the process dies without {@link
+ * SessionStore#close()} being called.
+ *
+ * <p>If a batch fails to write, its writes are tried again one at a time, in
+ * order, so that one bad write cannot hold back the rest. Those before the
+ * first to fail are kept; it and everything after it are put back at the head
+ * of the queue, ahead of anything queued since, and retried after a delay
+ * which doubles with each failure, up to {@value MAXIMUM_BACKOFF_MILLIS}
+ * milliseconds. A write which fails on its own {@value MAXIMUM_ATTEMPTS}
+ * times in a row is dropped, so that it cannot block every write after it
+ * forever. Invalidations are the exception: they are retried until they
+ * succeed, since dropping one would leave the signed out sessions unexpired
+ * in the table, to be loaded back as live sessions after a restart.
+ */
+public class SessionStore {
+
+    /**
+     * How often queued writes are flushed to the database, in milliseconds
+     */
+    private static final long FLUSH_INTERVAL_MILLIS = 100;
+    /**
+     * The maximum number of writes to group into a single transaction
+     */
+    private static final int MAXIMUM_BATCH_SIZE = 500;
+    /**
+     * The longest to wait before retrying a failed write, in milliseconds
+     */
+    private static final long MAXIMUM_BACKOFF_MILLIS = 5 * 1000;
+    /**
+     * The number of times a single write may fail in a row before it is
+     * dropped. With the backoff above, this is around 21 seconds.
+     */
+    private static final int MAXIMUM_ATTEMPTS = 10;
+
+    /**
+     * The database sessions are persisted to
+     */
+    private final ApplicationDatabaseManager databaseManager;
+    /**
+     * Live sessions, keyed by their session token
+     */
+    private final ConcurrentHashMap<SessionToken, Session> sessions =
+            new ConcurrentHashMap<>();
+    /**
+     * The session tokens belonging to each account. Each set is only modified
+     * while its map entry is locked, through {@link ConcurrentHashMap#compute}.
+     */
+    private final ConcurrentHashMap<Integer, Set<SessionToken>>
+            sessionsByCustomer = new ConcurrentHashMap<>();
+    /**
+     * Writes waiting to be flushed to the database
+     */
+    private final Queue<Consumer<ApplicationDatabaseManager>> pendingWrites =
+            new ConcurrentLinkedQueue<>();
+    /**
+     * Writes which failed, waiting to be retried ahead of {@link
+     * SessionStore#pendingWrites}. Only used while flushing.
+     */
+    private final Deque<Consumer<ApplicationDatabaseManager>> retryWrites =
+            new ArrayDeque<>();
+    /**
+     * The number of writes waiting to be flushed, including those waiting to
+     * be retried
+     */
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    /**
+     * The number of times a write has failed
+     */
+    private final LongAdder failedWrites = new LongAdder();
+    /**
+     * The number of writes given up on after failing too many times
+     */
+    private final LongAdder droppedWrites = new LongAdder();
+    /**
+     * The write at the head of {@link SessionStore#retryWrites} which last
+     * failed on its own, if any
+     */
+    private Consumer<ApplicationDatabaseManager> failingWrite;
+    /**
+     * The number of times in a row {@link SessionStore#failingWrite} has
+     * failed
+     */
+    private int failingWriteAttempts = 0;
+    /**
+     * How long to wait before retrying after the last failure, in
+     * milliseconds, or 0 if the last flush succeeded
+     */
+    private long backoffMillis = 0;
+    /**
+     * When writes may next be attempted, from {@link
+     * System#currentTimeMillis()}
+     */
+    private long nextAttemptMillis = 0;
+    /**
+     * Runs the periodic flush
+     */
+    private final ScheduledExecutorService flusher;
+
+    public SessionStore(ApplicationDatabaseManager databaseManager) {
+        this.databaseManager = databaseManager;
+
+        // Recover sessions persisted before the last shutdown
+        long now = System.currentTimeMillis();
+        databaseManager.getActiveSessions(now).forEach(this::index);
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-write-behind");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MILLIS,
+                FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Looks up the account and OTAC-level behind a session token.
+     *
+     * @param token The session token to look up
+     * @return A UserAuthenticationPackage if the token belongs to a live
+     * session. Otherwise, an empty optional.
+     */
+    public Optional<UserAuthenticationPackage> get(SessionToken token) {
+        Session s = sessions.get(token);
+        if (s == null) {
+            return Optional.empty();
+        }
+
+        if (s.isExpired(System.currentTimeMillis())) {
+            forget(s);
+            return Optional.empty();
+        }
+
+        return Optional.of(new UserAuthenticationPackage(s.getCustomerId(),
+                s.getOtacLevel()));
+    }
+
+    /**
+     * Creates a new session.
+     *
+     * @param userId The account ID to link the session to
+     * @param token The session token for the new session
+     * @param expiry When the session will expire
+     * @param otacLevel 0 if the user has only authenticated via password. 1 if
+     * the user has also authenticated via OTAC.
+     * @see ApplicationDatabaseManager#assignSessionKey
+     */
+    public void create(int userId, SessionToken token, long expiry,
+            int otacLevel) {
+        create(new Session(token, userId, expiry, otacLevel),
+                db -> db.assignSessionKey(userId, token, expiry, otacLevel));
+    }
+
+    /**
+     * Creates a new session, and writes an audit log entry to the database in
+     * the same transaction as the session itself.
+     *
+     * @param userId The account ID to link the session to
+     * @param token The session token for the new session
+     * @param expiry When the session will expire
+     * @param otacLevel 0 if the user has only authenticated via password. 1 if
+     * the user has also authenticated via OTAC.
+     * @param logCreationDate The date of creation for the log entry
+     * @param logContent Produces the encrypted content for the log entry. This
+     * is called by the background thread, so encryption does not delay the
+     * caller.
+     * @see ApplicationDatabaseManager#assignSessionKey(int, SessionToken,
+     * long, int, long, byte[])
+     */
+    public void create(int userId, SessionToken token, long expiry,
+            int otacLevel, long logCreationDate, Supplier<byte[]> logContent) {
+        create(new Session(token, userId, expiry, otacLevel),
+                db -> db.assignSessionKey(userId, token, expiry, otacLevel,
+                        logCreationDate, logContent.get()));
+    }
+
+    /**
+     * Adds a new session to memory, and queues the write persisting it while
+     * its account's entry is locked, so that writes for each account are
+     * queued in order
+     *
+     * @param s The session to add
+     * @param write The database operation persisting the session
+     */
+    private void create(Session s, Consumer<ApplicationDatabaseManager> write) {
+        sessionsByCustomer.compute(s.getCustomerId(), (id, keys) -> {
+            Set<SessionToken> k = keys == null ? new HashSet<>() : keys;
+            k.add(s.getToken());
+            sessions.put(s.getToken(), s);
+            enqueue(write);
+            return k;
+        });
+    }
+
+    /**
+     * Expires every session belonging to an account, signing it out
+     * everywhere.
+     *
+     * @param userId The account ID to sign out
+     * @see ApplicationDatabaseManager#invalidateSessionKeys(int)
+     */
+    public void invalidate(int userId) {
+        long expiry = System.currentTimeMillis() - 1;
+
+        sessionsByCustomer.compute(userId, (id, keys) -> {
+            if (keys != null) {
+                keys.forEach(sessions::remove);
+            }
+            enqueue((Invalidation) db -> db.invalidateSessionKeys(userId,
+                    expiry));
+            return null;
+        });
+    }
+
+    /**
+     * Gets the number of sessions currently held in memory, which may include
+     * some that have expired but not yet been looked up
+     *
+     * @return The number of sessions in memory
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Removes every expired session from memory. Expired sessions are
+     * otherwise only removed when they are next looked up, so this stops
+     * abandoned sessions from accumulating.
+     *
+     * @param now The current time, used to decide whether a session has
+     * expired
+     * @return The number of sessions removed
+     */
+    public int purgeExpired(long now) {
+        int removed = 0;
+        for (Session s : sessions.values()) {
+            if (s.isExpired(now)) {
+                forget(s);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Gets the number of changes not yet written to the database
+     *
+     * @return The number of pending writes
+     */
+    public int getPendingWriteCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Gets the number of times a write has failed on its own, and been put
+     * back to be retried or dropped
+     *
+     * @return The number of failed writes
+     */
+    public long getFailedWriteCount() {
+        return failedWrites.sum();
+    }
+
+    /**
+     * Gets the number of writes given up on after failing {@value
+     * MAXIMUM_ATTEMPTS} times in a row. Invalidations are never given up on.
+     *
+     * @return The number of dropped writes
+     */
+    public long getDroppedWriteCount() {
+        return droppedWrites.sum();
+    }
+
+    /**
+     * Stops the background thread, then writes any remaining changes to the
+     * database, without waiting out any delay before a retry.
+     */
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(FLUSH_INTERVAL_MILLIS * 10,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        flush(true);
+    }
+
+    /**
+     * Adds a session to both in-memory indexes
+     *
+     * @param s The session to add
+     */
+    private void index(Session s) {
+        sessionsByCustomer.compute(s.getCustomerId(), (id, keys) -> {
+            Set<SessionToken> k = keys == null ? new HashSet<>() : keys;
+            k.add(s.getToken());
+            sessions.put(s.getToken(), s);
+            return k;
+        });
+    }
+
+    /**
+     * Removes an expired session from both in-memory indexes. Nothing needs to
+     * be written, since the table already records its expiry.
+     *
+     * @param s The session to remove
+     */
+    private void forget(Session s) {
+        sessionsByCustomer.computeIfPresent(s.getCustomerId(), (id, keys) -> {
+            keys.remove(s.getToken());
+            sessions.remove(s.getToken(), s);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    /**
+     * Queues a write to be flushed to the database
+     *
+     * @param write The database operation to perform
+     */
+    private void enqueue(Consumer<ApplicationDatabaseManager> write) {
+        pendingWrites.add(write);
+        pendingCount.incrementAndGet();
+    }
+
+    /**
+     * Writes queued changes to the database, unless waiting to retry after a
+     * failure
+     */
+    private void flush() {
+        flush(false);
+    }
+
+    /**
+     * Writes queued changes to the database, in batches of at most {@value
+     * MAXIMUM_BATCH_SIZE} per transaction. Each batch is group committed, so
+     * it may share its commit with audit log entries written at the same time.
+     *
+     * <p>Writes which failed earlier are retried first. If a batch fails, its
+     * writes are run again one at a time. The first to fail, and everything
+     * after it, are put back ahead of everything else and flushing stops until
+     * the next retry is due.
+     *
+     * @param force Whether to write even if the next retry is not yet due
+     */
+    private synchronized void flush(boolean force) {
+        if (!force && System.currentTimeMillis() < nextAttemptMillis) {
+            return;
+        }
+
+        List<Consumer<ApplicationDatabaseManager>> batch = new ArrayList<>();
+        while (true) {
+            Consumer<ApplicationDatabaseManager> write;
+            while (batch.size() < MAXIMUM_BATCH_SIZE
+                    && (write = retryWrites.poll()) != null) {
+                batch.add(write);
+            }
+            while (batch.size() < MAXIMUM_BATCH_SIZE
+                    && (write = pendingWrites.poll()) != null) {
+                batch.add(write);
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            int written;
+            try {
+                databaseManager.inGroupCommit(
+                        () -> batch.forEach(w -> w.accept(databaseManager)));
+                written = batch.size();
+            } catch (RuntimeException e) {
+                written = writeSeparately(batch);
+            }
+
+            pendingCount.addAndGet(-written);
+            if (written < batch.size()) {
+                // Keep the background thread alive, and the writes queued in
+                // order, so they are retried before anything after them
+                for (int i = batch.size() - 1; i >= written; i--) {
+                    retryWrites.addFirst(batch.get(i));
+                }
+                if (!dropIfHopeless(batch.get(written))) {
+                    backOff();
+                    return;
+                }
+            } else {
+                backoffMillis = 0;
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Runs a batch of writes one at a time, each in a transaction of its own,
+     * stopping at the first which fails
+     *
+     * @param batch The writes to run, in order
+     * @return The number of writes which succeeded before one failed, or the
+     * size of the batch if none did
+     */
+    private int writeSeparately(
+            List<Consumer<ApplicationDatabaseManager>> batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            Consumer<ApplicationDatabaseManager> w = batch.get(i);
+            try {
+                databaseManager.inTransaction(() -> w.accept(databaseManager));
+            } catch (RuntimeException e) {
+                failedWrites.increment();
+                e.printStackTrace();
+                return i;
+            }
+        }
+
+        failingWrite = null;
+        failingWriteAttempts = 0;
+        return batch.size();
+    }
+
+    /**
+     * Records that a write at the head of the retry queue failed on its own,
+     * and drops it if it has now failed {@value MAXIMUM_ATTEMPTS} times in a
+     * row, unless it is an invalidation
+     *
+     * @param write The write which failed
+     * @return If the write was dropped, true. Otherwise false.
+     */
+    private boolean dropIfHopeless(Consumer<ApplicationDatabaseManager> write) {
+        if (write != failingWrite) {
+            failingWrite = write;
+            failingWriteAttempts = 0;
+        }
+        if (++failingWriteAttempts < MAXIMUM_ATTEMPTS) {
+            return false;
+        }
+        if (write instanceof Invalidation) {
+            if (failingWriteAttempts == MAXIMUM_ATTEMPTS) {
+                System.out.println("Session invalidation still failing after "
+                        + MAXIMUM_ATTEMPTS + " attempts; retrying until it "
+                        + "succeeds");
+            }
+            return false;
+        }
+
+        System.out.println("Dropping session write after "
+                + MAXIMUM_ATTEMPTS + " failed attempts");
+        retryWrites.removeFirst();
+        pendingCount.decrementAndGet();
+        droppedWrites.increment();
+        failingWrite = null;
+        failingWriteAttempts = 0;
+        return true;
+    }
+
+    /**
+     * Delays the next attempt to write, for twice as long as the last delay
+     */
+    private void backOff() {
+        backoffMillis = backoffMillis == 0 ? FLUSH_INTERVAL_MILLIS
+                : Math.min(backoffMillis * 2, MAXIMUM_BACKOFF_MILLIS);
+        nextAttemptMillis = System.currentTimeMillis() + backoffMillis;
+    }
+
+    /**
+     * A write expiring every session of an account, which must never be
+     * dropped
+     */
+    @FunctionalInterface
+    private interface Invalidation
+            extends Consumer<ApplicationDatabaseManager> {
+
+    }
+}
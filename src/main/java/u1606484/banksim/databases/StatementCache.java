@@ -0,0 +1,144 @@
+package u1606484.banksim.databases;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A least-recently-used cache of {@link PreparedStatement}s belonging to a
+ * single connection, keyed by their SQL text. This saves SQLite from
+ * re-parsing and re-planning the same fixed queries on every request.
+ *
+ * <p>Since a pooled connection is only ever used by the thread leasing it, the
+ * cache itself is not synchronised. The {@link Counters} it reports to are
+ * shared across the pool, and are safe to read from any thread.
+ *
+ * <p>Statements handed out by the cache remain owned by it, and must not be
+ * closed by the caller.
+ */
+class StatementCache {
+
+    /**
+     * The number of statements cached per connection if no capacity is
+     * specified
+     */
+    static final int DEFAULT_CAPACITY = 32;
+
+    /**
+     * The connection statements are prepared on
+     */
+    private final Connection conn;
+    /**
+     * Where hits, misses and evictions are recorded
+     */
+    private final Counters counters;
+    /**
+     * Cached statements, ordered from least to most recently used
+     */
+    private final Map<String, PreparedStatement> statements;
+
+    StatementCache(Connection conn, int capacity, Counters counters) {
+        this.conn = conn;
+        this.counters = counters;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(
+                capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= capacity) {
+                    return false;
+                }
+
+                counters.evictions.increment();
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Fetches a prepared statement for the given SQL, preparing and caching a
+     * new one if necessary. Any parameters left over from a previous use are
+     * cleared.
+     *
+     * @param sql The SQL text of the statement
+     * @return A prepared statement ready to have parameters bound
+     * @throws SQLException If a new statement could not be prepared
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement s = statements.get(sql);
+
+        if (s != null && !s.isClosed()) {
+            try {
+                s.clearParameters();
+                counters.hits.increment();
+                return s;
+            } catch (SQLException e) {
+                // The driver finalises a statement whose execution failed
+                // without marking it closed, so it must be prepared again
+                statements.remove(sql);
+            }
+        }
+
+        counters.misses.increment();
+        s = conn.prepareStatement(sql);
+        statements.put(sql, s);
+        return s;
+    }
+
+    /**
+     * Closes and forgets every cached statement
+     */
+    void clear() {
+        statements.values().forEach(StatementCache::closeQuietly);
+        statements.clear();
+    }
+
+    /**
+     * Closes a statement, reporting rather than throwing any failure
+     *
+     * @param s The statement to close
+     */
+    private static void closeQuietly(PreparedStatement s) {
+        try {
+            s.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Running totals of cache activity, which may be shared between the
+     * caches of many connections.
+     */
+    static class Counters {
+
+        /**
+         * The number of times a cached statement was reused
+         */
+        private final LongAdder hits = new LongAdder();
+        /**
+         * The number of times a statement had to be prepared
+         */
+        private final LongAdder misses = new LongAdder();
+        /**
+         * The number of statements closed to make room for others
+         */
+        private final LongAdder evictions = new LongAdder();
+
+        long getHits() {
+            return hits.sum();
+        }
+
+        long getMisses() {
+            return misses.sum();
+        }
+
+        long getEvictions() {
+            return evictions.sum();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package u1606484.banksim.interfaces;
+
+/**
+ * Durable storage for audit log entries, which have already been encrypted.
+ *
+ * <p>Entries are only ever appended, and are read back by time range. Stores
+ * know nothing of the entries' content; encrypting and decrypting them is
+ * left to the caller.
+ *
+ * @see u1606484.banksim.databases.ApplicationDatabaseManager
+ * @see u1606484.banksim.databases.MappedAuditLogStore
+ */
+public interface IAuditLogStore {
+
+    /**
+     * Appends a batch of entries, returning once they are stored. Entries at
+     * the same index of each array belong together.
+     *
+     * @param timestamps The time each entry was created, in milliseconds
+     * @param contents The encrypted content of each entry
+     * @throws RuntimeException If the entries could not be stored
+     */
+    void append(long[] timestamps, byte[][] contents);
+
+    /**
+     * Passes every entry created within a time range to a consumer as soon as
+     * it has been read, newest first.
+     *
+     * @param from The earliest creation time to include, inclusive
+     * @param to The latest creation time to include, exclusive
+     * @param sink Receives each entry
+     * @return The number of entries passed to the sink
+     */
+    long read(long from, long to, EntryConsumer sink);
+
+    /**
+     * Stores anything outstanding, and releases the store's resources.
+     */
+    void close();
+
+    /**
+     * Receives audit log entries as they are read
+     */
+    @FunctionalInterface
+    interface EntryConsumer {
+
+        /**
+         * Receives a single entry
+         *
+         * @param timestamp The time the entry was created, in milliseconds
+         * @param content The encrypted content of the entry
+         */
+        void accept(long timestamp, byte[] content);
+    }
+}
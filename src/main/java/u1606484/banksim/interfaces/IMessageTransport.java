@@ -0,0 +1,21 @@
+package u1606484.banksim.interfaces;
+
+/**
+ * Delivers a single message to a contact address, such as by SMS.
+ *
+ * <p>Implementations are used by {@link u1606484.banksim.MessageDispatcher},
+ * which handles queueing and retries, so {@code send} should simply make one
+ * attempt and throw if it fails.
+ */
+public interface IMessageTransport {
+
+    /**
+     * Makes a single attempt to deliver a message. This may block for as long
+     * as delivery takes.
+     *
+     * @param contactAddress The phone number / email / etc. to deliver to
+     * @param message The message to deliver
+     * @throws RuntimeException If the message could not be delivered
+     */
+    void send(String contactAddress, String message);
+}
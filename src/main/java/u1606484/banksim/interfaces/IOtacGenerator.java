@@ -39,5 +39,21 @@ public interface IOtacGenerator {
      * generation.
      */
     long getTimestamp(long rawTimeMillis, int offset);
+    /**
+     * Creates a one-time access code in the same way as {@link
+     * IOtacGenerator#generateOtac}, but returns it as a number rather than a
+     * string of digits. Leading zeros are therefore not represented.
+     *
+     * @param secretKey The secret key to use for code generation
+     * @param timeMillis The exact time in milliseconds to create an OTAC for.
+     * @return The OTAC generated from input parameters, as a number.
+     */
+    int generateCode(byte[] secretKey, long timeMillis);
 
+    /**
+     * Gets the number of digits in an OTAC produced by this generator
+     *
+     * @return The number of digits in an OTAC
+     */
+    int getDigitCount();
 }
@@ -0,0 +1,51 @@
+package u1606484.banksim.interfaces;
+
+import java.security.MessageDigest;
+
+/**
+ * A single, versioned scheme for hashing passwords.
+ *
+ * <p>Each stored password records the version of the scheme that hashed it
+ * and the work factor used, so that schemes and work factors can be changed
+ * without invalidating existing passwords. A password hashed under an old
+ * scheme is still verified with that scheme, and is re-hashed under the
+ * current one upon the customer's next successful login.
+ *
+ * @see u1606484.banksim.PasswordHashingService
+ */
+public interface IPasswordHasher {
+
+    /**
+     * Gets the version number stored alongside passwords hashed by this
+     * scheme. No two schemes may share a version.
+     *
+     * @return The scheme's version
+     */
+    int getVersion();
+
+    /**
+     * Hashes a password.
+     *
+     * @param plaintext The plaintext password
+     * @param salt The salt to combine with the password
+     * @param workFactor How much work to do hashing the password. Its meaning
+     * depends on the scheme, but higher is always slower.
+     * @return The password hash
+     */
+    byte[] hash(String plaintext, byte[] salt, int workFactor);
+
+    /**
+     * Checks whether an attempted password matches a stored hash, taking the
+     * same time however many bytes match.
+     *
+     * @param attempt The attempted password in plaintext
+     * @param salt The salt the stored password was hashed with
+     * @param hash The stored password hash
+     * @param workFactor The work factor the stored password was hashed with
+     * @return If the passwords match, true. Otherwise false.
+     */
+    default boolean verify(String attempt, byte[] salt, byte[] hash,
+            int workFactor) {
+        return MessageDigest.isEqual(hash(attempt, salt, workFactor), hash);
+    }
+}
@@ -60,20 +60,69 @@ public interface ITwoFactorService {
      */
     int getWindowCount();
 
+    /**
+     * Generates an OTAC with a given offset in terms of "windows", as a
+     * number rather than a string of digits.
+     *
+     * <p>Implementations should override this where they can compute the code
+     * without formatting it first.
+     *
+     * @param secretKey The secret key to use for OTAC generation
+     * @param offset The offset in terms of the number of windows
+     * @return The generated OTAC, as a number
+     */
+    default int generateOtacCode(byte[] secretKey, int offset) {
+        return Integer.parseInt(generateOtac(secretKey, offset));
+    }
+
+    /**
+     * Gets the number of digits in an OTAC
+     *
+     * @return The number of digits in an OTAC
+     */
+    int getOtacLength();
+
     /**
      * Checks all still-legal OTAC windows against the provided attempt.
      *
+     * <p>The attempt is parsed to a number once, and rejected without any
+     * hashing if it is not exactly {@link ITwoFactorService#getOtacLength()}
+     * decimal digits. Every window is then checked, even after a match, and
+     * compared without branching on the result, so the time taken does not
+     * reveal which window (if any) matched.
+     *
      * @param attempt The OTAC attempt
      * @param secretKey The secret key used for OTAC generation
      * @return If any comparisons match, then true. Otherwise false.
      */
     default boolean verifyOtac(String attempt, byte[] secretKey) {
-        for (int i = 0; i > -getWindowCount(); i--) {
-            String correctOtac = generateOtac(secretKey, i);
-            if (attempt.equals(correctOtac)) {
-                return true;
+        int length = getOtacLength();
+        if (attempt.length() != length) {
+            return false;
+        }
+
+        int attemptCode = 0;
+        for (int i = 0; i < length; i++) {
+            char c = attempt.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
             }
+            attemptCode = attemptCode * 10 + (c - '0');
         }
-        return false;
+
+        int matches = 0;
+        for (int i = 0; i > -getWindowCount(); i--) {
+            int difference = attemptCode ^ generateOtacCode(secretKey, i);
+            // 1 if difference is zero, otherwise 0
+            matches |= ((difference | -difference) >>> 31) ^ 1;
+        }
+        return matches != 0;
+    }
+
+    /**
+     * Releases any resources held by the service, such as background threads.
+     * By default, this does nothing.
+     */
+    default void close() {
     }
 }
@@ -0,0 +1,149 @@
+package u1606484.banksim.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative values, such as latencies in nanoseconds or
+ * batch sizes, which any number of threads can record into without locking.
+ *
+ * <p>Values are counted in buckets whose width grows with their magnitude:
+ * each power of two is split into {@value SUB_BUCKETS} equal buckets, so any
+ * value is reported to within 12.5% of its true size, whatever its scale.
+ * Values below {@value SUB_BUCKETS} are counted exactly. The whole range of
+ * {@code long} fits in under 500 buckets, so recording never allocates.
+ */
+public class Histogram {
+
+    /**
+     * The number of bits of each value, after its leading one, which choose
+     * its bucket
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+    /**
+     * The number of buckets each power of two is split into
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * The number of buckets needed to hold any non-negative long
+     */
+    private static final int BUCKET_COUNT =
+            (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    /**
+     * The number of values recorded in each bucket
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    /**
+     * The number of values recorded
+     */
+    private final LongAdder count = new LongAdder();
+    /**
+     * The sum of every value recorded
+     */
+    private final LongAdder sum = new LongAdder();
+    /**
+     * The largest value recorded
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value
+     *
+     * @param value The value, which must not be negative
+     */
+    public void record(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Value must not be negative");
+        }
+
+        buckets.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            // Another thread raised the maximum; check again
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Gets the mean of every value recorded
+     *
+     * @return The mean, or 0 if nothing has been recorded
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Gets the value below which a given fraction of recorded values fall.
+     * While values are being recorded concurrently, this reflects some but
+     * not necessarily all of them.
+     *
+     * @param fraction The percentile, from 0 to 1
+     * @return The largest value the percentile's bucket can hold, but never
+     * more than the largest value recorded. 0 if nothing has been recorded.
+     */
+    public long getValueAtPercentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += buckets.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Finds the bucket a value is counted in
+     *
+     * @param value The value
+     * @return The index of its bucket
+     */
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Gets the largest value a bucket holds
+     *
+     * @param index The index of the bucket
+     * @return The largest value counted in it
+     */
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,105 @@
+package u1606484.banksim.metrics;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * A named collection of {@link Histogram}s and gauges, which can be written
+ * out as JSON.
+ *
+ * <p>Histograms are recorded into directly by the code they measure, and
+ * should be looked up once and held in a field, rather than looked up on
+ * every use. Gauges are read only when the metrics are written, so counters
+ * which components already keep can be exposed at no cost on the hot path.
+ *
+ * <p>By convention, histograms of latencies are recorded in nanoseconds and
+ * named with a {@code _ns} suffix.
+ */
+public class MetricsRegistry {
+
+    /**
+     * The percentiles written out for each histogram, and the names they are
+     * written under
+     */
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99",
+            "p999"};
+
+    /**
+     * Histograms by name, in name order
+     */
+    private final Map<String, Histogram> histograms =
+            new ConcurrentSkipListMap<>();
+    /**
+     * Gauges by name, in name order
+     */
+    private final Map<String, LongSupplier> gauges =
+            new ConcurrentSkipListMap<>();
+
+    /**
+     * Gets the histogram with a given name, creating it if there is none
+     *
+     * @param name The name of the histogram
+     * @return The histogram
+     */
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Adds a histogram kept by another component
+     *
+     * @param name The name to write the histogram under
+     * @param histogram The histogram
+     */
+    public void register(String name, Histogram histogram) {
+        histograms.put(name, histogram);
+    }
+
+    /**
+     * Adds a gauge, whose value is read each time metrics are written
+     *
+     * @param name The name to write the value under
+     * @param value Reads the current value. This must be cheap and thread-safe.
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Writes every gauge's current value, and a summary of every histogram,
+     * as a single JSON object
+     *
+     * @param json The generator to write to
+     * @throws IOException If writing fails
+     */
+    public void writeJson(JsonGenerator json) throws IOException {
+        json.writeStartObject();
+
+        json.writeObjectFieldStart("gauges");
+        for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+            json.writeNumberField(e.getKey(), e.getValue().getAsLong());
+        }
+        json.writeEndObject();
+
+        json.writeObjectFieldStart("histograms");
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            Histogram h = e.getValue();
+            json.writeObjectFieldStart(e.getKey());
+            json.writeNumberField("count", h.getCount());
+            json.writeNumberField("mean", h.getMean());
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                json.writeNumberField(PERCENTILE_NAMES[i],
+                        h.getValueAtPercentile(PERCENTILES[i]));
+            }
+            json.writeNumberField("max", h.getMax());
+            json.writeEndObject();
+        }
+        json.writeEndObject();
+
+        json.writeEndObject();
+    }
+}
@@ -0,0 +1,276 @@
+package u1606484.banksim.weblogic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import u1606484.banksim.AesContext;
+import u1606484.banksim.interfaces.IAuditLogStore;
+
+/**
+ * Writes audit log entries to an {@link IAuditLogStore} from a background
+ * thread, so that request threads never wait on encryption or on a commit.
+ *
+ * <p>Entries are accepted into a bounded buffer without blocking. The
+ * background thread takes everything currently buffered (up to {@value
+ * MAXIMUM_BATCH_SIZE} entries), encrypts it, and appends the whole batch to
+ * the store at once. If entries arrive faster than they can be written, the
+ * buffer fills and further entries are dropped rather than stalling the
+ * caller; {@link AuditLogWriter#isSaturated()} and the counters on this class
+ * make this visible.
+ *
+ * <p>A batch which fails to write, such as while the database is busy, is
+ * retried up to {@value MAXIMUM_ATTEMPTS} times in all, waiting twice as long
+ * before each retry. Only if every attempt fails are its entries counted as
+ * failed and lost.
+ */
+class AuditLogWriter {
+
+    /**
+     * The number of entries the buffer can hold
+     */
+    private static final int BUFFER_CAPACITY = 8192;
+    /**
+     * The maximum number of entries written in one batch
+     */
+    private static final int MAXIMUM_BATCH_SIZE = 256;
+    /**
+     * How full the buffer must be, as a fraction of its capacity, before it is
+     * reported as saturated
+     */
+    private static final double SATURATION_THRESHOLD = 0.75;
+    /**
+     * The number of times a batch is attempted before its entries are given up
+     * on
+     */
+    private static final int MAXIMUM_ATTEMPTS = 5;
+    /**
+     * How long to wait before first retrying a failed batch, in milliseconds
+     */
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+    /**
+     * How long to wait for the buffer to drain on shutdown, in milliseconds
+     */
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 5 * 1000;
+    /**
+     * How long the background thread waits for an entry before checking
+     * whether it has been stopped, in milliseconds
+     */
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
+    /**
+     * The store to write entries to
+     */
+    private final IAuditLogStore store;
+    /**
+     * Encrypts entries before they are written
+     */
+    private final AesContext encryption;
+    /**
+     * Entries waiting to be written
+     */
+    private final BlockingQueue<LogEntry> buffer =
+            new ArrayBlockingQueue<>(BUFFER_CAPACITY);
+    /**
+     * The thread performing encryption and writing
+     */
+    private final Thread writer;
+    /**
+     * The number of entries successfully written
+     */
+    private final LongAdder written = new LongAdder();
+    /**
+     * The number of entries rejected because the buffer was full
+     */
+    private final LongAdder dropped = new LongAdder();
+    /**
+     * The number of entries lost because every attempt to write their batch
+     * failed
+     */
+    private final LongAdder failed = new LongAdder();
+    /**
+     * The number of times a batch failed to write and was retried
+     */
+    private final LongAdder retries = new LongAdder();
+    /**
+     * The number of batches written
+     */
+    private final LongAdder batches = new LongAdder();
+    /**
+     * Whether the writer has been asked to stop
+     */
+    private volatile boolean stopping = false;
+
+    AuditLogWriter(IAuditLogStore store, AesContext encryption) {
+        this.store = store;
+        this.encryption = encryption;
+
+        writer = new Thread(this::run, "audit-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues an entry to be written, timestamped with the current time. This
+     * never blocks.
+     *
+     * @param content The plaintext content of the entry
+     * @return If the entry was accepted, true. If the buffer was full and the
+     * entry was dropped, false.
+     */
+    boolean submit(String content) {
+        if (stopping) {
+            dropped.increment();
+            return false;
+        }
+
+        boolean accepted = buffer.offer(
+                new LogEntry(System.currentTimeMillis(), content));
+        if (!accepted) {
+            dropped.increment();
+        }
+        return accepted;
+    }
+
+    /**
+     * Checks whether the buffer is close to full, meaning entries are arriving
+     * faster than they can be written.
+     *
+     * @return If the buffer is above its saturation threshold, true. Otherwise
+     * false.
+     */
+    boolean isSaturated() {
+        return buffer.size() >= BUFFER_CAPACITY * SATURATION_THRESHOLD;
+    }
+
+    /**
+     * Gets the number of entries waiting to be written
+     *
+     * @return The current queue depth
+     */
+    int getQueueDepth() {
+        return buffer.size();
+    }
+
+    long getWrittenCount() {
+        return written.sum();
+    }
+
+    long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    long getFailedCount() {
+        return failed.sum();
+    }
+
+    long getRetryCount() {
+        return retries.sum();
+    }
+
+    long getBatchCount() {
+        return batches.sum();
+    }
+
+    /**
+     * Stops accepting entries, and waits for those already buffered to be
+     * written.
+     */
+    void close() {
+        stopping = true;
+        try {
+            writer.join(SHUTDOWN_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The body of the background thread. Waits for entries, then writes them
+     * in batches until stopped and drained.
+     */
+    private void run() {
+        List<LogEntry> batch = new ArrayList<>(MAXIMUM_BATCH_SIZE);
+
+        while (!stopping || !buffer.isEmpty()) {
+            try {
+                LogEntry first = buffer.poll(POLL_INTERVAL_MILLIS,
+                        TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            buffer.drainTo(batch, MAXIMUM_BATCH_SIZE - batch.size());
+            writeBatch(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Encrypts and appends a batch of entries to the store, retrying if it
+     * fails
+     *
+     * @param batch The entries to write
+     */
+    private void writeBatch(List<LogEntry> batch) {
+        long[] timestamps = new long[batch.size()];
+        byte[][] contents = new byte[batch.size()][];
+        for (int i = 0; i < batch.size(); i++) {
+            LogEntry entry = batch.get(i);
+            timestamps[i] = entry.timestamp;
+            contents[i] = entry.content.getBytes();
+        }
+
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                store.append(timestamps, encryption.encryptAll(contents));
+                written.add(batch.size());
+                batches.increment();
+                return;
+            } catch (RuntimeException e) {
+                if (attempt == MAXIMUM_ATTEMPTS) {
+                    failed.add(batch.size());
+                    e.printStackTrace();
+                    return;
+                }
+            }
+
+            retries.increment();
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                failed.add(batch.size());
+                Thread.currentThread().interrupt();
+                return;
+            }
+            backoff *= 2;
+        }
+    }
+
+    /**
+     * A single log entry waiting to be written
+     */
+    private static class LogEntry {
+
+        /**
+         * When the entry was submitted
+         */
+        private final long timestamp;
+        /**
+         * The plaintext content of the entry
+         */
+        private final String content;
+
+        LogEntry(long timestamp, String content) {
+            this.timestamp = timestamp;
+            this.content = content;
+        }
+    }
+}
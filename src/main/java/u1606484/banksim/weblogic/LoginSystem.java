@@ -1,18 +1,46 @@
 package u1606484.banksim.weblogic;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Optional;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
-import u1606484.banksim.AesEncryption;
+import u1606484.banksim.AesContext;
+import u1606484.banksim.LogMessages;
+import u1606484.banksim.MessageDispatcher;
+import u1606484.banksim.PasswordHashingService;
+import u1606484.banksim.PasswordHashingService.BusyException;
+import u1606484.banksim.RandomSource;
+import u1606484.banksim.RateLimiter;
 import u1606484.banksim.SecurityService;
+import u1606484.banksim.SessionToken;
 import u1606484.banksim.TwoFactorService;
+import u1606484.banksim.VirtualThreads;
 import u1606484.banksim.controllers.WebController;
 import u1606484.banksim.databases.ApplicationDatabaseManager;
+import u1606484.banksim.databases.LoginData;
+import u1606484.banksim.databases.MappedAuditLogStore;
 import u1606484.banksim.databases.PasswordData;
+import u1606484.banksim.databases.SessionReaper;
+import u1606484.banksim.databases.SessionStore;
 import u1606484.banksim.databases.UserAuthenticationPackage;
+import u1606484.banksim.interfaces.IAuditLogStore;
 import u1606484.banksim.interfaces.ITwoFactorService;
+import u1606484.banksim.metrics.Histogram;
+import u1606484.banksim.metrics.MetricsRegistry;
 
 /**
  * Effectively acts as a central point through which all data in the program
@@ -40,6 +68,29 @@ public class LoginSystem {
      * The length in digits of an OTAC
      */
     private static final int OTAC_LENGTH = 8;
+    /**
+     * The number of login attempts an IP address may make in a burst
+     */
+    private static final int IP_ATTEMPT_BURST = 30;
+    /**
+     * How long an IP address takes to earn another login attempt, in
+     * milliseconds
+     */
+    private static final long IP_ATTEMPT_REFILL_MILLIS = 2 * 1000;
+    /**
+     * The number of login attempts which may be made against an account in a
+     * burst
+     */
+    private static final int ACCOUNT_ATTEMPT_BURST = 10;
+    /**
+     * How long an account takes to earn another login attempt, in
+     * milliseconds
+     */
+    private static final long ACCOUNT_ATTEMPT_REFILL_MILLIS = 30 * 1000;
+    /**
+     * The maximum number of asynchronous logins waiting for a database thread
+     */
+    private static final int ASYNC_QUEUE_CAPACITY = 1024;
 
     /**
      * The service used for 2FA
@@ -49,71 +100,392 @@ public class LoginSystem {
      * The service used for accessing the database
      */
     private final ApplicationDatabaseManager databaseManager;
+    /**
+     * In-memory record of live sessions, written behind to the database
+     */
+    private final SessionStore sessionStore;
+    /**
+     * Deletes expired sessions from the database and from memory
+     */
+    private final SessionReaper sessionReaper;
+    /**
+     * Where audit log entries are kept - either the database, or files of
+     * their own
+     */
+    private final IAuditLogStore auditLogStore;
+    /**
+     * Encrypts and writes audit log entries in the background
+     */
+    private final AuditLogWriter auditLogWriter;
+    /**
+     * Encrypts and decrypts log entries, using the key from the environment
+     */
+    private final AesContext logEncryption;
+    /**
+     * Hashes and verifies passwords on a bounded pool of threads
+     */
+    private final PasswordHashingService passwordHashing;
+    /**
+     * Runs the database work of asynchronous logins, off the request threads
+     */
+    private final ThreadPoolExecutor asyncWork;
+    /**
+     * The number of asynchronous logins rejected because the queue was full
+     */
+    private final LongAdder asyncRejected = new LongAdder();
+
+    /**
+     * Whether login attempts are rate limited at all
+     */
+    private final boolean rateLimited = isRateLimited();
+    /**
+     * Limits how often each IP address may attempt to log in
+     */
+    private final RateLimiter ipAttempts = new RateLimiter(IP_ATTEMPT_BURST,
+            IP_ATTEMPT_REFILL_MILLIS);
+    /**
+     * Limits how often login attempts may be made against each account
+     */
+    private final RateLimiter accountAttempts = new RateLimiter(
+            ACCOUNT_ATTEMPT_BURST, ACCOUNT_ATTEMPT_REFILL_MILLIS);
+
+    /**
+     * Latency histograms and gauges covering every stage of logging in
+     */
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final Histogram beginLoginLatency = metrics
+            .histogram("login.begin_ns");
+    private final Histogram beginLoginAsyncLatency = metrics
+            .histogram("login.begin_async_ns");
+    private final Histogram basicLoginLatency = metrics
+            .histogram("login.basic_ns");
+    private final Histogram otacLoginLatency = metrics
+            .histogram("login.otac_ns");
+    private final Histogram passwordLatency = metrics
+            .histogram("login.verify_password_ns");
+    private final Histogram sendOtacLatency = metrics
+            .histogram("otac.send_ns");
+    private final Histogram writeLogLatency = metrics
+            .histogram("log.submit_ns");
+    private final Histogram sessionLookupLatency = metrics
+            .histogram("session.lookup_ns");
 
     public LoginSystem() {
-        databaseManager = new ApplicationDatabaseManager();
-        twoFactorService = new TwoFactorService(
-                OTAC_LENGTH,
-                OTAC_STEP,
-                OTAC_STEP_WINDOW);
+        this(new ApplicationDatabaseManager(),
+                new TwoFactorService(
+                        OTAC_LENGTH,
+                        OTAC_STEP,
+                        OTAC_STEP_WINDOW));
     }
 
     /**
-     * Writes a log entry to the database with given content
+     * Creates a login system backed by a specific database and 2FA service,
+     * such as a temporary database for testing or benchmarking.
      *
-     * @param content The content of the entry
+     * @param databaseManager The database to use. This is closed along with
+     * the login system.
+     * @param twoFactorService The 2FA service to use
+     */
+    public LoginSystem(ApplicationDatabaseManager databaseManager,
+            ITwoFactorService twoFactorService) {
+        this.databaseManager = databaseManager;
+        this.twoFactorService = twoFactorService;
+        sessionStore = new SessionStore(databaseManager);
+        sessionReaper = new SessionReaper(databaseManager, sessionStore);
+        logEncryption = new AesContext(System.getenv("log_encryption_key"));
+        auditLogStore = getAuditLogStore(databaseManager);
+        auditLogWriter = new AuditLogWriter(auditLogStore, logEncryption);
+        passwordHashing = new PasswordHashingService(
+                getPasswordHashConcurrency());
+
+        int asyncThreads = getAsyncLoginThreads();
+        asyncWork = new ThreadPoolExecutor(asyncThreads, asyncThreads,
+                0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(ASYNC_QUEUE_CAPACITY),
+                VirtualThreads.factory("async-login-"));
+
+        registerMetrics();
+    }
+
+    /**
+     * Publishes the counters kept by every component behind the login
+     * system, so they are written out along with its latency histograms
      */
-    public void writeLog(String content) {
-        byte[] encryptedContent = AesEncryption.encrypt(content.getBytes(),
-                System.getenv("log_encryption_key"));
-        long timestamp = System.currentTimeMillis();
+    private void registerMetrics() {
+        databaseManager.registerMetrics(metrics);
+
+        metrics.gauge("sessions.live", sessionStore::size);
+        metrics.gauge("sessions.pending_writes",
+                sessionStore::getPendingWriteCount);
+        metrics.gauge("sessions.failed_writes",
+                sessionStore::getFailedWriteCount);
+        metrics.gauge("sessions.dropped_writes",
+                sessionStore::getDroppedWriteCount);
+        metrics.gauge("session_reaper.runs", sessionReaper::getRunCount);
+        metrics.gauge("session_reaper.deleted", sessionReaper::getDeletedCount);
+        metrics.gauge("session_reaper.purged", sessionReaper::getPurgedCount);
+        metrics.gauge("session_reaper.pages_freed",
+                sessionReaper::getPagesFreedCount);
+        metrics.gauge("session_reaper.busy_ms", sessionReaper::getBusyMillis);
+
+        metrics.gauge("audit_log.written", auditLogWriter::getWrittenCount);
+        metrics.gauge("audit_log.dropped", auditLogWriter::getDroppedCount);
+        metrics.gauge("audit_log.failed", auditLogWriter::getFailedCount);
+        metrics.gauge("audit_log.batches", auditLogWriter::getBatchCount);
+        metrics.gauge("audit_log.retries", auditLogWriter::getRetryCount);
+        metrics.gauge("audit_log.queue_depth", auditLogWriter::getQueueDepth);
+        metrics.gauge("audit_log.saturated",
+                () -> auditLogWriter.isSaturated() ? 1 : 0);
+        if (auditLogStore instanceof MappedAuditLogStore) {
+            MappedAuditLogStore files = (MappedAuditLogStore) auditLogStore;
+            metrics.gauge("audit_log.segments", files::getSegmentCount);
+            metrics.gauge("audit_log.bytes", files::getSize);
+        }
+
+        metrics.gauge("password_hashing.outstanding",
+                passwordHashing::getOutstandingCount);
+        metrics.gauge("password_hashing.rejected",
+                passwordHashing::getRejectedCount);
+        metrics.gauge("password_hashing.timed_out",
+                passwordHashing::getTimedOutCount);
 
-        databaseManager.newLog(timestamp, encryptedContent);
+        metrics.gauge("rate_limit.ip.allowed", ipAttempts::getAllowedCount);
+        metrics.gauge("rate_limit.ip.limited", ipAttempts::getLimitedCount);
+        metrics.gauge("rate_limit.ip.evicted", ipAttempts::getEvictedCount);
+        metrics.gauge("rate_limit.account.allowed",
+                accountAttempts::getAllowedCount);
+        metrics.gauge("rate_limit.account.limited",
+                accountAttempts::getLimitedCount);
+        metrics.gauge("rate_limit.account.evicted",
+                accountAttempts::getEvictedCount);
+
+        metrics.gauge("async_login.outstanding",
+                this::getAsyncOutstandingCount);
+        metrics.gauge("async_login.rejected", this::getAsyncRejectedCount);
+
+        RandomSource random = SecurityService.getRandomSource();
+        metrics.gauge("random.refills", random::getRefillCount);
+        metrics.gauge("random.contended", random::getContendedCount);
+        metrics.gauge("random.blocked", random::getBlockedCount);
+        metrics.gauge("random.bytes_served", random::getBytesServed);
+
+        if (twoFactorService instanceof TwoFactorService) {
+            MessageDispatcher dispatcher = ((TwoFactorService) twoFactorService)
+                    .getDispatcher();
+            metrics.gauge("messages.outstanding",
+                    dispatcher::getOutstandingCount);
+            metrics.gauge("messages.sent", dispatcher::getSentCount);
+            metrics.gauge("messages.coalesced", dispatcher::getCoalescedCount);
+            metrics.gauge("messages.dropped", dispatcher::getDroppedCount);
+            metrics.gauge("messages.failed", dispatcher::getFailedCount);
+            metrics.gauge("messages.retries", dispatcher::getRetryCount);
+        }
     }
 
     /**
-     * Generates an OTAC for a user, looking up their required secret key from
-     * the database.
+     * Gets the latency histograms and gauges covering every stage of logging
+     * in
      *
-     * @param userId The account ID of the customer to generate the OTAC for
-     * @return The generated OTAC. In the case of failure, an empty string ("")
-     * is returned.
+     * @return The login system's metrics
      */
-    private String generateOtac(int userId) {
-        Optional<byte[]> otacKey = databaseManager.fetchLoginKey(userId);
-        return otacKey.map(twoFactorService::generateOtac).orElse("");
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Chooses where to keep audit log entries. If the {@code
+     * audit_log_directory} environment variable is set, they are kept in a
+     * {@link MappedAuditLogStore} in that directory, so that they never
+     * contend with other writes for the database. Otherwise, they are kept
+     * in the database. Entries written to the database before the variable
+     * was set stay there, and are still exported alongside the files.
+     *
+     * @param databaseManager The database
+     * @return The audit log store to use
+     */
+    private static IAuditLogStore getAuditLogStore(
+            ApplicationDatabaseManager databaseManager) {
+        String directory = System.getenv("audit_log_directory");
+        return directory == null ? databaseManager
+                : new MappedAuditLogStore(Paths.get(directory));
+    }
+
+    /**
+     * Gets the number of threads running the database work of asynchronous
+     * logins, from the {@code async_login_threads} environment variable. If
+     * it is not set, this is 8, the default number of database connections,
+     * since more threads would only queue for a connection.
+     *
+     * @return The number of asynchronous login threads
+     */
+    private static int getAsyncLoginThreads() {
+        String configured = System.getenv("async_login_threads");
+        return configured == null ? 8 : Integer.parseInt(configured);
+    }
+
+    /**
+     * Gets the maximum number of passwords to hash at once, from the {@code
+     * password_hash_concurrency} environment variable. If it is not set, this
+     * is the number of processors available.
+     *
+     * @return The password hashing concurrency cap
+     */
+    private static int getPasswordHashConcurrency() {
+        String configured = System.getenv("password_hash_concurrency");
+        return configured == null
+                ? Runtime.getRuntime().availableProcessors()
+                : Integer.parseInt(configured);
+    }
+
+    /**
+     * Checks whether login attempts should be rate limited, from the {@code
+     * login_rate_limits} environment variable. They are unless it is set to
+     * {@code false}, which is only meant for load testing from one address.
+     *
+     * @return Whether to rate limit login attempts
+     */
+    private static boolean isRateLimited() {
+        return !"false".equals(System.getenv("login_rate_limits"));
+    }
+
+    /**
+     * Checks whether a login attempt may go ahead, before any database or
+     * cryptographic work is done for it. Each IP address may make {@value
+     * IP_ATTEMPT_BURST} attempts in a burst, then one every {@value
+     * IP_ATTEMPT_REFILL_MILLIS} milliseconds. Each account may receive
+     * {@value ACCOUNT_ATTEMPT_BURST} attempts, then one every {@value
+     * ACCOUNT_ATTEMPT_REFILL_MILLIS} milliseconds, whatever addresses they
+     * come from.
+     *
+     * <p>An attempt refused because of its address does not count against
+     * its account. Limits can be turned off with the {@code login_rate_limits}
+     * environment variable.
+     *
+     * @param ip The address the attempt came from
+     * @param accountId The account the attempt is for, or -1 if none was
+     * given
+     * @return If the attempt may go ahead, true. If it has been limited,
+     * false.
+     * @see RateLimiter
+     */
+    public boolean allowLoginAttempt(String ip, int accountId) {
+        if (!rateLimited) {
+            return true;
+        }
+
+        return ipAttempts.tryAcquire(ip)
+                && (accountId < 0 || accountAttempts.tryAcquire(accountId));
+    }
+
+    /**
+     * Queues a log entry to be written to the database with given content.
+     * This returns immediately - encryption and writing happen in the
+     * background.
+     *
+     * @param content The content of the entry
+     * @return If the entry was accepted, true. If the log is saturated and the
+     * entry was dropped, false.
+     * @see AuditLogWriter
+     */
+    public boolean writeLog(String content) {
+        long start = System.nanoTime();
+        try {
+            return auditLogWriter.submit(content);
+        } finally {
+            writeLogLatency.record(System.nanoTime() - start);
+        }
     }
 
     /**
      * Verifies whether the attempted password for a user is correct.
      *
-     * <p>Furthermore, if a password is found to be correct, but calculated
-     * using fewer hashes than mandated by
-     * {@link SecurityService#PASSWORD_HASH_PASSES},
-     * then the password is recalculated and updated in the database.
+     * <p>Furthermore, if a password is found to be correct, but was hashed
+     * with an older scheme or a lower work factor than new passwords are, then
+     * it is re-hashed and updated in the database. This happens in the
+     * background, so the login is not delayed by a second hash.
+     *
+     * <p>If the account does not exist, the attempt is still hashed, so that
+     * this takes as long as it would for an account which does.
      *
      * @param userId The account ID of the account to verify
      * @param passwordAttempt The attempted password in plaintext
      * @return If the attempt is correct, true. Otherwise false.
+     * @throws BusyException If the password could not be checked because the
+     * hashing pool is saturated
+     * @see PasswordHashingService
      */
     private boolean verifyPassword(int userId, String passwordAttempt) {
         Optional<PasswordData> data = databaseManager.getPasswordData(userId);
-        if (data.isPresent()) {
-            boolean success = SecurityService.verifyPassword(passwordAttempt,
-                    data.get().getPasswordSalt(), data.get().getPasswordHash(),
-                    data.get().getPasses());
-
-            // Update password if out of date
-            if (success && data.get().getPasses()
-                    < SecurityService.PASSWORD_HASH_PASSES) {
-                databaseManager.updatePassword(userId, passwordAttempt,
-                        SecurityService.getSalt(),
-                        SecurityService.PASSWORD_HASH_PASSES);
-            }
+        return data.isPresent() ? verifyPassword(data.get(), passwordAttempt)
+                : verifyMissing(passwordAttempt);
+    }
 
-            return success;
-        } else {
-            return false;
+    /**
+     * Verifies whether the attempted password matches a stored password,
+     * re-hashing it in the background if it is out of date.
+     *
+     * @param stored The stored password
+     * @param passwordAttempt The attempted password in plaintext
+     * @return If the attempt is correct, true. Otherwise false.
+     * @throws BusyException If the password could not be checked because the
+     * hashing pool is saturated
+     * @see LoginSystem#verifyPassword(int, String)
+     */
+    private boolean verifyPassword(PasswordData stored,
+            String passwordAttempt) {
+        long start = System.nanoTime();
+        boolean success;
+        try {
+            success = passwordHashing.verify(passwordAttempt, stored);
+        } finally {
+            passwordLatency.record(System.nanoTime() - start);
+        }
+
+        if (success) {
+            rehashIfNeeded(stored, passwordAttempt);
+        }
+        return success;
+    }
+
+    /**
+     * Hashes an attempted password for an account which does not exist, so
+     * that rejecting it takes as long as rejecting a wrong password for one
+     * which does
+     *
+     * @param passwordAttempt The attempted password in plaintext
+     * @return False
+     * @throws BusyException If the password could not be hashed because the
+     * hashing pool is saturated
+     * @see PasswordHashingService#verifyMissing
+     */
+    private boolean verifyMissing(String passwordAttempt) {
+        long start = System.nanoTime();
+        try {
+            return passwordHashing.verifyMissing(passwordAttempt);
+        } finally {
+            passwordLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Re-hashes a correct password in the background, and updates it in the
+     * database, if it was hashed with an older scheme or a lower work factor
+     * than new passwords are.
+     *
+     * @param stored The stored password
+     * @param passwordPlaintext The password in plaintext, known to match
+     */
+    private void rehashIfNeeded(PasswordData stored,
+            String passwordPlaintext) {
+        if (passwordHashing.needsRehash(stored)) {
+            int securityId = stored.getSecurityId();
+            passwordHashing.hashAsync(passwordPlaintext)
+                    .thenAccept(p -> databaseManager
+                            .updatePassword(securityId, p))
+                    .exceptionally(e -> {
+                        e.printStackTrace();
+                        return null;
+                    });
         }
     }
 
@@ -139,15 +511,26 @@ public class LoginSystem {
      * OTAC.
      */
     public void sendOtac(int userId) {
-        Optional<String> phoneNumber = databaseManager.fetchPhoneNumber(userId);
-        phoneNumber.ifPresent(s -> {
-            String otac = generateOtac(userId);
-            String message =
-                    "NEVER share this code with anybody - not even Wondough "
-                            + "Staff."
-                            + "\nPlease use the code " + otac + " to log in.";
-            twoFactorService.sendMessage(s, message);
-        });
+        databaseManager.getLoginData(userId).ifPresent(
+                d -> sendOtac(d.getPhoneNumber(), d.getLoginKey()));
+    }
+
+    /**
+     * Generates an OTAC from a customer's secret key, and uses the 2FA service
+     * to transmit it to them
+     *
+     * @param phoneNumber The phone number to send the OTAC to
+     * @param loginKey The customer's secret key for OTAC generation
+     */
+    private void sendOtac(String phoneNumber, byte[] loginKey) {
+        long start = System.nanoTime();
+        String otac = twoFactorService.generateOtac(loginKey);
+        String message =
+                "NEVER share this code with anybody - not even Wondough "
+                        + "Staff."
+                        + "\nPlease use the code " + otac + " to log in.";
+        twoFactorService.sendMessage(phoneNumber, message);
+        sendOtacLatency.record(System.nanoTime() - start);
     }
 
     /**
@@ -157,7 +540,7 @@ public class LoginSystem {
      * @param accountId The account ID of the account to sign out
      */
     private void signOut(int accountId) {
-        databaseManager.invalidateSessionKeys(accountId);
+        sessionStore.invalidate(accountId);
     }
 
     /**
@@ -165,25 +548,246 @@ public class LoginSystem {
      * cookie to the client with the session token in it.
      *
      * @param accountId The account ID to set up a session for
-     * @param sessionKey The session key to use for this new session
+     * @param token The session token to use for this new session
      * @param expiry When the session will expire
      * @param otacLevel The OTAC-level of this session (level of authentication
      * account is logged in at)
      * @param response The response to send to the user, which is used to set
      * cookies
      */
-    private void assignNewSessionToken(int accountId, String sessionKey,
+    private void assignNewSessionToken(int accountId, SessionToken token,
             long expiry, int otacLevel, HttpServletResponse response) {
-        databaseManager
-                .assignSessionKey(accountId, sessionKey, expiry, otacLevel);
+        sessionStore.create(accountId, token, expiry, otacLevel);
+        setSessionCookie(token, response);
+    }
 
-        Cookie newCookie = new Cookie("session_token", sessionKey);
+    /**
+     * Supplies a cookie to the client with the session token in it
+     *
+     * @param token The session token to send
+     * @param response The response to send to the user, which is used to set
+     * cookies
+     */
+    private static void setSessionCookie(SessionToken token,
+            HttpServletResponse response) {
+        Cookie newCookie = new Cookie("session_token", token.encode());
         // Set security flags
         newCookie.setHttpOnly(true);
         newCookie.setSecure(true);
         response.addCookie(newCookie);
     }
 
+    /**
+     * Performs the whole of the first stage of logging in. If the password is
+     * correct, the account is assigned a session at OTAC level 0, the login is
+     * recorded in the audit log, and an OTAC is sent to the customer.
+     *
+     * <p>The customer's password, OTAC secret key and phone number are read
+     * in one query, and the new session and its audit log entry are written
+     * in one transaction. Failed attempts are not logged by this method. An
+     * attempt against an account which does not exist is still hashed, so it
+     * takes as long as one with a wrong password.
+     *
+     * @param accountId The account ID of the account to attempt to log in as
+     * @param passwordAttempt The attempted password
+     * @param ip The address the attempt came from, for the audit log
+     * @param response The response to send to the user, which is used to set
+     * cookies
+     * @return If the credentials are valid, then true. Otherwise false.
+     * @throws BusyException If the password could not be checked because the
+     * hashing pool is saturated
+     * @see ApplicationDatabaseManager#getLoginData(int)
+     */
+    public boolean beginLogin(int accountId, String passwordAttempt,
+            String ip, HttpServletResponse response) {
+        long start = System.nanoTime();
+        try {
+            Optional<LoginData> data = databaseManager.getLoginData(accountId);
+            if (!data.isPresent()) {
+                return verifyMissing(passwordAttempt);
+            }
+            if (!verifyPassword(data.get().getPassword(), passwordAttempt)) {
+                return false;
+            }
+
+            completeFirstStage(accountId, data.get(), ip, response);
+            return true;
+        } finally {
+            beginLoginLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Performs the whole of the first stage of logging in, as {@link
+     * LoginSystem#beginLogin} does, without blocking the calling thread.
+     *
+     * <p>The customer's data is read on a bounded pool of database threads,
+     * and the password is checked on the password hashing pool. The session
+     * is then set up back on the database pool, so the hashing pool only ever
+     * hashes. Sending the OTAC and writing the session and audit entry are
+     * already done in the background, so the returned future completes
+     * without waiting for either.
+     *
+     * @param accountId The account ID of the account to attempt to log in as
+     * @param passwordAttempt The attempted password
+     * @param ip The address the attempt came from, for the audit log
+     * @param response The response to send to the user, which is used to set
+     * cookies. This must not be committed before the future completes.
+     * @return A future completing with true if the credentials are valid,
+     * and false otherwise. If the login could not be processed because either
+     * pool is saturated, it completes exceptionally with a {@link
+     * BusyException} or {@link RejectedExecutionException}, so that this is
+     * not mistaken for wrong credentials; see {@link
+     * LoginSystem#isSaturated}.
+     */
+    public CompletableFuture<Boolean> beginLoginAsync(int accountId,
+            String passwordAttempt, String ip, HttpServletResponse response) {
+        long start = System.nanoTime();
+        return supplyAsync(() -> databaseManager.getLoginData(accountId))
+                .thenCompose(data -> {
+                    // An account which does not exist still costs a hash
+                    CompletableFuture<Boolean> verified = data.isPresent()
+                            ? passwordHashing.verifyAsync(passwordAttempt,
+                                    data.get().getPassword())
+                            : passwordHashing
+                                    .verifyMissingAsync(passwordAttempt);
+
+                    return verified.thenApplyAsync(success -> {
+                        if (success) {
+                            rehashIfNeeded(data.get().getPassword(),
+                                    passwordAttempt);
+                            completeFirstStage(accountId, data.get(), ip,
+                                    response);
+                        }
+                        return success;
+                    }, asyncWork);
+                })
+                .whenComplete((success, e) -> countRejection(e))
+                .whenComplete((success, e) -> beginLoginAsyncLatency
+                        .record(System.nanoTime() - start));
+    }
+
+    /**
+     * Attempts to log a user in with provided OTAC, as {@link
+     * LoginSystem#attemptOtacLogin} does, without blocking the calling
+     * thread.
+     *
+     * @param accountId The account ID of the account to attempt to sign in as
+     * @param otacAttempt The attempt for the OTAC
+     * @param response The response to send to the user, which is used to set
+     * cookies. This must not be committed before the future completes.
+     * @return A future completing with true if the credentials are valid,
+     * and false otherwise. If the login could not be processed because the
+     * database pool is saturated, it completes exceptionally with a {@link
+     * RejectedExecutionException}; see {@link LoginSystem#isSaturated}.
+     */
+    public CompletableFuture<Boolean> attemptOtacLoginAsync(int accountId,
+            String otacAttempt, HttpServletResponse response) {
+        return supplyAsync(
+                () -> attemptOtacLogin(accountId, otacAttempt, response))
+                .whenComplete((success, e) -> countRejection(e));
+    }
+
+    /**
+     * Checks whether an asynchronous login failed because a pool was
+     * saturated, rather than because anything is wrong with the login. The
+     * customer should be asked to try again later, and the attempt should not
+     * be logged as a failure.
+     *
+     * @param e Why the login failed
+     * @return If a pool was saturated, true. Otherwise false.
+     */
+    public static boolean isSaturated(Throwable e) {
+        Throwable cause = causeOf(e);
+        return cause instanceof RejectedExecutionException
+                || cause instanceof BusyException;
+    }
+
+    /**
+     * Counts an asynchronous login refused by the asynchronous login pool,
+     * whichever stage of the login it refused
+     *
+     * @param e Why the login failed, or null if it did not
+     */
+    private void countRejection(Throwable e) {
+        if (causeOf(e) instanceof RejectedExecutionException) {
+            asyncRejected.increment();
+        }
+    }
+
+    /**
+     * Finds what made a stage of an asynchronous login fail, since later
+     * stages wrap it in a {@link CompletionException}
+     *
+     * @param e The exception a stage completed with
+     * @return The exception which caused it
+     */
+    private static Throwable causeOf(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null
+                ? e.getCause() : e;
+    }
+
+    /**
+     * Assigns a session at OTAC level 0 to an account whose password has been
+     * verified, writing the audit log entry alongside it if the log is kept in
+     * the database, then sends the customer an OTAC.
+     *
+     * @param accountId The account ID to set up a session for
+     * @param data The customer's login data
+     * @param ip The address the login came from, for the audit log
+     * @param response The response to send to the user, which is used to set
+     * cookies
+     */
+    private void completeFirstStage(int accountId, LoginData data, String ip,
+            HttpServletResponse response) {
+        SessionToken token = SessionToken.generate();
+        long now = System.currentTimeMillis();
+        long expiry = now + SecurityService.SESSION_EXPIRY_LENGTH;
+        String entry = LogMessages.SUCCEED_LOGIN_1.get(accountId, ip);
+
+        if (auditLogStore == databaseManager) {
+            sessionStore.create(accountId, token, expiry, 0, now,
+                    () -> logEncryption.encrypt(entry.getBytes()));
+        } else {
+            sessionStore.create(accountId, token, expiry, 0);
+            writeLog(entry);
+        }
+        setSessionCookie(token, response);
+        sendOtac(data.getPhoneNumber(), data.getLoginKey());
+    }
+
+    /**
+     * Runs some work on the asynchronous login pool
+     *
+     * @param work The work to run
+     * @param <T> The type of result the work produces
+     * @return A future completing with the result, or exceptionally if the
+     * pool rejected the work
+     */
+    private <T> CompletableFuture<T> supplyAsync(Supplier<T> work) {
+        try {
+            return CompletableFuture.supplyAsync(work, asyncWork);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /**
+     * Gets the number of asynchronous logins either running on the database
+     * pool or waiting for it
+     *
+     * @return The number of outstanding asynchronous logins
+     */
+    public int getAsyncOutstandingCount() {
+        return asyncWork.getActiveCount() + asyncWork.getQueue().size();
+    }
+
+    public long getAsyncRejectedCount() {
+        return asyncRejected.sum();
+    }
+
     /**
      * Attempts to log a user in with provided credentials. If they are
      * successful, they are assigned a session and session key at OTAC level 0.
@@ -193,20 +797,23 @@ public class LoginSystem {
      * @param response The response to send to the user, which is used to set
      * cookies
      * @return If the credentials are valid, then true. Otherwise false.
+     * @throws BusyException If the password could not be checked because the
+     * hashing pool is saturated
      */
     public boolean attemptBasicLogin(int accountId, String passwordAttempt,
             HttpServletResponse response) {
+        long start = System.nanoTime();
         boolean success = verifyPassword(accountId, passwordAttempt);
         // Assign session key if correct
         if (success) {
-            String sessionKey = SecurityService
-                    .generateSessionKey(SecurityService.SESSION_KEY_LENGTH);
+            SessionToken token = SessionToken.generate();
             long expiry = System.currentTimeMillis()
                     + SecurityService.SESSION_EXPIRY_LENGTH;
 
-            assignNewSessionToken(accountId, sessionKey, expiry, 0, response);
+            assignNewSessionToken(accountId, token, expiry, 0, response);
         }
 
+        basicLoginLatency.record(System.nanoTime() - start);
         return success;
     }
 
@@ -221,6 +828,7 @@ public class LoginSystem {
      */
     public boolean attemptOtacLogin(int accountId, String otacAttempt,
             HttpServletResponse response) {
+        long start = System.nanoTime();
         boolean success = verifyOtac(accountId, otacAttempt);
 
         // Update session key if correct
@@ -230,36 +838,44 @@ public class LoginSystem {
             signOut(accountId);
 
             // If logged in successfully, assign a new, logged in session key
-            String newSessionKey = SecurityService
-                    .generateSessionKey(SecurityService.SESSION_KEY_LENGTH);
+            SessionToken newToken = SessionToken.generate();
             long newExpiry = System.currentTimeMillis()
                     + SecurityService.SESSION_EXPIRY_LENGTH;
-            assignNewSessionToken(accountId, newSessionKey, newExpiry, 1,
+            assignNewSessionToken(accountId, newToken, newExpiry, 1,
                     response);
         }
 
+        otacLoginLatency.record(System.nanoTime() - start);
         return success;
     }
 
     /**
      * Attempts to fetch a {@link UserAuthenticationPackage} based on a
      * provided session key, enabling getting an account ID from a session.
-     * @param sessionKey The session key to match against an account
-     * @return An optional containing a UserAuthenticationPackage.
-     * @see ApplicationDatabaseManager#getUserData(String)
+     * @param sessionKey The session key to match against an account, as
+     * found in the session cookie
+     * @return An optional containing a UserAuthenticationPackage. Empty if the
+     * key is not a validly encoded {@link SessionToken}.
+     * @see SessionStore#get(SessionToken)
      */
     public Optional<UserAuthenticationPackage> getUserFromSession(
             String sessionKey) {
-        return databaseManager.getUserData(sessionKey);
+        long start = System.nanoTime();
+        SessionToken token = SessionToken.parse(sessionKey);
+        Optional<UserAuthenticationPackage> user = token == null
+                ? Optional.empty()
+                : sessionStore.get(token);
+        sessionLookupLatency.record(System.nanoTime() - start);
+        return user;
     }
 
     /**
      * Invalidates all sessions
      * @param userId The account ID of the account to sign out
-     * @see ApplicationDatabaseManager#invalidateSessionKeys(int)
+     * @see SessionStore#invalidate(int)
      */
     public void terminateSessions(int userId) {
-        databaseManager.invalidateSessionKeys(userId);
+        sessionStore.invalidate(userId);
     }
 
     /**
@@ -279,8 +895,8 @@ public class LoginSystem {
             String phoneNumber, String addressLine1, String addressLine2,
             String postcode, String county, String password1) {
         return databaseManager
-                .newCustomer(phoneNumber, firstName, lastName, password1,
-                        SecurityService.PASSWORD_HASH_PASSES, addressLine1,
+                .newCustomer(phoneNumber, firstName, lastName,
+                        passwordHashing.hash(password1), addressLine1,
                         addressLine2, postcode, county);
     }
 
@@ -297,12 +913,54 @@ public class LoginSystem {
     }
 
     /**
-     * Temporary, debugging function to fetch and display logging information
-     * @return List of log entries
-     * @see WebController#dumpLogs()
+     * Temporary, debugging function to fetch and display logging information.
+     * Entries are passed to the sink one at a time as they are read, newest
+     * first. If entries are kept in files, any left in the database from
+     * before then follow those in the files.
+     *
+     * @param from The earliest creation time to include, inclusive
+     * @param to The latest creation time to include, exclusive
+     * @param sink Receives each log entry
+     * @return The number of log entries exported
+     * @see WebController#dumpLogs
      */
-    public List<String> dumpLogs() {
-        return databaseManager.dumpLogs(System.getenv("log_encryption_key"))
-                .orElse(new ArrayList<>());
+    public long exportLogs(long from, long to, Consumer<String> sink) {
+        DateTimeFormatter f = DateTimeFormatter.ISO_DATE_TIME;
+        ZoneId z = TimeZone.getDefault().toZoneId();
+
+        IAuditLogStore.EntryConsumer decrypt = (timestamp, content) -> {
+            String entry = new String(logEncryption.decrypt(content));
+            LocalDateTime d = LocalDateTime
+                    .ofInstant(Instant.ofEpochMilli(timestamp), z);
+            sink.accept(d.format(f) + ": " + entry);
+        };
+
+        long total = auditLogStore.read(from, to, decrypt);
+        if (auditLogStore != databaseManager) {
+            total += databaseManager.read(from, to, decrypt);
+        }
+        return total;
+    }
+
+    /**
+     * Writes any outstanding changes and log entries to the database, and
+     * releases its connections.
+     */
+    public void close() {
+        asyncWork.shutdown();
+        try {
+            asyncWork.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        twoFactorService.close();
+        passwordHashing.close();
+        auditLogWriter.close();
+        if (auditLogStore != databaseManager) {
+            auditLogStore.close();
+        }
+        sessionReaper.close();
+        sessionStore.close();
+        databaseManager.close();
     }
 }
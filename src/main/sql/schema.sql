@@ -1,3 +1,6 @@
+-- Must be set before any tables are created to take effect
+PRAGMA auto_vacuum = INCREMENTAL;
+
 CREATE TABLE customer (
     customer_id INTEGER,
     phone_number VARCHAR(12) NOT NULL,
@@ -13,7 +16,7 @@ CREATE TABLE customer (
 
 CREATE TABLE session (
     session_id INTEGER,
-    session_key VARCHAR(20) NOT NULL,
+    session_key BLOB(16) NOT NULL, -- 128-bit SessionToken
     expiry INTEGER NOT NULL, -- SQLite automatically selects Long
     otac_authenticated INTEGER DEFAULT 0 NOT NULL,
     customer_id INTEGER NOT NULL,
@@ -41,7 +44,8 @@ CREATE TABLE security (
     support_out_salt BLOB(20) NOT NULL,
     password BLOB(20) NOT NULL,
     password_salt BLOB(20) NOT NULL,
-    password_hash_passes INTEGER NOT NULL,
+    password_hash_passes INTEGER NOT NULL, -- Or other work factor
+    password_hash_version INTEGER DEFAULT 0 NOT NULL, -- 0 SHA-256, 1 PBKDF2
 
     PRIMARY KEY (security_id)
 );
@@ -54,6 +58,19 @@ CREATE TABLE log (
     PRIMARY KEY (log_id)
 );
 
+CREATE TABLE schema_version (
+    version INTEGER,
+    description VARCHAR(100) NOT NULL,
+    applied_at INTEGER NOT NULL,
+
+    PRIMARY KEY (version)
+);
+
+CREATE INDEX session_key_index ON session (session_key);
+CREATE INDEX session_customer_index ON session (customer_id, expiry);
+CREATE INDEX session_expiry_index ON session (expiry);
+CREATE INDEX log_time_index ON log (time_created); -- rowid is implicit
+
 --CREATE TABLE payment_details (
 --
 --);
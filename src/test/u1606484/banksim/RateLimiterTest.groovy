@@ -0,0 +1,77 @@
+package u1606484.banksim
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.LongSupplier
+
+class RateLimiterTest extends GroovyTestCase {
+    private final AtomicLong clock = new AtomicLong()
+
+    private RateLimiter limiter(int slotCount, int capacity,
+            long refillMillis) {
+        return new RateLimiter(slotCount, capacity, refillMillis,
+                { clock.get() } as LongSupplier)
+    }
+
+    private void advance(long millis) {
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis))
+    }
+
+    void testBurstThenRefusal() {
+        RateLimiter r = limiter(RateLimiter.DEFAULT_SLOT_COUNT, 3, 1000)
+
+        3.times { assertTrue(r.tryAcquire("10.0.0.1")) }
+        assertFalse(r.tryAcquire("10.0.0.1"))
+        assertFalse(r.tryAcquire("10.0.0.1"))
+
+        // Other keys have buckets of their own
+        assertTrue(r.tryAcquire("10.0.0.2"))
+        assertTrue(r.tryAcquire(1234))
+
+        assertEquals(5, r.getAllowedCount())
+        assertEquals(2, r.getLimitedCount())
+        assertEquals(0, r.getEvictedCount())
+    }
+
+    void testRefillOverTime() {
+        RateLimiter r = limiter(RateLimiter.DEFAULT_SLOT_COUNT, 3, 1000)
+        3.times { assertTrue(r.tryAcquire(42)) }
+        assertFalse(r.tryAcquire(42))
+
+        advance(900)
+        assertFalse(r.tryAcquire(42))
+
+        // Being refused does not hold back the refill
+        advance(100)
+        assertTrue(r.tryAcquire(42))
+        assertFalse(r.tryAcquire(42))
+
+        // Half a token earned before a refusal still counts afterwards
+        advance(500)
+        assertFalse(r.tryAcquire(42))
+        advance(500)
+        assertTrue(r.tryAcquire(42))
+
+        // Buckets fill no further than their capacity
+        advance(60000)
+        3.times { assertTrue(r.tryAcquire(42)) }
+        assertFalse(r.tryAcquire(42))
+    }
+
+    void testEvictionCounting() {
+        // A single group of slots, so every key competes for it
+        RateLimiter r = limiter(4, 2, 1000)
+        (1..4).each { assertTrue(r.tryAcquire(it)) }
+        assertEquals(0, r.getEvictedCount())
+
+        // Every slot holds a bucket which is not full, so one is lost
+        assertTrue(r.tryAcquire(5))
+        assertEquals(1, r.getEvictedCount())
+
+        // Once the buckets have refilled, taking one over loses nothing
+        advance(1000)
+        assertTrue(r.tryAcquire(6))
+        assertEquals(1, r.getEvictedCount())
+        assertEquals(6, r.getAllowedCount())
+    }
+}
@@ -0,0 +1,102 @@
+package u1606484.banksim
+
+class SessionTokenTest extends GroovyTestCase {
+    private static final String ALPHABET = ("ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+            + "abcdefghijklmnopqrstuvwxyz0123456789-_")
+    private static final String ZERO = "A" * SessionToken.ENCODED_LENGTH
+
+    private static String withCharAt(String s, int i, char c) {
+        return s.substring(0, i) + c + s.substring(i + 1)
+    }
+
+    void testEncodeParseRoundTrip() {
+        for (int i = 0; i < 1000; i++) {
+            SessionToken token = SessionToken.generate()
+            String encoded = token.encode()
+
+            assertEquals(SessionToken.ENCODED_LENGTH, encoded.length())
+            assertEquals(token, SessionToken.parse(encoded))
+            assertEquals(encoded, SessionToken.parse(encoded).encode())
+        }
+    }
+
+    void testBytesRoundTrip() {
+        for (int i = 0; i < 1000; i++) {
+            SessionToken token = SessionToken.generate()
+            byte[] bytes = token.toBytes()
+
+            assertEquals(SessionToken.BYTE_LENGTH, bytes.length)
+            assertEquals(token, SessionToken.fromBytes(bytes))
+            assertEquals(token.hashCode(),
+                    SessionToken.fromBytes(bytes).hashCode())
+        }
+    }
+
+    void testMatchesStandardBase64() {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding()
+        List<byte[]> samples = [
+                new byte[SessionToken.BYTE_LENGTH],
+                (0..<SessionToken.BYTE_LENGTH).collect { 0xff } as byte[],
+                (0..<SessionToken.BYTE_LENGTH).collect { it } as byte[],
+                (0..<SessionToken.BYTE_LENGTH).collect { 0xfb } as byte[]
+        ]
+        for (int i = 0; i < 100; i++) {
+            samples << SessionToken.generate().toBytes()
+        }
+
+        samples.each { byte[] bytes ->
+            String expected = encoder.encodeToString(bytes)
+            assertEquals(expected, SessionToken.fromBytes(bytes).encode())
+            assertEquals(SessionToken.fromBytes(bytes),
+                    SessionToken.parse(expected))
+        }
+    }
+
+    void testRejectsNonZeroPaddingBits() {
+        int last = SessionToken.ENCODED_LENGTH - 1
+
+        // The last character carries 2 bits of the token, then 4 bits of
+        // padding, so only every sixteenth character is allowed there
+        ALPHABET.eachWithIndex { String c, int value ->
+            SessionToken parsed = SessionToken.parse(
+                    withCharAt(ZERO, last, c as char))
+            if ((value & 0xf) == 0) {
+                assertNotNull(c, parsed)
+            } else {
+                assertNull(c, parsed)
+            }
+        }
+    }
+
+    void testRejectsWrongLengths() {
+        assertNull(SessionToken.parse(null))
+        assertNull(SessionToken.parse(""))
+        assertNull(SessionToken.parse(ZERO.substring(1)))
+        assertNull(SessionToken.parse(ZERO + "A"))
+        assertNull(SessionToken.parse(
+                SessionToken.generate().encode() + "=="))
+
+        assertNull(SessionToken.fromBytes(null))
+        assertNull(SessionToken.fromBytes(new byte[0]))
+        assertNull(SessionToken.fromBytes(
+                new byte[SessionToken.BYTE_LENGTH - 1]))
+        assertNull(SessionToken.fromBytes(
+                new byte[SessionToken.BYTE_LENGTH + 1]))
+    }
+
+    void testRejectsCharactersOutsideAlphabet() {
+        // Standard base64's extra characters, padding, and non-ASCII
+        // characters, including one whose low byte is in the alphabet
+        ["+", "/", "=", " ", ".", "é", "Ł"].each { String c ->
+            for (int i = 0; i < SessionToken.ENCODED_LENGTH; i++) {
+                assertNull(c, SessionToken.parse(
+                        withCharAt(ZERO, i, c as char)))
+            }
+        }
+    }
+
+    void testToStringIsRedacted() {
+        SessionToken token = SessionToken.generate()
+        assertFalse(token.toString().contains(token.encode()))
+    }
+}
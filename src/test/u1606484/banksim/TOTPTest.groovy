@@ -1,4 +1,37 @@
 package u1606484.banksim
 
-class TOTPTest {
+class TOTPTest extends GroovyTestCase {
+    // Seed for HMAC-SHA512 - 64 bytes, from RFC 6238 Appendix B
+    private static final byte[] SEED = ("1234567890" * 6 + "1234").getBytes()
+    private static final long STEP_SECONDS = 30
+
+    private static final OtacEngine engine = new OtacEngine(8)
+
+    private static String codeAt(long timeSeconds) {
+        return engine.format(engine.generateCode(SEED,
+                timeSeconds.intdiv(STEP_SECONDS)))
+    }
+
+    void testRfc6238Vectors() {
+        assertEquals("90693936", codeAt(59L))
+        assertEquals("25091201", codeAt(1111111109L))
+        assertEquals("99943326", codeAt(1111111111L))
+        assertEquals("93441116", codeAt(1234567890L))
+        assertEquals("38618901", codeAt(2000000000L))
+        assertEquals("47863826", codeAt(20000000000L))
+    }
+
+    void testLeadingZerosPreserved() {
+        char[] digits = new char[8]
+        engine.writeDigits(42, digits, 0)
+        assertEquals("00000042", new String(digits))
+    }
+
+    void testGeneratorMatchesEngine() {
+        OtacGenerator g = new OtacGenerator(8, STEP_SECONDS * 1000)
+        long now = System.currentTimeMillis()
+        assertEquals(g.generateOtac(SEED, g.getTimestamp(now, 0)),
+                engine.format(engine.generateCode(SEED,
+                        now.intdiv(STEP_SECONDS * 1000))))
+    }
 }
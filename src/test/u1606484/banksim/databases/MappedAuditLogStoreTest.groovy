@@ -0,0 +1,165 @@
+package u1606484.banksim.databases
+
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+
+class MappedAuditLogStoreTest extends GroovyTestCase {
+    // Each record is a 16 byte header, its content and a 4 byte trailer
+    private static final int RECORD_OVERHEAD = 20
+    private static final int CONTENT_SIZE = 12
+    private static final int RECORD_SIZE = RECORD_OVERHEAD + CONTENT_SIZE
+
+    private Path directory
+
+    void setUp() {
+        directory = Files.createTempDirectory("audit")
+    }
+
+    void tearDown() {
+        directory.toFile().deleteDir()
+    }
+
+    private static byte[] contentOf(long n, int size = CONTENT_SIZE) {
+        ByteBuffer b = ByteBuffer.allocate(size)
+        b.putLong(0, n)
+        return b.array()
+    }
+
+    private static void appendAll(MappedAuditLogStore store,
+            List<Long> timestamps, int size = CONTENT_SIZE) {
+        store.append(timestamps as long[],
+                timestamps.collect { contentOf(it, size) } as byte[][])
+    }
+
+    private static List<Long> readAll(MappedAuditLogStore store,
+            long from = Long.MIN_VALUE, long to = Long.MAX_VALUE) {
+        List<Long> read = []
+        long count = store.read(from, to) { long timestamp, byte[] content ->
+            assertEquals(timestamp, ByteBuffer.wrap(content).getLong(0))
+            read << timestamp
+        }
+        assertEquals(read.size(), count)
+        return read
+    }
+
+    private List<Path> segmentFiles() {
+        return Files.list(directory).withCloseable { it.sorted().toList() }
+    }
+
+    void testReadsNewestFirst() {
+        MappedAuditLogStore store = new MappedAuditLogStore(directory, 4096)
+        appendAll(store, [1L, 2L, 3L])
+        appendAll(store, [4L, 5L])
+
+        assertEquals([5L, 4L, 3L, 2L, 1L], readAll(store))
+        assertEquals([4L, 3L, 2L], readAll(store, 2, 5))
+        assertEquals([], readAll(store, 6, 10))
+        store.close()
+    }
+
+    void testRollsSegmentsAndReopens() {
+        // Room for exactly 8 records per segment
+        MappedAuditLogStore store = new MappedAuditLogStore(directory,
+                RECORD_SIZE * 8)
+        List<Long> timestamps = (1L..20L).toList()
+        appendAll(store, timestamps.subList(0, 10))
+        appendAll(store, timestamps.subList(10, 20))
+
+        assertEquals(3, store.getSegmentCount())
+        assertEquals(3, segmentFiles().size())
+        assertEquals(20L * RECORD_SIZE, store.getSize())
+        assertEquals(timestamps.reverse(), readAll(store))
+        store.close()
+
+        store = new MappedAuditLogStore(directory, RECORD_SIZE * 8)
+        assertEquals(3, store.getSegmentCount())
+        assertEquals(timestamps.reverse(), readAll(store))
+        assertEquals([12L, 11L, 10L, 9L, 8L], readAll(store, 8, 13))
+
+        // Appending continues in the newest segment, rather than a new one
+        appendAll(store, [21L])
+        assertEquals(3, store.getSegmentCount())
+        assertEquals(21L, readAll(store).first())
+        store.close()
+    }
+
+    void testOutOfOrderTimestamps() {
+        // Enough records for each segment to have several index blocks
+        int size = 1000
+        MappedAuditLogStore store = new MappedAuditLogStore(directory,
+                1024 * 1024)
+        Random random = new Random(42)
+        List<Long> timestamps = (0..<500).collect {
+            (long) random.nextInt(10000)
+        }
+        timestamps.collate(50).each { appendAll(store, it, size) }
+
+        [[0L, 10000L], [2500L, 2600L], [9990L, 10000L], [4000L, 4001L]]
+                .each { long from, long to ->
+            List<Long> expected = timestamps
+                    .findAll { it >= from && it < to }.reverse()
+            assertEquals(expected, readAll(store, from, to))
+        }
+        store.close()
+
+        store = new MappedAuditLogStore(directory, 1024 * 1024)
+        List<Long> expected = timestamps
+                .findAll { it >= 3000 && it < 7000 }.reverse()
+        assertEquals(expected, readAll(store, 3000, 7000))
+        store.close()
+    }
+
+    void testTruncatedRecordIsDiscarded() {
+        MappedAuditLogStore store = new MappedAuditLogStore(directory,
+                RECORD_SIZE * 8)
+        appendAll(store, [1L, 2L, 3L])
+        store.close()
+
+        // Cut the file off halfway through the third record
+        Path segment = segmentFiles().last()
+        FileChannel.open(segment, StandardOpenOption.WRITE).withCloseable {
+            it.truncate((long) (RECORD_SIZE * 2 + RECORD_SIZE.intdiv(2)))
+        }
+
+        store = new MappedAuditLogStore(directory, RECORD_SIZE * 8)
+        assertEquals([2L, 1L], readAll(store))
+        assertEquals(2L * RECORD_SIZE, store.getSize())
+
+        // The shortened segment has no room left, so the next is started
+        appendAll(store, [4L])
+        assertEquals(2, store.getSegmentCount())
+        assertEquals([4L, 2L, 1L], readAll(store))
+        store.close()
+    }
+
+    void testTornRecordIsClearedBeforeAppending() {
+        MappedAuditLogStore store = new MappedAuditLogStore(directory,
+                RECORD_SIZE * 8)
+        appendAll(store, [1L, 2L, 3L, 4L])
+        store.close()
+
+        // Corrupt the second record's content, as if it had been torn.
+        // Every record after it is discarded along with it.
+        Path segment = segmentFiles().last()
+        byte[] bytes = Files.readAllBytes(segment)
+        bytes[RECORD_SIZE + RECORD_OVERHEAD - 4] ^= 1
+        Files.write(segment, bytes)
+
+        store = new MappedAuditLogStore(directory, RECORD_SIZE * 8)
+        assertEquals([1L], readAll(store))
+        assertTrue(Files.readAllBytes(segment)[RECORD_SIZE..-1]
+                .every { it == 0 })
+
+        // A new record in the torn one's place must not bring back the
+        // intact records which followed it
+        appendAll(store, [5L])
+        store.close()
+
+        store = new MappedAuditLogStore(directory, RECORD_SIZE * 8)
+        assertEquals([5L, 1L], readAll(store))
+        store.close()
+    }
+}